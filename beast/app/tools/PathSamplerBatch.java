@@ -0,0 +1,54 @@
+package beast.app.tools;
+
+import beast.app.beauti.BeautiConfig;
+import beast.app.beauti.BeautiDoc;
+import beast.app.draw.BEASTObjectDialog;
+import beast.app.draw.BEASTObjectPanel;
+import beast.app.util.Application;
+import beast.app.util.ConsoleApp;
+
+//command line interface to PathSamplerBatch
+public class PathSamplerBatch {
+
+
+	public static void main(final String[] args) throws Exception {
+		Application main = null;
+		try {
+			beast.inference.PathSamplerBatch sampler = new beast.inference.PathSamplerBatch();
+
+			if (args.length == 0) {
+				// try the GUI version
+				sampler.setID("PathSamplerBatch");
+				BeautiDoc doc = new BeautiDoc();
+				doc.beautiConfig = new BeautiConfig();
+				doc.beautiConfig.initAndValidate();
+				doc.beautiConfig.suppressPlugins.add(sampler.getClass().getName() + ".mcmc");
+				doc.beautiConfig.suppressPlugins.add(sampler.getClass().getName() + ".value");
+				doc.beautiConfig.suppressPlugins.add(sampler.getClass().getName() + ".hosts");
+
+				BEASTObjectPanel panel = new BEASTObjectPanel(sampler, sampler.getClass(), doc);
+				BEASTObjectDialog dialog = new BEASTObjectDialog(panel, null);
+				if (dialog.showDialog()) {
+					dialog.accept(sampler, doc);
+					ConsoleApp app = new ConsoleApp("PathSamplerBatch", "Path Sampler Batch: " + sampler.rootDirInput.get());
+					sampler.initAndValidate();
+					sampler.run();
+				}
+				return;
+			}
+
+			// continue with the command line version
+			main = new Application(sampler);
+			main.parseArgs(args, false);
+			sampler.initAndValidate();
+			sampler.run();
+		} catch (Exception e) {
+			//e.printStackTrace();
+			System.out.println(e.getMessage());
+			if (main != null) {
+				System.out.println(main.getUsage());
+			}
+		}
+	}
+
+}
@@ -0,0 +1,128 @@
+package beast.inference;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Results of the analysis of the run in a root directory: per path the estimates of all
+ * estimators, and per step its beta, the mean and ESS of the analysed column, and its
+ * contribution to every estimate. A run of PathSampler or PairedPathSampler has a single
+ * path, a run comparing more than two models has a path per pair of neighbouring models.
+ * If the analysis failed, there are no paths and the error is set.
+ */
+public class AnalysisResult {
+
+	/** results of a single path **/
+	public static class PathResult {
+		/** column of the logs, or the pair of models for a path of a model graph **/
+		public String name;
+		public String column;
+		public double [] betas;
+		public double [] means;
+		public double [] ESSs;
+		/** per step R-hat of its chains, null if steps have a single chain **/
+		public double [] RHats;
+		public int [] logEverys;
+		/** per estimator the contribution of every step **/
+		public final Map<String, double[]> contributions = new LinkedHashMap<String, double[]>();
+
+		/** @return estimate of the named estimator, the sum of the contributions of the steps **/
+		public double getEstimate(String estimator) {
+			return PathAnalysis.sum(contributions.get(estimator));
+		}
+
+		/** collect per step statistics and contributions of the last analysis of analysis **/
+		static PathResult fromAnalysis(String name, String column, double [] betas, PathAnalysis analysis, boolean hasChains) {
+			PathResult path = new PathResult();
+			path.name = name;
+			path.column = column;
+			path.betas = betas;
+			path.means = analysis.getMeans();
+			path.ESSs = analysis.getESSs();
+			path.RHats = (hasChains ? analysis.getRHats() : null);
+			path.logEverys = analysis.getLogEverys();
+			for (PathEstimator estimator : analysis.getEstimators()) {
+				path.contributions.put(estimator.getName(), analysis.getContributions(estimator.getName()));
+			}
+			return path;
+		}
+
+		JSONObject toJSON(String estimator) throws JSONException {
+			JSONObject o = new JSONObject();
+			o.put("path", name);
+			o.put("column", column);
+			o.put("estimate", number(getEstimate(estimator)));
+			JSONObject estimates = new JSONObject();
+			for (String estimatorName : contributions.keySet()) {
+				estimates.put(estimatorName, number(getEstimate(estimatorName)));
+			}
+			o.put("estimates", estimates);
+			JSONArray steps = new JSONArray();
+			for (int i = 0; i < betas.length; i++) {
+				JSONObject step = new JSONObject();
+				step.put("step", i);
+				step.put("beta", betas[i]);
+				step.put("mean", number(means[i]));
+				step.put("ESS", number(ESSs[i]));
+				if (RHats != null) {
+					step.put("RHat", number(RHats[i]));
+				}
+				step.put("logEvery", logEverys[i]);
+				step.put("contribution", number(contributions.get(estimator)[i]));
+				JSONObject stepContributions = new JSONObject();
+				for (Map.Entry<String, double[]> entry : contributions.entrySet()) {
+					stepContributions.put(entry.getKey(), number(entry.getValue()[i]));
+				}
+				step.put("contributions", stepContributions);
+				steps.put(step);
+			}
+			o.put("steps", steps);
+			return o;
+		}
+	}
+
+	public String rootDir;
+	/** estimator reported for the run **/
+	public String estimator;
+	public int burnInPercentage;
+	public final List<PathResult> paths = new ArrayList<PathResult>();
+	/** reason the analysis failed, null if it succeeded **/
+	public String error;
+
+	public AnalysisResult(String rootDir) {
+		this.rootDir = rootDir;
+	}
+
+	/** @return estimate of the reported estimator for path p **/
+	public double getEstimate(int p) {
+		return paths.get(p).getEstimate(estimator);
+	}
+
+	public JSONObject toJSON() throws JSONException {
+		JSONObject o = new JSONObject();
+		o.put("rootdir", rootDir);
+		if (error != null) {
+			o.put("error", error);
+			return o;
+		}
+		o.put("estimator", estimator);
+		o.put("burnInPercentage", burnInPercentage);
+		JSONArray array = new JSONArray();
+		for (PathResult path : paths) {
+			array.put(path.toJSON(estimator));
+		}
+		o.put("paths", array);
+		return o;
+	}
+
+	/** JSON has no NaN or infinity, so these become null **/
+	static Object number(double d) {
+		return (Double.isNaN(d) || Double.isInfinite(d) ? JSONObject.NULL : (Object) d);
+	}
+}
@@ -0,0 +1,242 @@
+package beast.inference;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+/**
+ * Headless analysis of many runs at once, e.g. all rootdirs of a batch on a cluster node:
+ * runs are analysed concurrently from their manifests, results are returned as AnalysisResults
+ * and can be written as JSON or CSV. Nothing is printed while analysing, and no window is opened.
+ * A run that cannot be analysed gets a result with its error, and does not stop the others.
+ * Usage: java beast.inference.BatchAnalyser [-threads n] [-burnin percentage] [-json file] [-csv file] [-summary file] rootdir...
+ * Without -json, -csv or -summary the JSON is written to stdout.
+ */
+public class BatchAnalyser {
+	/** number of runs analysed at the same time **/
+	final int nThreads;
+	/** burn-in percentage for all runs, null to use the one in the manifest of every run **/
+	final Integer burnInPercentage;
+
+	public BatchAnalyser(int nThreads, Integer burnInPercentage) {
+		this.nThreads = Math.max(1, nThreads);
+		this.burnInPercentage = burnInPercentage;
+	}
+
+	/** @return result for every root directory, in the same order **/
+	public List<AnalysisResult> analyse(List<String> rootDirs) throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+		List<Future<AnalysisResult>> futures = new ArrayList<Future<AnalysisResult>>();
+		for (final String rootDir : rootDirs) {
+			futures.add(executor.submit(new Callable<AnalysisResult>() {
+				@Override
+				public AnalysisResult call() {
+					return analyse(rootDir, burnInPercentage);
+				}
+			}));
+		}
+		executor.shutdown();
+		List<AnalysisResult> results = new ArrayList<AnalysisResult>();
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				results.add(futures.get(i).get());
+			} catch (ExecutionException e) {
+				AnalysisResult result = new AnalysisResult(rootDirs.get(i));
+				result.error = e.getCause().toString();
+				results.add(result);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * analyse the run described by the manifest in rootDir
+	 * @param burnInPercentage null to use the one in the manifest
+	 * @return result, with the error set if the run could not be analysed
+	 */
+	public static AnalysisResult analyse(String rootDir, Integer burnInPercentage) {
+		AnalysisResult result = new AnalysisResult(rootDir);
+		try {
+			RunManifest manifest = RunManifest.load(rootDir);
+			result.estimator = manifest.getEstimator();
+			result.burnInPercentage = (burnInPercentage != null ? burnInPercentage : manifest.getBurnInPercentage());
+			if (manifest.getColumn() != null) {
+				String [][] logFiles = manifest.getLogFiles();
+				result.paths.add(analysePath(manifest.getColumn(), logFiles, manifest.getColumn(), manifest.getBetas(), result.burnInPercentage));
+			} else {
+				// model graph, with a path per pair of neighbouring models
+				ModelGraph graph = new ModelGraph(rootDir);
+				for (int e = 0; e < graph.getPathCount(); e++) {
+					String name = graph.getEdge(e)[0] + "-" + graph.getEdge(e)[1];
+					result.paths.add(analysePath(name, graph.getLogFiles(e), graph.getColumn(e), manifest.getPathBetas(), result.burnInPercentage));
+				}
+			}
+		} catch (Exception e) {
+			result.error = (e.getMessage() != null ? e.getMessage() : e.toString());
+			result.paths.clear();
+		}
+		return result;
+	}
+
+	private static AnalysisResult.PathResult analysePath(String name, String [][] logFiles, String column, double [] betas, int burnInPercentage) throws Exception {
+		PathAnalysis analysis = new PathAnalysis();
+		analysis.compute(logFiles, column, betas, burnInPercentage);
+		boolean hasChains = false;
+		for (String [] chainLogFiles : logFiles) {
+			hasChains |= chainLogFiles.length > 1;
+		}
+		return AnalysisResult.PathResult.fromAnalysis(name, column, betas, analysis, hasChains);
+	}
+
+	/** write results as a JSON array with an object per root directory **/
+	public static void writeJSON(List<AnalysisResult> results, PrintStream out) throws JSONException {
+		JSONArray array = new JSONArray();
+		for (AnalysisResult result : results) {
+			array.put(result.toJSON());
+		}
+		out.println(array.toString(2));
+	}
+
+	/** write a CSV row per step of every path of every root directory, with its contribution to every estimate **/
+	public static void writeCSV(List<AnalysisResult> results, PrintStream out) {
+		List<String> estimators = getEstimatorNames(results);
+		out.print("rootdir,path,step,beta,mean,ESS,RHat,logEvery,contribution");
+		for (String estimator : estimators) {
+			out.print(",contribution." + estimator);
+		}
+		out.println();
+		for (AnalysisResult result : results) {
+			for (AnalysisResult.PathResult path : result.paths) {
+				for (int i = 0; i < path.betas.length; i++) {
+					out.print(csv(result.rootDir) + "," + csv(path.name) + "," + i + "," + path.betas[i] + "," + path.means[i] + "," +
+							path.ESSs[i] + "," + (path.RHats != null ? path.RHats[i] + "" : "") + "," + path.logEverys[i] + "," +
+							path.contributions.get(result.estimator)[i]);
+					for (String estimator : estimators) {
+						double [] contributions = path.contributions.get(estimator);
+						out.print("," + (contributions != null ? contributions[i] + "" : ""));
+					}
+					out.println();
+				}
+			}
+		}
+	}
+
+	/** write a CSV row per path of every root directory with its estimates, or a row with the error if the analysis failed **/
+	public static void writeSummaryCSV(List<AnalysisResult> results, PrintStream out) {
+		List<String> estimators = getEstimatorNames(results);
+		out.print("rootdir,path,estimator,estimate");
+		for (String estimator : estimators) {
+			out.print("," + estimator);
+		}
+		out.println(",error");
+		for (AnalysisResult result : results) {
+			if (result.error != null) {
+				out.print(csv(result.rootDir) + ",,,");
+				for (int i = 0; i < estimators.size(); i++) {
+					out.print(",");
+				}
+				out.println("," + csv(result.error));
+				continue;
+			}
+			for (AnalysisResult.PathResult path : result.paths) {
+				out.print(csv(result.rootDir) + "," + csv(path.name) + "," + result.estimator + "," + path.getEstimate(result.estimator));
+				for (String estimator : estimators) {
+					out.print("," + (path.contributions.containsKey(estimator) ? path.getEstimate(estimator) + "" : ""));
+				}
+				out.println(",");
+			}
+		}
+	}
+
+	/** @return names of all estimators in the results, in the order they were registered **/
+	private static List<String> getEstimatorNames(List<AnalysisResult> results) {
+		List<String> names = new ArrayList<String>();
+		for (AnalysisResult result : results) {
+			for (AnalysisResult.PathResult path : result.paths) {
+				for (String name : path.contributions.keySet()) {
+					if (!names.contains(name)) {
+						names.add(name);
+					}
+				}
+			}
+		}
+		return names;
+	}
+
+	/** quote a CSV field if needed **/
+	private static String csv(String s) {
+		if (s.indexOf(',') >= 0 || s.indexOf('"') >= 0 || s.indexOf('\n') >= 0) {
+			return "\"" + s.replace("\"", "\"\"") + "\"";
+		}
+		return s;
+	}
+
+	private static PrintStream open(String file) throws IOException {
+		return new PrintStream(new FileOutputStream(new File(file)));
+	}
+
+	public static void main(String[] args) throws Exception {
+		int nThreads = Runtime.getRuntime().availableProcessors();
+		Integer burnInPercentage = null;
+		String jsonFile = null, csvFile = null, summaryFile = null;
+		List<String> rootDirs = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-threads")) {
+				nThreads = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-burnin")) {
+				burnInPercentage = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-json")) {
+				jsonFile = args[++i];
+			} else if (args[i].equals("-csv")) {
+				csvFile = args[++i];
+			} else if (args[i].equals("-summary")) {
+				summaryFile = args[++i];
+			} else {
+				rootDirs.add(args[i]);
+			}
+		}
+		if (rootDirs.size() == 0) {
+			System.err.println("Usage: java " + BatchAnalyser.class.getName() + " [-threads n] [-burnin percentage] [-json file] [-csv file] [-summary file] rootdir...");
+			System.exit(1);
+		}
+
+		List<AnalysisResult> results = new BatchAnalyser(nThreads, burnInPercentage).analyse(rootDirs);
+		if (jsonFile == null && csvFile == null && summaryFile == null) {
+			writeJSON(results, System.out);
+		}
+		if (jsonFile != null) {
+			PrintStream out = open(jsonFile);
+			writeJSON(results, out);
+			out.close();
+		}
+		if (csvFile != null) {
+			PrintStream out = open(csvFile);
+			writeCSV(results, out);
+			out.close();
+		}
+		if (summaryFile != null) {
+			PrintStream out = open(summaryFile);
+			writeSummaryCSV(results, out);
+			out.close();
+		}
+		int failed = 0;
+		for (AnalysisResult result : results) {
+			if (result.error != null) {
+				System.err.println("Could not analyse " + result.rootDir + ": " + result.error);
+				failed++;
+			}
+		}
+		System.exit(failed > 0 ? 1 : 0);
+	}
+}
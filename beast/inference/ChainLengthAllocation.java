@@ -0,0 +1,160 @@
+package beast.inference;
+
+import java.io.File;
+
+/**
+ * Division of a fixed budget of samples over the steps of a path, based on a pilot run of every step.
+ * The variance of the estimate is approximately the sum over steps of c_i / n_i, where n_i is the
+ * chain length of step i and c_i the variance of what step i contributes per sample, times the
+ * integrated autocorrelation time of its trace in samples. For a fixed total chain length this is
+ * minimal when n_i is proportional to the square root of c_i.
+ * For thermodynamic integration c_i is the variance of the trace times the square of the weight of
+ * the step in the trapezoid rule. For stepping stone sampling it is the relative variance of
+ * exp(weight * trace), which by the delta method is the variance of its log mean.
+ */
+public class ChainLengthAllocation {
+	/** fraction of an even share of the budget that every step gets at least, so a step whose variance the pilot underestimated is not starved **/
+	final static double MIN_SHARE = 0.1;
+
+	/** per step the variance of the quantity averaged by the estimator **/
+	final double [] variances;
+	/** per step the integrated autocorrelation time of the trace, in samples **/
+	final double [] ACTs;
+	/** per step the contribution to the variance of the estimate at a chain length of 1 **/
+	final double [] costs;
+	/** per step the allocated chain length, summed over its chains **/
+	int [] chainLengths;
+
+	/**
+	 * @param traces per step the traces of its chains, with burn-in removed
+	 * @param logEverys per step the logging interval of its traces
+	 */
+	public ChainLengthAllocation(double [][][] traces, int [] logEverys, double [] betas, String estimator) throws Exception {
+		int nSteps = traces.length;
+		variances = new double[nSteps];
+		ACTs = new double[nSteps];
+		costs = new double[nSteps];
+		boolean steppingStone = estimator.equals(PathAnalysis.STEPPING_STONE);
+		double [] weights = PathAnalysis.getWeights(betas);
+		for (int i = 0; i < nSteps; i++) {
+			double scale;
+			double weight = 0;
+			if (steppingStone) {
+				scale = (i < weights.length ? 1 : 0);
+				weight = (i < weights.length ? weights[i] : 0);
+			} else {
+				// coefficient of the step in the trapezoid rule
+				scale = ((i > 0 ? weights[i - 1] : 0) + (i < weights.length ? weights[i] : 0)) / 2.0;
+			}
+			int n = 0;
+			for (double [] trace : traces[i]) {
+				if (trace.length < 2) {
+					throw new Exception("Pilot of step " + i + " has less than 2 samples after burn-in: increase pilotFraction");
+				}
+				double [] quantity = (steppingStone ? relativeExp(trace, weight) : trace);
+				variances[i] += TraceStatistics.variance(quantity, 0, quantity.length) * quantity.length;
+				ACTs[i] += TraceStatistics.calcACT(quantity) * logEverys[i] * quantity.length;
+				n += quantity.length;
+			}
+			variances[i] /= n;
+			ACTs[i] /= n;
+			costs[i] = scale * scale * variances[i] * ACTs[i];
+		}
+	}
+
+	/** allocation based on the logs of the pilot run described by manifest **/
+	public static ChainLengthAllocation fromManifest(RunManifest pilot, int burnInPercentage) throws Exception {
+		String [][] logFiles = pilot.getLogFiles();
+		double [][][] traces = new double[logFiles.length][][];
+		int [] logEverys = new int[logFiles.length];
+		for (int i = 0; i < logFiles.length; i++) {
+			traces[i] = new double[logFiles[i].length][];
+			for (int j = 0; j < logFiles[i].length; j++) {
+				TraceLogReader reader = new TraceLogReader(new File(logFiles[i][j]));
+				traces[i][j] = reader.getTrace(pilot.getColumn(), burnInPercentage);
+				logEverys[i] = Math.max(1, reader.getLogEvery());
+			}
+		}
+		return new ChainLengthAllocation(traces, logEverys, pilot.getBetas(), pilot.getEstimator());
+	}
+
+	/** exp(weight * trace) relative to its mean, without overflow **/
+	private static double [] relativeExp(double [] trace, double weight) {
+		double logMean = TraceStatistics.logMeanExp(trace, 0, trace.length, weight);
+		double [] quantity = new double[trace.length];
+		for (int i = 0; i < trace.length; i++) {
+			quantity[i] = Math.exp(weight * trace[i] - logMean);
+		}
+		return quantity;
+	}
+
+	/**
+	 * divide budget over the steps, proportional to the square root of their cost,
+	 * but giving every step at least MIN_SHARE of an even share
+	 * @param minChainLength minimum chain length of a step, e.g. its number of chains
+	 * @return per step the chain length, summed over its chains
+	 */
+	public int [] allocate(long budget, int minChainLength) {
+		int nSteps = costs.length;
+		double floor = Math.max(minChainLength, MIN_SHARE * budget / nSteps);
+		boolean [] atFloor = new boolean[nSteps];
+		double [] share = new double[nSteps];
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			double free = budget;
+			double sum = 0;
+			for (int i = 0; i < nSteps; i++) {
+				if (atFloor[i]) {
+					free -= floor;
+				} else {
+					sum += Math.sqrt(costs[i]);
+				}
+			}
+			for (int i = 0; i < nSteps; i++) {
+				if (!atFloor[i]) {
+					share[i] = (sum > 0 ? free * Math.sqrt(costs[i]) / sum : free / (nSteps - countTrue(atFloor)));
+					if (share[i] < floor) {
+						atFloor[i] = true;
+						changed = true;
+					}
+				}
+			}
+		}
+		chainLengths = new int[nSteps];
+		for (int i = 0; i < nSteps; i++) {
+			chainLengths[i] = (int) Math.max(minChainLength, atFloor[i] ? floor : share[i]);
+		}
+		return chainLengths;
+	}
+
+	private static int countTrue(boolean [] b) {
+		int n = 0;
+		for (boolean v : b) {
+			n += (v ? 1 : 0);
+		}
+		return n;
+	}
+
+	public int getChainLength(int iStep) {
+		return chainLengths[iStep];
+	}
+
+	public double getVariance(int iStep) {
+		return variances[iStep];
+	}
+
+	public double getACT(int iStep) {
+		return ACTs[iStep];
+	}
+
+	/** print the pilot statistics and allocation of every step **/
+	public void report() {
+		System.out.println("\nStep        variance    ACT         cost        chainLength");
+		for (int i = 0; i < costs.length; i++) {
+			System.out.println(PathAnalysis.format(i) + " " + PathAnalysis.format(variances[i]) + " " + PathAnalysis.format(ACTs[i]) + " " +
+					PathAnalysis.format(costs[i]) + " " + chainLengths[i]);
+		}
+		System.out.println();
+	}
+}
@@ -0,0 +1,93 @@
+package beast.inference;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writes state snapshots of a running step on a background thread, so the sampling thread only
+ * pays for serialising the state and not for writing it, which can be slow on network file systems.
+ * Only the latest snapshot is kept: one that is replaced before the writer gets to it is skipped.
+ * Files are replaced atomically, so a crash never leaves a truncated state for the next step.
+ * A failed write is reported by the next call to submit or close.
+ */
+public class CheckpointWriter extends Thread {
+	final File file;
+
+	String pending;
+	boolean writing;
+	boolean closed;
+	IOException error;
+
+	/** @param file state file to write, gzipped if its name ends in .gz **/
+	public CheckpointWriter(File file) {
+		super("CheckpointWriter " + file.getName());
+		this.file = file;
+		setDaemon(true);
+	}
+
+	/** queue a snapshot for writing, replacing any snapshot that was not written yet **/
+	public synchronized void submit(String snapshot) throws IOException {
+		checkError();
+		pending = snapshot;
+		notifyAll();
+	}
+
+	/** wait till all submitted snapshots are written **/
+	public synchronized void flush() throws IOException, InterruptedException {
+		while (pending != null || writing) {
+			wait();
+		}
+		checkError();
+	}
+
+	/** write the last snapshot and stop the writer **/
+	public void close() throws IOException, InterruptedException {
+		flush();
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		join();
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			String snapshot;
+			synchronized (this) {
+				while (pending == null && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (pending == null) {
+					return;
+				}
+				snapshot = pending;
+				pending = null;
+				writing = true;
+			}
+			try {
+				CompressedIO.writeAtomically(file, snapshot);
+			} catch (IOException e) {
+				synchronized (this) {
+					error = e;
+				}
+			}
+			synchronized (this) {
+				writing = false;
+				notifyAll();
+			}
+		}
+	}
+
+	private void checkError() throws IOException {
+		if (error != null) {
+			IOException e = error;
+			error = null;
+			throw e;
+		}
+	}
+}
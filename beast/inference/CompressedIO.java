@@ -0,0 +1,144 @@
+package beast.inference;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/** helpers for reading and writing step output that may be gzip compressed **/
+public class CompressedIO {
+	public final static String GZIP_EXTENSION = ".gz";
+	final static int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * @return the gzipped version of file if it exists and is at least as recent as file,
+	 * otherwise file itself (which may not exist)
+	 */
+	public static File find(File file) {
+		File gzFile = new File(file.getPath() + GZIP_EXTENSION);
+		if (gzFile.exists() && (!file.exists() || gzFile.lastModified() >= file.lastModified())) {
+			return gzFile;
+		}
+		return file;
+	}
+
+	public static boolean isCompressed(File file) {
+		return file.getName().endsWith(GZIP_EXTENSION);
+	}
+
+	/** open file for reading, decompressing on the fly if it is gzipped **/
+	public static InputStream openInput(File file) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+		if (isCompressed(file)) {
+			return new GZIPInputStream(in, BUFFER_SIZE);
+		}
+		return in;
+	}
+
+	/**
+	 * open file for writing, compressing if the file name ends in .gz.
+	 * Appending to a gzipped file adds a new gzip member, which GZIPInputStream reads transparently.
+	 * Flushing a gzipped stream completes the compressed data written so far, so readLog can
+	 * read everything up to the last flush while the file is still being written.
+	 */
+	public static OutputStream openOutput(File file, boolean append) throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file, append), BUFFER_SIZE);
+		if (isCompressed(file)) {
+			return new GZIPOutputStream(out, BUFFER_SIZE, true);
+		}
+		return out;
+	}
+
+	/** read the complete (decompressed) content of a file **/
+	public static byte [] readFully(File file) throws IOException {
+		InputStream in = openInput(file);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE, file.length() * 4));
+			byte [] buf = new byte[BUFFER_SIZE];
+			int len;
+			while ((len = in.read(buf)) > 0) {
+				out.write(buf, 0, len);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * read the complete lines of a log that may still be written, or was left unfinished
+	 * by a process that was killed: a gzipped log is read up to where its compressed data ends,
+	 * and an incomplete last line is left out.
+	 */
+	public static byte [] readLog(File file) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE, file.length() * 4));
+		InputStream in = null;
+		try {
+			// opening a gzipped file reads its header, which may not be written yet
+			in = openInput(file);
+			byte [] buf = new byte[BUFFER_SIZE];
+			int len;
+			while ((len = in.read(buf)) > 0) {
+				out.write(buf, 0, len);
+			}
+		} catch (EOFException e) {
+			// gzip stream not finished yet
+		} finally {
+			if (in != null) {
+				in.close();
+			}
+		}
+		byte [] content = out.toByteArray();
+		int end = content.length;
+		while (end > 0 && content[end - 1] != '\n') {
+			end--;
+		}
+		return (end == content.length ? content : Arrays.copyOf(content, end));
+	}
+
+	/** write content to file through a temporary file, so that file is never left truncated **/
+	public static void writeAtomically(File file, String content) throws IOException {
+		File tmpFile = new File(file.getPath() + ".tmp");
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(tmpFile), BUFFER_SIZE);
+		if (isCompressed(file)) {
+			out = new GZIPOutputStream(out, BUFFER_SIZE);
+		}
+		try {
+			out.write(content.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		if (!tmpFile.renameTo(file)) {
+			// renameTo does not replace existing files on all platforms
+			file.delete();
+			if (!tmpFile.renameTo(file)) {
+				throw new IOException("Could not rename " + tmpFile.getPath() + " to " + file.getPath());
+			}
+		}
+	}
+
+	/** copy file, decompressing or compressing as implied by the file names **/
+	public static void copy(File from, File to) throws IOException {
+		InputStream in = openInput(from);
+		OutputStream out = openOutput(to, false);
+		try {
+			byte [] buf = new byte[BUFFER_SIZE];
+			int len;
+			while ((len = in.read(buf)) > 0) {
+				out.write(buf, 0, len);
+			}
+		} finally {
+			in.close();
+			out.close();
+		}
+	}
+}
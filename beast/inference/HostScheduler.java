@@ -0,0 +1,219 @@
+package beast.inference;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Assigns steps to hosts by throughput, instead of round robin, so a slow or busy host gets
+ * fewer steps and does not hold up the run. A host that occurs k times in the list of hosts
+ * runs k steps at a time. Every step goes to the host where it is expected to finish first,
+ * given the throughput of the host in samples per second and the steps already assigned to it.
+ * Throughput comes from a calibration run or an earlier run (HOSTS_FILE), and is replaced by
+ * the throughput observed for steps that finished on the host once there are any.
+ * When scripts are set up, the schedule is simulated, with steps waiting for the step they start from.
+ * While steps run, the scheduler follows the actual start and end of every step.
+ */
+public class HostScheduler {
+	/** file in the root directory with the throughput of every host, for later runs **/
+	public final static String HOSTS_FILE = "hosts.properties";
+
+	/** a step running on a host, with its expected end in milliseconds since the epoch **/
+	public static class Assignment {
+		final int host;
+		final double expectedEnd;
+
+		Assignment(int host, double expectedEnd) {
+			this.host = host;
+			this.expectedEnd = expectedEnd;
+		}
+	}
+
+	final List<String> hosts = new ArrayList<String>();
+	final List<Integer> slots = new ArrayList<Integer>();
+	/** throughput per host from calibration or an earlier run, in samples per second **/
+	final List<Double> rates = new ArrayList<Double>();
+	/** samples and seconds of steps that finished on every host **/
+	final List<double[]> observed = new ArrayList<double[]>();
+	final List<List<Assignment>> running = new ArrayList<List<Assignment>>();
+	/** whether any throughput was measured, by calibration or an earlier run **/
+	boolean measured;
+
+	/** simulated time at which every slot of every host becomes free, in seconds **/
+	List<double[]> simulatedFree;
+	/** simulated end of every planned step, in seconds **/
+	final List<Double> simulatedEnd = new ArrayList<Double>();
+
+	/** @param hostList list of hosts, where a host occurring several times runs several steps at a time **/
+	public HostScheduler(String [] hostList) {
+		for (String host : hostList) {
+			int h = hosts.indexOf(host);
+			if (h < 0) {
+				hosts.add(host);
+				slots.add(1);
+				rates.add(1.0);
+				observed.add(new double[2]);
+				running.add(new ArrayList<Assignment>());
+			} else {
+				slots.set(h, slots.get(h) + 1);
+			}
+		}
+		resetPlan();
+	}
+
+	public List<String> getHosts() {
+		return hosts;
+	}
+
+	public String getHost(int h) {
+		return hosts.get(h);
+	}
+
+	public synchronized void setRate(String host, double rate) {
+		int h = hosts.indexOf(host);
+		if (h >= 0 && rate > 0) {
+			rates.set(h, rate);
+			measured = true;
+		}
+	}
+
+	/** @return true if throughputs are known from calibration, an earlier run or finished steps **/
+	public synchronized boolean hasMeasuredRates() {
+		if (measured) {
+			return true;
+		}
+		for (double [] o : observed) {
+			if (o[1] > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** @return throughput of host h in samples per second, as observed if any steps finished on it **/
+	public synchronized double getRate(int h) {
+		double [] o = observed.get(h);
+		return o[1] > 0 ? o[0] / o[1] : rates.get(h);
+	}
+
+	/** start planning from scratch, e.g. after throughputs changed **/
+	public synchronized void resetPlan() {
+		simulatedFree = new ArrayList<double[]>();
+		for (int slotCount : slots) {
+			simulatedFree.add(new double[slotCount]);
+		}
+		simulatedEnd.clear();
+	}
+
+	/**
+	 * Plan the next step in a simulated run, where steps are planned in order.
+	 * @param startsFrom step that needs to finish before this one can start, -1 if none
+	 * @param samples number of samples of the step, including burn-in
+	 * @return host for the step
+	 */
+	public synchronized String plan(int startsFrom, double samples) {
+		double ready = (startsFrom >= 0 ? simulatedEnd.get(startsFrom) : 0);
+		int best = -1, bestSlot = -1;
+		double bestEnd = Double.POSITIVE_INFINITY;
+		for (int h = 0; h < hosts.size(); h++) {
+			double [] free = simulatedFree.get(h);
+			for (int s = 0; s < free.length; s++) {
+				double end = Math.max(ready, free[s]) + samples / getRate(h);
+				if (end < bestEnd) {
+					bestEnd = end;
+					best = h;
+					bestSlot = s;
+				}
+			}
+		}
+		simulatedFree.get(best)[bestSlot] = bestEnd;
+		simulatedEnd.add(bestEnd);
+		return hosts.get(best);
+	}
+
+	/**
+	 * Assign a step that is about to start to the host where it is expected to finish first.
+	 * On a host with all its slots in use, the step is expected to start when the first running step ends.
+	 * If that host has no free slot, this waits till a step is released and decides again,
+	 * so a host never runs more steps at a time than it has slots.
+	 * @param samples number of samples of the step, including burn-in
+	 */
+	public synchronized Assignment acquire(double samples) throws InterruptedException {
+		while (true) {
+			double now = System.currentTimeMillis();
+			int best = -1;
+			double bestEnd = Double.POSITIVE_INFINITY;
+			for (int h = 0; h < hosts.size(); h++) {
+				double start = now;
+				if (running.get(h).size() >= slots.get(h)) {
+					start = Double.POSITIVE_INFINITY;
+					for (Assignment a : running.get(h)) {
+						start = Math.min(start, Math.max(now, a.expectedEnd));
+					}
+				}
+				double end = start + 1000 * samples / getRate(h);
+				if (end < bestEnd) {
+					bestEnd = end;
+					best = h;
+				}
+			}
+			if (running.get(best).size() < slots.get(best)) {
+				Assignment assignment = new Assignment(best, bestEnd);
+				running.get(best).add(assignment);
+				return assignment;
+			}
+			wait();
+		}
+	}
+
+	/**
+	 * record that an assigned step ended
+	 * @param samples number of samples the step ran, 0 if it failed
+	 */
+	public synchronized void release(Assignment assignment, double samples, double seconds) {
+		running.get(assignment.host).remove(assignment);
+		notifyAll();
+		if (samples > 0 && seconds > 0) {
+			double [] o = observed.get(assignment.host);
+			o[0] += samples;
+			o[1] += seconds;
+		}
+	}
+
+	/** read throughputs from file, as written by save() **/
+	public synchronized void load(File file) throws IOException {
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		for (String host : hosts) {
+			String rate = properties.getProperty(host);
+			if (rate != null) {
+				setRate(host, Double.parseDouble(rate));
+			}
+		}
+	}
+
+	/** write the current throughput of every host **/
+	public synchronized void save(File file) throws IOException {
+		Properties properties = new Properties();
+		for (int h = 0; h < hosts.size(); h++) {
+			properties.setProperty(hosts.get(h), getRate(h) + "");
+		}
+		OutputStream out = new FileOutputStream(file);
+		try {
+			properties.store(out, "throughput of every host in samples per second");
+		} finally {
+			out.close();
+		}
+	}
+}
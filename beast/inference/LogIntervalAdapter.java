@@ -0,0 +1,51 @@
+package beast.inference;
+
+/**
+ * Collects the trace of a step at every iteration during a window at the start of the chain,
+ * then proposes a logging interval based on the integrated autocorrelation time of that trace.
+ * Samples in the window after burn-in are held back by the trace loggers, and logged at the proposed interval.
+ */
+public class LogIntervalAdapter {
+	/** largest number of iterations used for estimating the autocorrelation time **/
+	final static int MAX_WINDOW = 100000;
+	/** fewest samples a step logs after adaptation **/
+	final static int MIN_LOGGED_SAMPLES = 200;
+
+	final double [] trace;
+	int n = 0;
+	final int chainLength;
+
+	public LogIntervalAdapter(int burnIn, int chainLength) {
+		this.chainLength = chainLength;
+		int window = Math.max(burnIn, chainLength / 10);
+		window = Math.min(window, burnIn + chainLength / 2);
+		window = Math.min(window, MAX_WINDOW);
+		trace = new double[Math.max(window, 2)];
+	}
+
+	/** @return number of iterations in the window **/
+	public int getWindow() {
+		return trace.length;
+	}
+
+	/** @return true when the window is complete **/
+	public boolean add(double value) {
+		trace[n++] = value;
+		return n == trace.length;
+	}
+
+	/** integrated autocorrelation time of the window, in iterations **/
+	public double getACT() {
+		return TraceStatistics.calcBatchMeansACT(trace, 0, n);
+	}
+
+	/**
+	 * logging interval as a multiple of the integrated autocorrelation time, leaving at least MIN_LOGGED_SAMPLES samples.
+	 * The interval need not divide the chain length: trace loggers log the last sample of the chain anyway.
+	 */
+	public int getLogEvery(double multiple) {
+		long logEvery = Math.round(multiple * getACT());
+		logEvery = Math.min(logEvery, chainLength / MIN_LOGGED_SAMPLES);
+		return (int) Math.max(1, logEvery);
+	}
+}
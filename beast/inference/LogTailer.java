@@ -0,0 +1,288 @@
+package beast.inference;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Follows a trace log that is still being written, reading only the lines appended
+ * since the previous update. An incomplete last line is left for the next update.
+ * Gzipped logs are followed too: the compressed bytes appended since the previous update
+ * are decompressed up to the last flush of the writer, gzip member by member.
+ * A log that is truncated or replaced is read again from the start.
+ */
+public class LogTailer {
+	final static int BUFFER_SIZE = 1 << 16;
+	/** gzip header flags **/
+	final static int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+	/** bytes of the CRC and size at the end of every gzip member **/
+	final static int GZIP_TRAILER = 8;
+
+	final File file;
+	final String label;
+
+	/** bytes of the file read so far **/
+	long position;
+	/** identity of the file read so far, to notice when it is replaced **/
+	Object fileKey;
+	/** incomplete last line **/
+	final StringBuilder line = new StringBuilder();
+	int column = -1;
+	double [] values = new double[1024];
+	int n;
+	int lastSample = -1;
+	/** logging interval recorded in the header, -1 if not known **/
+	int logEvery = -1;
+	int firstSample = -1;
+	/** number of times the log was started again **/
+	int resets;
+
+	/** decompressor of the current gzip member, null while reading a member header **/
+	Inflater inflater;
+	/** bytes of the member header read so far **/
+	byte [] header = new byte[0];
+	/** bytes of a member trailer still to skip **/
+	int trailerLeft;
+	final byte [] inflated = new byte[BUFFER_SIZE];
+
+	public LogTailer(File file, String label) {
+		this.file = file;
+		this.label = label;
+	}
+
+	/** @return true if samples were added since the last update **/
+	public boolean update() throws IOException {
+		File current = CompressedIO.find(file);
+		if (!current.exists()) {
+			return false;
+		}
+		RandomAccessFile in = new RandomAccessFile(current, "r");
+		try {
+			long length = in.length();
+			Object key = Files.readAttributes(current.toPath(), BasicFileAttributes.class).fileKey();
+			if (length < position || (key != null && fileKey != null && !key.equals(fileKey))) {
+				// the log was started again
+				reset();
+			}
+			fileKey = key;
+			if (length == position) {
+				return false;
+			}
+			int oldN = n;
+			boolean compressed = CompressedIO.isCompressed(current);
+			in.seek(position);
+			byte [] buf = new byte[(int) Math.min(BUFFER_SIZE, length - position)];
+			int len;
+			while (position < length && (len = in.read(buf, 0, (int) Math.min(buf.length, length - position))) > 0) {
+				if (compressed) {
+					decompress(buf, 0, len);
+				} else {
+					processBytes(buf, len);
+				}
+				position += len;
+			}
+			return n > oldN;
+		} finally {
+			in.close();
+		}
+	}
+
+	/** decompress bytes of the gzipped log, and process the lines in them **/
+	private void decompress(byte [] buf, int offset, int len) throws IOException {
+		while (len > 0) {
+			if (trailerLeft > 0) {
+				int skip = Math.min(trailerLeft, len);
+				trailerLeft -= skip;
+				offset += skip;
+				len -= skip;
+				continue;
+			}
+			if (inflater == null) {
+				// collect the member header, which is short, till it is complete
+				int used = readHeader(buf, offset, len);
+				offset += used;
+				len -= used;
+				continue;
+			}
+			inflater.setInput(buf, offset, len);
+			try {
+				int inflatedLen;
+				while ((inflatedLen = inflater.inflate(inflated)) > 0) {
+					processBytes(inflated, inflatedLen);
+				}
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupt gzip data in " + file.getPath() + ": " + e.getMessage());
+			}
+			if (inflater.finished()) {
+				// the rest is the trailer of this member, followed by the next member
+				int remaining = inflater.getRemaining();
+				offset += len - remaining;
+				len = remaining;
+				inflater.end();
+				inflater = null;
+				trailerLeft = GZIP_TRAILER;
+			} else {
+				// the inflater consumed everything
+				len = 0;
+			}
+		}
+	}
+
+	/**
+	 * add bytes to the member header, and start a new inflater once it is complete
+	 * @return number of bytes used
+	 */
+	private int readHeader(byte [] buf, int offset, int len) throws IOException {
+		int old = header.length;
+		header = Arrays.copyOf(header, old + len);
+		System.arraycopy(buf, offset, header, old, len);
+		int headerLength = getHeaderLength(header);
+		if (headerLength < 0) {
+			return len;
+		}
+		header = new byte[0];
+		inflater = new Inflater(true);
+		return headerLength - old;
+	}
+
+	/** @return length of the gzip member header at the start of bytes, -1 if it is not complete yet **/
+	private int getHeaderLength(byte [] bytes) throws IOException {
+		if (bytes.length < 10) {
+			return -1;
+		}
+		if ((bytes[0] & 0xff) != 0x1f || (bytes[1] & 0xff) != 0x8b) {
+			throw new IOException("Not in gzip format: " + file.getPath());
+		}
+		int flags = bytes[3] & 0xff;
+		int pos = 10;
+		if ((flags & FEXTRA) != 0) {
+			if (bytes.length < pos + 2) {
+				return -1;
+			}
+			pos += 2 + ((bytes[pos] & 0xff) | ((bytes[pos + 1] & 0xff) << 8));
+		}
+		for (int flag : new int[]{FNAME, FCOMMENT}) {
+			if ((flags & flag) != 0) {
+				while (pos < bytes.length && bytes[pos] != 0) {
+					pos++;
+				}
+				pos++;
+			}
+		}
+		if ((flags & FHCRC) != 0) {
+			pos += 2;
+		}
+		return (pos <= bytes.length ? pos : -1);
+	}
+
+	/** split bytes into lines, keeping an incomplete last line for later **/
+	private void processBytes(byte [] buf, int len) throws IOException {
+		for (int i = 0; i < len; i++) {
+			char c = (char) (buf[i] & 0xff);
+			if (c == '\n') {
+				processLine(line.toString());
+				line.setLength(0);
+			} else if (c != '\r') {
+				line.append(c);
+			}
+		}
+	}
+
+	private void reset() {
+		resets++;
+		position = 0;
+		line.setLength(0);
+		column = -1;
+		n = 0;
+		lastSample = -1;
+		logEvery = -1;
+		firstSample = -1;
+		if (inflater != null) {
+			inflater.end();
+			inflater = null;
+		}
+		header = new byte[0];
+		trailerLeft = 0;
+	}
+
+	private void processLine(String line) throws IOException {
+		if (line.startsWith(TraceLogger.LOG_EVERY_COMMENT)) {
+			try {
+				logEvery = Integer.parseInt(line.substring(TraceLogger.LOG_EVERY_COMMENT.length()).trim());
+			} catch (NumberFormatException e) {
+				// ignore garbled line
+			}
+			return;
+		}
+		if (line.length() == 0 || line.startsWith("#")) {
+			return;
+		}
+		String [] strs = line.split("\t");
+		if (column < 0) {
+			for (int i = 0; i < strs.length; i++) {
+				if (strs[i].equals(label)) {
+					column = i;
+				}
+			}
+			if (column < 0) {
+				throw new IOException("Could not find column " + label + " in " + file.getPath());
+			}
+			return;
+		}
+		if (strs.length <= column) {
+			return;
+		}
+		try {
+			double value = Double.parseDouble(strs[column]);
+			int sample = Integer.parseInt(strs[0]);
+			if (n == values.length) {
+				values = Arrays.copyOf(values, n * 2);
+			}
+			values[n++] = value;
+			if (firstSample < 0) {
+				firstSample = sample;
+			}
+			lastSample = sample;
+		} catch (NumberFormatException e) {
+			// ignore garbled line
+		}
+	}
+
+	/** @return values read so far **/
+	public double [] getTrace() {
+		return Arrays.copyOf(values, n);
+	}
+
+	public int getSampleCount() {
+		return n;
+	}
+
+	/** @return number of times the log was truncated or replaced, and read again from the start **/
+	public int getResetCount() {
+		return resets;
+	}
+
+	/** @return sample number of the last line read, -1 if none **/
+	public int getLastSample() {
+		return lastSample;
+	}
+
+	/**
+	 * @return interval between samples, as recorded in the header of the log, or derived
+	 * from the samples read so far otherwise, -1 if not known yet
+	 */
+	public int getLogEvery() {
+		if (logEvery > 0) {
+			return logEvery;
+		}
+		if (n < 2) {
+			return -1;
+		}
+		return Math.max(1, (lastSample - firstSample) / (n - 1));
+	}
+}
@@ -0,0 +1,245 @@
+package beast.inference;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Watch mode of the analysers: follows the likelihood logs of all steps while they are
+ * being written, and reports the contribution of every step and the overall estimate
+ * whenever a log grows, for all estimators of PathAnalysis. Steps that have not logged their last sample yet are flagged
+ * as partial, and steps without log as missing. Returns when all steps are done.
+ * The samples of steps with several chains are pooled.
+ */
+public class LogWatcher {
+	/** seconds between checks when no file system events arrive, e.g. on network file systems **/
+	final static int POLL_INTERVAL = 10;
+	final static Pattern CHAIN_LENGTH = Pattern.compile("chainLength=['\"]([0-9]+)['\"]");
+
+	/** per step the directories of all its chains **/
+	final String [][] stepDirs;
+	final double [] betas;
+	final int burnInPercentage;
+	final String estimateName;
+	final LogTailer [][] tailers;
+	/**
+	 * chain length of every chain according to its beast.xml, -1 if not known yet.
+	 * Only kept once the chain logged a sample, and while its log is not started again,
+	 * since a time budget changes it just before the chain starts.
+	 */
+	final int [][] chainLengths;
+	/** reset count of the tailer of every chain when its chain length was read **/
+	final int [][] chainLengthResets;
+	final PathAnalysis analysis = new PathAnalysis();
+	final PathEstimator.StepAccumulator [][] accumulators;
+	final int defaultEstimator;
+	double [][] contributions;
+
+	/**
+	 * @param stepDirs directories of the steps
+	 * @param column label of the column with the trace to analyse
+	 * @param betas beta of every step
+	 * @param estimator name of the estimator whose per step contributions are shown
+	 * @param estimateName description of the estimate, for reporting
+	 */
+	public LogWatcher(String [] stepDirs, String column, double [] betas, int burnInPercentage, String estimator, String estimateName) {
+		this(toChainDirs(stepDirs), column, betas, burnInPercentage, estimator, estimateName);
+	}
+
+	/** as above, for steps with several chains **/
+	public LogWatcher(String [][] stepDirs, String column, double [] betas, int burnInPercentage, String estimator, String estimateName) {
+		this.stepDirs = stepDirs;
+		this.betas = betas;
+		this.burnInPercentage = burnInPercentage;
+		this.estimateName = estimateName;
+		int nSteps = stepDirs.length;
+		tailers = new LogTailer[nSteps][];
+		chainLengths = new int[nSteps][];
+		chainLengthResets = new int[nSteps][];
+		accumulators = new PathEstimator.StepAccumulator[analysis.getEstimators().size()][nSteps];
+		for (int i = 0; i < nSteps; i++) {
+			tailers[i] = new LogTailer[stepDirs[i].length];
+			chainLengths[i] = new int[stepDirs[i].length];
+			chainLengthResets[i] = new int[stepDirs[i].length];
+			for (int j = 0; j < stepDirs[i].length; j++) {
+				tailers[i][j] = new LogTailer(new File(stepDirs[i][j], PathSampler.LIKELIHOOD_LOG_FILE), column);
+				chainLengths[i][j] = -1;
+			}
+			analysis.scan(new double[0], i, betas, accumulators);
+		}
+		defaultEstimator = analysis.getIndex(estimator);
+		contributions = analysis.getContributions(accumulators, betas);
+	}
+
+	private static String [][] toChainDirs(String [] stepDirs) {
+		String [][] dirs = new String[stepDirs.length][];
+		for (int i = 0; i < stepDirs.length; i++) {
+			dirs[i] = new String[]{stepDirs[i]};
+		}
+		return dirs;
+	}
+
+	/** @return final estimate, once all steps are done **/
+	public double watch() throws IOException, InterruptedException {
+		WatchService watcher = FileSystems.getDefault().newWatchService();
+		Set<String> registered = new HashSet<String>();
+		try {
+			boolean first = true;
+			while (true) {
+				register(watcher, registered);
+				boolean changed = false;
+				for (int i = 0; i < tailers.length; i++) {
+					boolean stepChanged = false;
+					for (LogTailer tailer : tailers[i]) {
+						stepChanged |= tailer.update();
+					}
+					if (stepChanged) {
+						updateContribution(i);
+						changed = true;
+					}
+				}
+				if (changed || first) {
+					report();
+					first = false;
+				}
+				if (isDone()) {
+					return getEstimate();
+				}
+				WatchKey key = watcher.poll(POLL_INTERVAL, TimeUnit.SECONDS);
+				while (key != null) {
+					key.pollEvents();
+					key.reset();
+					key = watcher.poll();
+				}
+			}
+		} finally {
+			watcher.close();
+		}
+	}
+
+	/** watch step directories, or their parents as long as they do not exist **/
+	private void register(WatchService watcher, Set<String> registered) throws IOException {
+		for (String [] dirs : stepDirs) {
+			for (String dir : dirs) {
+				File file = new File(dir);
+				if (!file.exists()) {
+					file = file.getAbsoluteFile().getParentFile();
+				}
+				if (file != null && file.exists() && registered.add(file.getAbsolutePath())) {
+					Path path = file.toPath();
+					path.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+				}
+			}
+		}
+	}
+
+	private void updateContribution(int i) {
+		double [][] traces = new double[tailers[i].length][];
+		for (int j = 0; j < traces.length; j++) {
+			double [] trace = tailers[i][j].getTrace();
+			int from = trace.length * burnInPercentage / 100;
+			traces[j] = Arrays.copyOfRange(trace, from, trace.length);
+		}
+		analysis.scan(traces, i, betas, accumulators);
+		contributions = analysis.getContributions(accumulators, betas);
+	}
+
+	private int getChainLength(int i, int j) {
+		if (chainLengthResets[i][j] != tailers[i][j].getResetCount()) {
+			chainLengths[i][j] = -1;
+		}
+		if (chainLengths[i][j] < 0 && tailers[i][j].getSampleCount() > 0) {
+			chainLengthResets[i][j] = tailers[i][j].getResetCount();
+			try {
+				String xml = new String(CompressedIO.readFully(new File(stepDirs[i][j], "beast.xml")), "UTF-8");
+				Matcher matcher = CHAIN_LENGTH.matcher(xml);
+				if (matcher.find()) {
+					chainLengths[i][j] = Integer.parseInt(matcher.group(1));
+				}
+			} catch (IOException e) {
+				// not set up yet
+			}
+		}
+		return chainLengths[i][j];
+	}
+
+	/**
+	 * @return true if all chains of step i logged their last sample, that is, the next sample
+	 * they would log is beyond the end of the chain, as in PathSampler.isComplete
+	 */
+	private boolean isDone(int i) {
+		for (int j = 0; j < tailers[i].length; j++) {
+			int chainLength = getChainLength(i, j);
+			LogTailer tailer = tailers[i][j];
+			if (chainLength < 0 || tailer.getSampleCount() == 0 ||
+					tailer.getLastSample() + Math.max(1, tailer.getLogEvery()) <= chainLength) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int getSampleCount(int i) {
+		int n = 0;
+		for (LogTailer tailer : tailers[i]) {
+			n += tailer.getSampleCount();
+		}
+		return n;
+	}
+
+	private boolean isDone() {
+		for (int i = 0; i < tailers.length; i++) {
+			if (!isDone(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private double getEstimate() {
+		return PathAnalysis.sum(contributions[defaultEstimator]);
+	}
+
+	private void report() {
+		DecimalFormat format = new DecimalFormat("###.####");
+		int partial = 0, missing = 0;
+		System.out.println("\nStep  status    samples   contribution");
+		for (int i = 0; i < tailers.length; i++) {
+			String status;
+			if (getSampleCount(i) == 0) {
+				status = "missing";
+				missing++;
+			} else if (isDone(i)) {
+				status = "done";
+			} else {
+				status = "partial";
+				partial++;
+			}
+			System.out.println(pad(i + "", 6) + pad(status, 10) + pad(getSampleCount(i) + "", 10) + format.format(contributions[defaultEstimator][i]));
+		}
+		for (int e = 0; e < contributions.length; e++) {
+			System.out.print(analysis.getEstimators().get(e).getName() + " = " + format.format(PathAnalysis.sum(contributions[e])) + "  ");
+		}
+		System.out.println();
+		System.out.println(estimateName + " = " + format.format(getEstimate()) +
+				(partial + missing > 0 ? " (" + partial + " steps partial, " + missing + " missing)" : ""));
+	}
+
+	private String pad(String s, int width) {
+		while (s.length() < width) {
+			s += " ";
+		}
+		return s;
+	}
+}
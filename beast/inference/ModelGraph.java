@@ -0,0 +1,71 @@
+package beast.inference;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Models and paths of a PairedPathSampler run comparing more than two models,
+ * as recorded in PairedPathSampler.MODEL_GRAPH_FILE in the root directory.
+ */
+public class ModelGraph {
+	/** file of every model **/
+	final List<String> modelFiles = new ArrayList<String>();
+	/** models at the ends of every path, with beta = 0 sampling from the first **/
+	final List<int[]> edges = new ArrayList<int[]>();
+	/** per path, per step the likelihood logs of all its chains **/
+	final List<String[][]> edgeLogFiles = new ArrayList<String[][]>();
+
+	/** read the model graph of the run in rootDir **/
+	public ModelGraph(String rootDir) throws IOException {
+		BufferedReader fin = new BufferedReader(new FileReader(new File(rootDir, PairedPathSampler.MODEL_GRAPH_FILE)));
+		try {
+			String sStr;
+			while ((sStr = fin.readLine()) != null) {
+				String [] strs = sStr.split("\t");
+				if (strs[0].equals("model")) {
+					modelFiles.add(strs[2]);
+				} else if (strs[0].equals("edge")) {
+					edges.add(new int[]{Integer.parseInt(strs[1]), Integer.parseInt(strs[2])});
+					String [][] logFiles = new String[strs.length - 3][];
+					for (int i = 0; i < logFiles.length; i++) {
+						// directories of the chains of a step are separated by commas
+						logFiles[i] = strs[i + 3].split(",");
+						for (int j = 0; j < logFiles[i].length; j++) {
+							logFiles[i][j] += "/" + PathSampler.LIKELIHOOD_LOG_FILE;
+						}
+					}
+					edgeLogFiles.add(logFiles);
+				}
+			}
+		} finally {
+			fin.close();
+		}
+	}
+
+	public List<String> getModelFiles() {
+		return modelFiles;
+	}
+
+	public int getPathCount() {
+		return edges.size();
+	}
+
+	/** @return models at the ends of path e **/
+	public int [] getEdge(int e) {
+		return edges.get(e);
+	}
+
+	/** @return per step the likelihood logs of all chains of path e **/
+	public String [][] getLogFiles(int e) {
+		return edgeLogFiles.get(e);
+	}
+
+	/** @return column in the logs of path e with the posterior differences of its models **/
+	public String getColumn(int e) {
+		return PosteriorDifference.COLUMN_PREFIX + edges.get(e)[0] + "-" + edges.get(e)[1];
+	}
+}
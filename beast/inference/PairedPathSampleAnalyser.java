@@ -1,29 +1,35 @@
 package beast.inference;
 
+import java.awt.GraphicsEnvironment;
 import java.io.IOException;
+import java.io.File;
+import java.io.PrintStream;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.List;
 
-import org.apache.commons.math.distribution.BetaDistribution;
-import org.apache.commons.math.distribution.BetaDistributionImpl;
-
 import beast.app.util.ConsoleApp;
 import beast.core.BEASTObject;
 import beast.core.Description;
 import beast.core.Input;
 import beast.inference.PairedPathSampler.Scheme;
-import beast.util.LogAnalyser;
 
 
 
 @Description("Reads logs produces through PairedPathSampler and estimates Bayes factor of the pair of models")
 public class PairedPathSampleAnalyser extends beast.core.Runnable {
+	public static String BAYES_FACTOR_FILE = "bayes-factors.txt";
+
 	public Input<String> rootDirInput = new Input<String>("rootdir", "root directory for storing particle states and log files (default /tmp)", "/tmp");
 	public Input<Double> alphaInput = new Input<Double>("alpha", "alpha parameter of Beta(alpha,1) distribution used to space out steps, default 0.3" +
 			"If alpha <= 0, uniform intervals are used.", 0.3);
 	public Input<Integer> stepsInput = new Input<Integer>("nrOfSteps", "the number of steps to use, default 8", 8);
-	public Input<Integer> burnInPercentageInput = new Input<Integer>("burnInPercentage", "burn-In Percentage used for analysing log files", 50);
+	public Input<Integer> burnInPercentageInput = new Input<Integer>("burnInPercentage", "burn-In Percentage used for analysing log files. " +
+			"If not specified, the one in the manifest of the run is used, or 50 if there is no manifest");
+	public Input<Boolean> watchInput = new Input<Boolean>("watch", "follow the logs of a run that is still in progress, " +
+			"and report the estimate whenever a log grows, until all steps are done (default false)", false);
+	public Input<String> burnInSweepInput = new Input<String>("burnInSweep", "comma separated list of burn-in percentages. If specified, " +
+			"the estimate is calculated for each of these in a single pass over the log files, instead of for burnInPercentage only");
 
 	DecimalFormat formatter;
 	
@@ -40,93 +46,167 @@ public class PairedPathSampleAnalyser extends beast.core.Runnable {
 	 * @throws Exception
 	 */
 	double estimateMarginalLikelihood(int nSteps, double alpha, String rootDir, int burnInPercentage) throws Exception {
-		List<List<Double>> logdata = new ArrayList<List<Double>>(); 
-		
-		
 		String sFormat = "";
 		for (int i = nSteps; i > 0; i /= 10) {
 			sFormat += "#";
 		}
 		formatter = new DecimalFormat(sFormat);
 
-		// collect likelihood estimates for each step
-		double [] marginalLs = new double[nSteps];
-		Double [] [] marginalLs2 = new Double[nSteps][];
+		String [][] logFiles = new String[nSteps][];
+		for (int i = 0; i < nSteps; i++) {
+			logFiles[i] = new String[]{getStepDir(rootDir, i) + "/" + PathSampler.LIKELIHOOD_LOG_FILE};
+		}
+		return estimateBayesFactor(logFiles, "diff-posterior", getBetas(nSteps, alpha), PathSampleAnalyser.getEstimator(alpha), burnInPercentage);
+	}
+
+	/** estimate Bayes factor from the column with posterior differences in the log files of all chains of all steps of a path **/
+	double estimateBayesFactor(String [][] logFiles, String column, double [] betas, String estimator, int burnInPercentage) throws Exception {
+		// Stepping stone uses formula (18) 
+		// Make the most of your samples: Bayes factor estimators for high-dimensional models of sequence evolution
+		// G Baele, P Lemey, S Vansteelandt
+		// BMC bioinformatics 14 (1), 85
+		PathAnalysis analysis = new PathAnalysis();
+		return analysis.analyse(logFiles, column, betas, burnInPercentage, estimator);
+	}
+
+	/** estimate Bayes factor for each of the burn-in percentages, reading every log only once **/
+	double [] estimateBayesFactors(int nSteps, double alpha, String rootDir, int [] burnInPercentages) throws Exception {
+		String sFormat = "";
+		for (int i = nSteps; i > 0; i /= 10) {
+			sFormat += "#";
+		}
+		formatter = new DecimalFormat(sFormat);
+
+		double [][] traces = new double[nSteps][];
 		for (int i = 0; i < nSteps; i++) {
-			List<Double> logdata1 = new ArrayList<Double>();
 			String logFile = getStepDir(rootDir, i) + "/" + PathSampler.LIKELIHOOD_LOG_FILE;
-			LogAnalyser analyser = new LogAnalyser(new String[] {logFile}, 2000, burnInPercentage);
-			marginalLs[i] = analyser.getMean("diff-posterior");
-			marginalLs2[i] = analyser.getTrace("diff-posterior");
-			System.err.println("marginalLs[" + i + " ] = " + marginalLs[i]);
-
-			logdata1.add(marginalLs[i]);
-			logdata1.add(0.0);
-			logdata1.add(analyser.getESS("diff-posterior"));
-			logdata.add(logdata1);
-		}
-		
-		// combine steps
-		double logBF = 0;
-		PairedPathSampler.Scheme scheme = Scheme.uniform;
-		if (alpha <= 0) { 
-			scheme = Scheme.uniform;
-			// uniform intervals
-			for (int i = 0; i < nSteps - 1; i++) {
-				logBF += (marginalLs[i] + marginalLs[i + 1]); 
-			}		
-			logBF = logBF / (2.0 * (nSteps - 1));
-		} else {
-			scheme = Scheme.sigmoid;
-			// intervals follow Beta distribution
-			//BetaDistribution betaDistribution = new BetaDistributionImpl(alpha, 1.0);
-			double [] contrib = new double[nSteps-1];
-			
-			for (int i = 0; i < nSteps - 1; i++) {
-				List<Double> logdata1 = logdata.get(i);;
-				double beta1 = PairedPathSampler.nextBeta(scheme, i, nSteps - 1, alpha); 
-				double beta2 = PairedPathSampler.nextBeta(scheme, i + 1,  nSteps - 1, alpha); 
-				double weight = beta2 - beta1;
-
-				// Use formula (18) 
-				// Make the most of your samples: Bayes factor estimators for high-dimensional models of sequence evolution
-				// G Baele, P Lemey, S Vansteelandt
-				// BMC bioinformatics 14 (1), 85
-				Double [] marginal2 = marginalLs2[i];
-				double logLmax = max(marginal2);
-				logBF += weight * logLmax;
-				
-				int n = marginal2.length;
-				double x = 0;
-				for (int j = 0; j < n; j++) {
-					x += Math.exp(weight * (marginal2[j] - logLmax)); 
-				}
-				logBF += Math.log(x/n);
+			traces[i] = new TraceLogReader(new File(logFile)).getTrace("diff-posterior", 0);
+		}
+		double [] estimates = PathSampleAnalyser.sweepBurnIn(traces, getBetas(nSteps, alpha), PathSampleAnalyser.getEstimator(alpha), burnInPercentages);
+		System.out.println("\nburnIn%     Bayes factor");
+		for (int k = 0; k < estimates.length; k++) {
+			System.out.println(format(burnInPercentages[k]) + " " + format(estimates[k]));
+		}
+		System.out.println();
+		return estimates;
+	}
 
-				contrib[i] = -(weight * logLmax + Math.log(x/n));
-				logdata1.set(1, -(weight * logLmax + Math.log(x/n)));
+	/**
+	 * estimate log Bayes factors between all pairs of models compared by PairedPathSampler 
+	 * with multiple models. Paths that were sampled give the factors of neighbouring models,
+	 * and the factors of other pairs are summed along the path between them in the tree.
+	 * The matrix is written to BAYES_FACTOR_FILE in the root directory.
+	 * @param pathBetas betas of the steps along every path
+	 * @return matrix with in entry [i][j] the Bayes factor estimate for model1 = i and model2 = j
+	 */
+	double [][] estimateBayesFactors(String rootDir, double [] pathBetas, String estimator, int burnInPercentage) throws Exception {
+		ModelGraph graph = new ModelGraph(rootDir);
+		List<String> modelFiles = graph.getModelFiles();
+
+		int k = modelFiles.size();
+		double [][] logBF = new double[k][k];
+		List<List<Integer>> neighbours = new ArrayList<List<Integer>>();
+		for (int i = 0; i < k; i++) {
+			neighbours.add(new ArrayList<Integer>());
+		}
+		for (int e = 0; e < graph.getPathCount(); e++) {
+			int a = graph.getEdge(e)[0], b = graph.getEdge(e)[1];
+			System.out.println("Path from model " + a + " to model " + b);
+			double bf = estimateBayesFactor(graph.getLogFiles(e), graph.getColumn(e), pathBetas, estimator, burnInPercentage);
+			logBF[a][b] = bf;
+			logBF[b][a] = -bf;
+			neighbours.get(a).add(b);
+			neighbours.get(b).add(a);
+		}
 
-//				logMarginalL += weight * marginalLs[i]; 
+		// the edges form a tree, so extend factors from each model to its neighbours' neighbours
+		for (int from = 0; from < k; from++) {
+			boolean [] done = new boolean[k];
+			done[from] = true;
+			List<Integer> queue = new ArrayList<Integer>();
+			queue.add(from);
+			while (queue.size() > 0) {
+				int a = queue.remove(0);
+				for (int b : neighbours.get(a)) {
+					if (!done[b]) {
+						if (a != from) {
+							logBF[from][b] = logBF[from][a] + logBF[a][b];
+						}
+						done[b] = true;
+						queue.add(b);
+					}
+				}
 			}
-						
 		}
-		
-		System.out.println("\nStep         beta       " +
-				"diff-posterior contribution ESS");
-		//BetaDistribution betaDistribution = new BetaDistributionImpl(alpha, 1.0);
-		for (int i = 0; i < nSteps; i++) {
-			System.out.print(format(i)+" ");
-			double beta = PairedPathSampler.nextBeta(scheme, i, nSteps-1, alpha); 
-			System.out.print(format(beta)+" ");
 
-			
-			for (Double d : logdata.get(i)) {
-				System.out.print(format(d) + " ");
+		PrintStream out = new PrintStream(new File(rootDir, BAYES_FACTOR_FILE));
+		for (PrintStream o : new PrintStream[]{System.out, out}) {
+			o.println("Bayes factor estimates, model1 in rows, model2 in columns");
+			for (int i = 0; i < k; i++) {
+				o.println(i + "\t" + modelFiles.get(i));
 			}
-			System.out.println();
-		}		
-		System.out.println();
-		return -logBF;
+			o.print("            ");
+			for (int j = 0; j < k; j++) {
+				o.print(format(j) + " ");
+			}
+			o.println();
+			for (int i = 0; i < k; i++) {
+				o.print(format(i) + " ");
+				for (int j = 0; j < k; j++) {
+					o.print(format(logBF[i][j]) + " ");
+				}
+				o.println();
+			}
+		}
+		out.close();
+		return logBF;
+	}
+
+	/** @return burn-in percentage given as input, otherwise the one in manifest, if any **/
+	int getBurnInPercentage(RunManifest manifest) {
+		if (burnInPercentageInput.get() != null) {
+			return burnInPercentageInput.get();
+		}
+		return (manifest != null ? manifest.getBurnInPercentage() : PathSampleAnalyser.DEFAULT_BURN_IN_PERCENTAGE);
+	}
+
+	/** estimate from the run described by the manifest in rootDir, either a single path or a model graph **/
+	void analyse(String rootDir, String burnIns, boolean watch) throws Exception {
+		RunManifest manifest = RunManifest.load(rootDir);
+		if (manifest.getColumn() == null) {
+			estimateBayesFactors(rootDir, manifest.getPathBetas(), manifest.getEstimator(), Integer.parseInt(burnIns));
+		} else if (watch) {
+			System.out.println("Bayes factor estimate = " + PathSampleAnalyser.watch(manifest, Integer.parseInt(burnIns), "Bayes factor estimate"));
+		} else if (burnIns.indexOf(',') >= 0) {
+			PathSampleAnalyser.estimates(manifest, PathSampleAnalyser.parseBurnIns(burnIns), "Bayes factor");
+		} else {
+			System.out.println("Bayes factor estimate = " + PathSampleAnalyser.estimate(manifest, Integer.parseInt(burnIns)));
+		}
+	}
+
+	/** @return beta of every step, as used by PairedPathSampler **/
+	double [] getBetas(int nSteps, double alpha) {
+		Scheme scheme = (alpha <= 0 ? Scheme.uniform : Scheme.sigmoid);
+		double [] betas = new double[nSteps];
+		for (int i = 0; i < nSteps; i++) {
+			betas[i] = PairedPathSampler.nextBeta(scheme, i, nSteps - 1, alpha);
+		}
+		return betas;
+	}
+
+	/** follow the logs of a run in progress, reporting the estimate whenever a log grows, until all steps are done **/
+	double watch(int nSteps, double alpha, String rootDir, int burnInPercentage) throws Exception {
+		String sFormat = "";
+		for (int i = nSteps; i > 0; i /= 10) {
+			sFormat += "#";
+		}
+		formatter = new DecimalFormat(sFormat);
+		String [] stepDirs = new String[nSteps];
+		for (int i = 0; i < nSteps; i++) {
+			stepDirs[i] = getStepDir(rootDir, i);
+		}
+		LogWatcher watcher = new LogWatcher(stepDirs, "diff-posterior", getBetas(nSteps, alpha), burnInPercentage, PathSampleAnalyser.getEstimator(alpha), "Bayes factor estimate");
+		return watcher.watch();
 	}
 
 	private String format(double d) {
@@ -138,24 +218,35 @@ public class PairedPathSampleAnalyser extends beast.core.Runnable {
 		return s;
 	}
 
-	private double max(Double[] marginal2) {
-		Double max = marginal2[0];
-		for (Double v : marginal2) {
-			max = Math.max(v, max);
-		}
-		return max;
-	}
-
 	String getStepDir(String rootDir, int iParticle) {
 		return rootDir + "/step" + formatter.format(iParticle);
 	}
 	
 	public static void main(String[] args) throws Exception {
 		PairedPathSampleAnalyser analyser = new PairedPathSampleAnalyser();
+		if (args.length < 4) {
+			// rootDir [burnInPercentage(s)] [watch], with everything else taken from the manifest
+			String burnIns = (args.length > 1 ? args[1] : RunManifest.load(args[0]).getBurnInPercentage() + "");
+			analyser.analyse(args[0], burnIns, args.length > 2 && args[2].equals("watch"));
+			return;
+		}
 		int nSteps = Integer.parseInt(args[0]);
 		double alpha = Double.parseDouble(args[1]);
 		String rootDir = args[2];
+		if (args.length > 4 && args[4].equals("watch")) {
+			double estimate = analyser.watch(nSteps, alpha, rootDir, Integer.parseInt(args[3]));
+			System.out.println("Bayes factor estimate = " + estimate);
+			return;
+		}
+		if (args[3].indexOf(',') >= 0) {
+			analyser.estimateBayesFactors(nSteps, alpha, rootDir, PathSampleAnalyser.parseBurnIns(args[3]));
+			return;
+		}
 		int burnInPercentage = Integer.parseInt(args[3]);
+		if (new File(rootDir, PairedPathSampler.MODEL_GRAPH_FILE).exists()) {
+			analyser.estimateBayesFactors(rootDir, analyser.getBetas(nSteps, alpha), PathSampleAnalyser.getEstimator(alpha), burnInPercentage);
+			return;
+		}
 		double marginalL = analyser.estimateMarginalLikelihood(nSteps, alpha, rootDir, burnInPercentage);
 		System.out.println("Bayes factor estimate = " + marginalL);
 	}
@@ -168,15 +259,39 @@ public class PairedPathSampleAnalyser extends beast.core.Runnable {
 		// create output window
         String nameString = "PairedPathSampleAnalyser";
         String title = "Paired Path Sample Analyser -- " + rootDirInput.get();
-        consoleApp = new ConsoleApp(nameString, title);
+        if (!GraphicsEnvironment.isHeadless()) {
+        	consoleApp = new ConsoleApp(nameString, title);
+        }
 
 		double marginalL = Double.NaN;
 		try {
+			if (RunManifest.exists(rootDirInput.get())) {
+				RunManifest manifest = RunManifest.load(rootDirInput.get());
+				String burnIns = (burnInSweepInput.get() != null ? burnInSweepInput.get() : getBurnInPercentage(manifest) + "");
+				analyse(rootDirInput.get(), burnIns, watchInput.get());
+				return;
+			}
+			int burnInPercentage = getBurnInPercentage(null);
+			if (new File(rootDirInput.get(), PairedPathSampler.MODEL_GRAPH_FILE).exists()) {
+				estimateBayesFactors(rootDirInput.get(), getBetas(stepsInput.get(), alphaInput.get()), 
+						PathSampleAnalyser.getEstimator(alphaInput.get()), burnInPercentage);
+				return;
+			}
+			if (watchInput.get()) {
+				marginalL = watch(stepsInput.get(), alphaInput.get(), rootDirInput.get(), burnInPercentage);
+				System.out.println("Bayes factor estimate = " + marginalL);
+				return;
+			}
+			if (burnInSweepInput.get() != null) {
+				estimateBayesFactors(stepsInput.get(), alphaInput.get(), rootDirInput.get(), 
+						PathSampleAnalyser.parseBurnIns(burnInSweepInput.get()));
+				return;
+			}
 			marginalL = estimateMarginalLikelihood(
 					stepsInput.get(), 
 					alphaInput.get(), 
 					rootDirInput.get(), 
-					burnInPercentageInput.get());
+					burnInPercentage);
 		} catch (Exception e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
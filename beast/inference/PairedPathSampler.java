@@ -5,11 +5,15 @@ import java.util.List;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 import beast.app.BeastMCMC;
 import beast.core.Description;
@@ -17,10 +21,13 @@ import beast.core.Input;
 import beast.core.Input.Validate;
 import beast.core.util.Log;
 import beast.core.BEASTObject;
+import beast.core.Distribution;
 import beast.core.Logger;
 import beast.core.MCMC;
 import beast.core.Operator;
+import beast.core.State;
 import beast.core.StateNode;
+import beast.core.StateNodeInitialiser;
 import beast.util.XMLParser;
 import beast.util.XMLProducer;
 
@@ -29,6 +36,9 @@ import beast.util.XMLProducer;
 		+ "Uses multiple threads if specified as command line option to BEAST. "
 		+ "This uses the operator schedule of the first model.")
 public class PairedPathSampler extends PathSampler {
+	public static String MERGE_REPORT_FILE = "merge-report.txt";
+	public static String MODEL_GRAPH_FILE = "model-graph.txt";
+
 	public Input<File> model1Input = new Input<File>(
 			"model1",
 			"file name of BEAST XML file containing the first model that needs to be compared",
@@ -43,11 +53,31 @@ public class PairedPathSampler extends PathSampler {
 		sigmoid, uniform
 	}
 	public Input<Scheme> schemeInput = new Input<Scheme>("scheme" ,"sampling scheme, one of " + Arrays.toString(Scheme.values()), Scheme.sigmoid, Scheme.values());
+	public Input<List<File>> modelsInput = new Input<List<File>>("models", "file names of BEAST XML files of all models that need to be compared. " +
+			"If more than one is given, model1 and model2 are ignored, objects shared by models are merged, paths are sampled " +
+			"between pairs of models as specified by order, and log Bayes factors of all pairs of models are estimated", new ArrayList<File>());
+
+	public enum Order {
+		given, similarity
+	}
+	public Input<Order> orderInput = new Input<Order>("order", "pairs of models to sample paths between when multiple models are given: " +
+			"given = consecutive models in the order given, similarity = pairs on the spanning tree that maximises the number of objects " +
+			"the paired models have in common. One of " + Arrays.toString(Order.values()), Order.given, Order.values());
 	
 
 	MCMC model1;
 	MCMC model2;
 	Set<String> mergedSet;
+	List<String> mergeReport;
+
+	/** models compared when multiple models are given **/
+	MCMC [] models;
+	/** directories of all steps when multiple models are given, in the order they are run, null otherwise **/
+	List<String> stepDirs;
+	/** per step the step it starts from when multiple models are given, -1 to start from scratch **/
+	List<Integer> stepStartsFrom;
+	/** number of steps along a single path between two models, when multiple models are given **/
+	int pathSteps;
 	
 	public PairedPathSampler() {
 		mcmcInput.setRule(Validate.OPTIONAL);
@@ -62,6 +92,15 @@ public class PairedPathSampler extends PathSampler {
 	
 	@Override
 	public void run() throws Exception {
+		if (resumeInput.get()) {
+			loadManifest();
+			doRuns();
+			return;
+		}
+		if (modelsInput.get().size() > 1) {
+			runModelGraph();
+			return;
+		}
 		if (model2Input.get() == null || model2Input.get().getAbsolutePath().matches("^\\s$")) {
 			// looks like we need to do a single model analysis
 			// instead of paired analysis
@@ -69,49 +108,33 @@ public class PairedPathSampler extends PathSampler {
 			return;
 		}
 
-		XMLParser parser1 = new XMLParser();
-		Object o = parser1.parseFile(model1Input.get());
-		if (!(o instanceof MCMC)) {
-			throw new Exception("The model in " + model1Input.get()
-					+ " does not appear to be an MCMC analysis.");
-		}
-		model1 = (MCMC) o;
-
-		XMLParser parser2 = new XMLParser();
-		o = parser2.parseFile(model2Input.get());
-		if (!(o instanceof MCMC)) {
-			throw new Exception("The model in " + model2Input.get()
-					+ " does not appear to be an MCMC analysis.");
-		}
-		model2 = (MCMC) o;
+		model1 = parseModel(model1Input.get());
+		model2 = parseModel(model2Input.get());
 		
 		mergedSet = new HashSet<String>();
+		mergeReport = new ArrayList<String>();
 
 		mergeModel2IntoModel1();
 
-		// merge operators
-		for (Operator operator : model2.operatorsInput.get()) {
-			if (!mergedSet.contains(operator.getID())) {
-				model1.operatorsInput.setValue(operator, model1);
-			}
-		}
-
-		// merge states
-		for (StateNode stateNode : model2.startStateInput.get().stateNodeInput
-				.get()) {
-			if (!mergedSet.contains(stateNode.getID())) {
-				model1.startStateInput.get().stateNodeInput
-						.setValue(stateNode, model1);
-			}
-		}
-
+		allocateChainLengths();
 		generateStepFiles();
+		writeMergeReport();
 		
 		doRuns();
 	}
 
-	private void generateStepFiles() throws Exception {
-		// grab info from inputs
+	private MCMC parseModel(File file) throws Exception {
+		XMLParser parser = new XMLParser();
+		Object o = parser.parseFile(file);
+		if (!(o instanceof MCMC)) {
+			throw new Exception("The model in " + file
+					+ " does not appear to be an MCMC analysis.");
+		}
+		return (MCMC) o;
+	}
+
+	/** grab info from inputs and check the root directory **/
+	private void initSettings() throws Exception {
 		m_sScript = m_sScriptInput.get();
 		if (m_sScript == null) {
 			m_sScript = "cd $(dir)\n" +
@@ -133,7 +156,9 @@ public class PairedPathSampler extends PathSampler {
 		if (burnInPercentage < 0 || burnInPercentage >= 100) {
 			throw new Exception("burnInPercentage should be between 0 and 100");
 		}
-		int preBurnIn = preBurnInInput.get();
+		if (chainsPerStepInput.get() < 1) {
+			throw new Exception("chainsPerStep should be at least 1");
+		}
 
 		// root directory sanity checks
 		File rootDir = new File(rootDirInput.get());
@@ -149,7 +174,16 @@ public class PairedPathSampler extends PathSampler {
 			throw new Exception(rootDirInput.get() + " is not a directory.");
 		}
 
-		// initialise MCMC
+		String sFormat = "";
+		for (int i = m_nSteps; i > 0; i /= 10) {
+			sFormat += "#";
+		}
+		formatter = new DecimalFormat(sFormat);
+		manifest = new RunManifest(rootDirInput.get(), "diff-posterior", PathSampleAnalyser.getEstimator(alphaInput.get()), burnInPercentage);
+	}
+
+	/** step sampling from posterior and posterior2, with all other settings taken from model1 **/
+	private PairedPathSamplingStep createStep(Distribution posterior, Distribution posterior2) throws Exception {
 		PairedPathSamplingStep step = new PairedPathSamplingStep();
 		step.setID("pathSamplingStep");
 		for (Input<?> input : model1.listInputs()) {
@@ -165,103 +199,376 @@ public class PairedPathSampler extends PathSampler {
 				// TODO: handle exception
 			}
 		}
-		step.posterior2Input.setValue(model2.posteriorInput.get(), step);
+		step.posteriorInput.setValue(posterior, step);
+		step.posterior2Input.setValue(posterior2, step);
 
-		int chainLength = chainLengthInput.get();
-		// set up chain length for a single step
+		int chainLength = chainLengthInput.get() / chainsPerStepInput.get();
+		// set up chain length for a single chain of a step
 		step.burnInInput.setValue(0, step);
 		step.chainLengthInput.setValue(chainLength, step);
+		// the time budget and speculation need the throughput of steps
+		if (metricsPortInput.get() >= 0 || timeBudgetInput.get() > 0 || speculationFactorInput.get() > 0) {
+			step.progressEveryInput.setValue(PROGRESS_INTERVAL, step);
+		}
+		step.profileInput.setValue(profileInput.get(), step);
+		step.logEveryACTInput.setValue(logEveryACTInput.get(), step);
+		step.compressStateInput.setValue(compressInput.get(), step);
+		if (pipelineInput.get()) {
+			step.storeEveryInput.setValue(Math.max(1, chainLength / SNAPSHOTS_PER_STEP), step);
+		}
+		return step;
+	}
+
+	/** write beast.xml, run and resume scripts of step i, and add the step to the batch files **/
+	private void writeStepFiles(PairedPathSamplingStep step, int i, XMLProducer producer, PrintStream [] cmdFiles) throws Exception {
+		if (getStartsFrom(i) < 0) {
+			step.burnInInput.setValue(preBurnInInput.get(), step);
+		} else {
+			step.burnInInput.setValue(0, step);
+		}
+		step.disperseInput.setValue(getDispersion(i), step);
+		setChainLength(step, i);
+		addManifestStep(i, step.betaInput.get(), step.burnInInput.get());
+		String sXML = producer.toXML(step);
+		File stepDir = new File(getStepDir(i));
+		if (!stepDir.exists() && !stepDir.mkdirs()) {
+			throw new Exception("Failed to make directory "
+					+ stepDir.getName());
+		}
+		stepDir.setWritable(true, false);
+		FileOutputStream xmlFile = new FileOutputStream(
+				stepDir.getAbsoluteFile() + "/beast.xml");
+		PrintStream out = new PrintStream(xmlFile);
+		out.print(sXML);
+		out.close();
+
+		writeScripts(i, cmdFiles);
+	}
+
+	@Override
+	void generateStepFiles() throws Exception {
+		initSettings();
+
+		// initialise MCMC
+		PairedPathSamplingStep step = createStep(model1.posteriorInput.get(), model2.posteriorInput.get());
 
 		// add posterior logger
-		Logger logger = new Logger();
+		Logger logger = new TraceLogger();
 		logger.initByName("fileName", LIKELIHOOD_LOG_FILE, 
 				"log", step,
-				"logEvery", chainLength / 1000);
+				"logEvery", chainLengthInput.get() / 1000,
+				"compress", compressInput.get());
 		step.loggersInput.setValue(logger, step);
 
 		// set up directories with beast.xml files in each of them
-		String sFormat = "";
-		for (int i = m_nSteps; i > 0; i /= 10) {
-			sFormat += "#";
-		}
-		formatter = new DecimalFormat(sFormat);
-
 		XMLProducer producer = new XMLProducer();
-
-		PrintStream[] cmdFiles = new PrintStream[BeastMCMC.m_nThreads];
-		for (int i = 0; i < BeastMCMC.m_nThreads; i++) {
-			FileOutputStream outStream = (beast.app.util.Utils.isWindows() ? new FileOutputStream(
-					rootDirInput.get() + "/run" + i + ".bat")
-					: new FileOutputStream(rootDirInput.get() + "/run" + i
-							+ ".sh"));
-			cmdFiles[i] = new PrintStream(outStream);
-		}
-
-		for (int i = 0; i < m_nSteps; i++) {
-			if (i < BeastMCMC.m_nThreads) {
-				step.burnInInput.setValue(preBurnIn, step);
-			} else {
-				step.burnInInput.setValue(0, step);
-			}
+		PrintStream[] cmdFiles = openCmdFiles();
+		// i runs over all chains of all steps
+		int nChains = chainsPerStepInput.get();
+		for (int i = 0; i < m_nSteps * nChains; i++) {
 			// create XML for a single step
-			double beta = nextBeta(schemeInput.get(), i, m_nSteps-1	, alphaInput.get());
+			double beta = nextBeta(schemeInput.get(), i / nChains, m_nSteps-1	, alphaInput.get());
 			System.err.println(i + " " + beta);
 //					betaDistribution != null ? betaDistribution
 //					.inverseCumulativeProbability((i + 0.0) / (m_nSteps - 1))
 //					: (i + 0.0) / (m_nSteps - 1);
 			step.setInputValue("beta", beta);
-			String sXML = producer.toXML(step);
-			File stepDir = new File(getStepDir(i));
-			if (!stepDir.exists() && !stepDir.mkdir()) {
-				throw new Exception("Failed to make directory "
-						+ stepDir.getName());
-			}
-			stepDir.setWritable(true, false);
-			FileOutputStream xmlFile = new FileOutputStream(
-					stepDir.getAbsoluteFile() + "/beast.xml");
-			PrintStream out = new PrintStream(xmlFile);
-			out.print(sXML);
-			out.close();
-
-			String cmd = getCommand(stepDir.getAbsolutePath(), i);
-			FileOutputStream cmdFile = (beast.app.util.Utils.isWindows() ? new FileOutputStream(
-					stepDir.getAbsoluteFile() + "/run.bat")
-					: new FileOutputStream(stepDir.getAbsoluteFile()
-							+ "/run.sh"));
-			PrintStream out2 = new PrintStream(cmdFile);
-			out2.print(cmd);
-			out2.close();
-
-			cmdFile = (beast.app.util.Utils.isWindows() ? new FileOutputStream(
-					stepDir.getAbsoluteFile() + "/resume.bat")
-					: new FileOutputStream(stepDir.getAbsoluteFile()
-							+ "/resume.sh"));
-			cmd = cmd.replace("-overwrite", "-resume");
-			out2 = new PrintStream(cmdFile);
-			out2.print(cmd);
-			out2.close();
-			// TODO: probably more efficient to group cmdFiles in block of
-			// #steps/#threads
-			// instead of skipping #threads steps every time.
-			if (i >= BeastMCMC.m_nThreads) {
-				String copyCmd = (beast.app.util.Utils.isWindows() ? "copy "
-						+ getStepDir(i - BeastMCMC.m_nThreads)
-						+ "\\beast.xml.state " + getStepDir(i) : "cp "
-						+ getStepDir(i - BeastMCMC.m_nThreads)
-						+ "/beast.xml.state " + getStepDir(i));
-				cmdFiles[i % BeastMCMC.m_nThreads].print(copyCmd);
-			}
-			cmdFiles[i % BeastMCMC.m_nThreads].print(cmd);
-			File script = new File(stepDir.getAbsoluteFile()
-					+ (beast.app.util.Utils.isWindows() ? "/run.bat"
-							: "/run.sh"));
-			script.setExecutable(true);
+			writeStepFiles(step, i, producer, cmdFiles);
 		}
 		for (int k = 0; k < BeastMCMC.m_nThreads; k++) {
 			cmdFiles[k].close();
 		}
+		calibrateHosts();
+		manifest.write();
+		// from here on, every chain counts as a step
+		m_nSteps = manifest.size();
 	} // initAndValidate
 
+	/**
+	 * Compare all models in modelsInput. All models are merged into the first one, and paths
+	 * are sampled between the pairs of models on a spanning tree. Every model has a single endpoint
+	 * chain, shared by all paths that start or end in it, which logs the posterior differences
+	 * of all these paths.
+	 */
+	private void runModelGraph() throws Exception {
+		if (pilotFractionInput.get() > 0) {
+			Log.warning.println("pilotFraction is ignored when comparing more than two models: all steps get chainLength");
+		}
+		List<File> files = modelsInput.get();
+		int k = files.size();
+		models = new MCMC[k];
+		for (int i = 0; i < k; i++) {
+			models[i] = parseModel(files.get(i));
+		}
+		// parent of every model in the spanning tree, rooted at the first model
+		int [] parent;
+		if (orderInput.get() == Order.similarity) {
+			parent = similarityTree();
+		} else {
+			parent = new int[k];
+			for (int i = 0; i < k; i++) {
+				parent[i] = i - 1;
+			}
+		}
+
+		mergedSet = new HashSet<String>();
+		mergeReport = new ArrayList<String>();
+		Map<String, BEASTObject> objects1 = new HashMap<String, BEASTObject>();
+		collectObjects((BEASTObject) models[0], objects1);
+		for (int i = 1; i < k; i++) {
+			mergeReport.add("# " + files.get(i).getPath());
+			mergeModel(objects1, "the models before it", models[0], models[i]);
+			collectObjects((BEASTObject) models[i], objects1);
+		}
+		model1 = models[0];
+
+		generateModelGraphFiles(parent);
+		writeMergeReport();
+
+		doRuns();
+	}
+
+	/**
+	 * Maximum spanning tree (Prim) where the weight of a pair of models is the number of
+	 * objects with the same ID and structure in both, that is, the number of objects that
+	 * would be merged if only this pair was compared.
+	 * @return parent of every model in the tree, -1 for the first model
+	 */
+	private int [] similarityTree() throws Exception {
+		int k = models.length;
+		StructuralHash hasher = new StructuralHash();
+		List<Map<String, Long>> hashes = new ArrayList<Map<String, Long>>();
+		for (MCMC model : models) {
+			Map<String, BEASTObject> objects = new HashMap<String, BEASTObject>();
+			collectObjects((BEASTObject) model, objects);
+			Map<String, Long> modelHashes = new HashMap<String, Long>();
+			for (BEASTObject o : objects.values()) {
+				modelHashes.put(o.getID(), hasher.hash(o));
+			}
+			hashes.add(modelHashes);
+		}
+		int [][] similarity = new int[k][k];
+		for (int a = 0; a < k; a++) {
+			for (int b = a + 1; b < k; b++) {
+				for (Map.Entry<String, Long> entry : hashes.get(a).entrySet()) {
+					if (entry.getValue().equals(hashes.get(b).get(entry.getKey()))) {
+						similarity[a][b]++;
+					}
+				}
+				similarity[b][a] = similarity[a][b];
+			}
+		}
+
+		int [] parent = new int[k];
+		int [] best = new int[k];
+		boolean [] inTree = new boolean[k];
+		inTree[0] = true;
+		parent[0] = -1;
+		for (int i = 1; i < k; i++) {
+			parent[i] = 0;
+			best[i] = similarity[0][i];
+		}
+		for (int n = 1; n < k; n++) {
+			int next = -1;
+			for (int i = 1; i < k; i++) {
+				if (!inTree[i] && (next < 0 || best[i] > best[next])) {
+					next = i;
+				}
+			}
+			inTree[next] = true;
+			System.err.println("Pairing model " + parent[next] + " with model " + next + ": " + best[next] + " objects in common");
+			for (int i = 1; i < k; i++) {
+				if (!inTree[i] && similarity[next][i] > best[i]) {
+					best[i] = similarity[next][i];
+					parent[i] = next;
+				}
+			}
+		}
+		return parent;
+	}
+
+	/**
+	 * Set up the step directories for all paths in the tree given by parent, in depth first order
+	 * from the first model. Along a path every step starts from the state of its neighbour, and the first
+	 * step of a path starts from the endpoint of the model the path leaves from, as recorded in the manifest.
+	 * Chain j of a step starts from chain j of its neighbour. Every step only gets the state nodes and operators
+	 * of the models it calculates. Also writes MODEL_GRAPH_FILE for the analyser.
+	 */
+	private void generateModelGraphFiles(int [] parent) throws Exception {
+		initSettings();
+		int k = models.length;
+		List<List<Integer>> neighbours = new ArrayList<List<Integer>>();
+		for (int i = 0; i < k; i++) {
+			neighbours.add(new ArrayList<Integer>());
+		}
+		for (int i = 1; i < k; i++) {
+			neighbours.get(parent[i]).add(i);
+			neighbours.get(i).add(parent[i]);
+		}
+
+		// every path has its own column, listed in MODEL_GRAPH_FILE
+		manifest = new RunManifest(rootDirInput.get(), null, manifest.getEstimator(), burnInPercentage);
+		double [] pathBetas = new double[m_nSteps];
+		for (int i = 0; i < m_nSteps; i++) {
+			pathBetas[i] = nextBeta(schemeInput.get(), i, m_nSteps - 1, alphaInput.get());
+		}
+		manifest.setPathBetas(pathBetas);
+
+		// order steps depth first, with all chains of a step in a row
+		int nChains = chainsPerStepInput.get();
+		stepDirs = new ArrayList<String>();
+		List<int[]> edges = new ArrayList<int[]>();
+		List<Integer> stepModel = new ArrayList<Integer>();
+		List<Integer> stepEdge = new ArrayList<Integer>();
+		List<Integer> stepIndex = new ArrayList<Integer>();
+		stepStartsFrom = new ArrayList<Integer>();
+		// first chain of the endpoint of every model
+		int [] modelStep = new int[k];
+		List<Integer> stack = new ArrayList<Integer>();
+		stack.add(0);
+		while (stack.size() > 0) {
+			int b = stack.remove(stack.size() - 1);
+			// chain 0 of the step the next step starts from, -1 to start from scratch
+			int previous = -1;
+			if (parent[b] >= 0) {
+				// steps of the path towards this model, from the parent end to this end
+				edges.add(new int[]{parent[b], b});
+				previous = modelStep[parent[b]];
+				for (int i : interiorSteps()) {
+					for (int j = 0; j < nChains; j++) {
+						stepDirs.add(getChainDir(rootDirInput.get() + "/path" + parent[b] + "-" + b + "/step" + formatter.format(i), j));
+						stepModel.add(-1);
+						stepEdge.add(edges.size() - 1);
+						stepIndex.add(i);
+						stepStartsFrom.add(previous >= 0 ? previous + j : -1);
+					}
+					previous = stepDirs.size() - nChains;
+				}
+			}
+			modelStep[b] = stepDirs.size();
+			for (int j = 0; j < nChains; j++) {
+				stepDirs.add(getChainDir(rootDirInput.get() + "/model" + b, j));
+				stepModel.add(b);
+				stepEdge.add(-1);
+				stepIndex.add(-1);
+				stepStartsFrom.add(previous >= 0 ? previous + j : -1);
+			}
+			for (int j = neighbours.get(b).size() - 1; j >= 0; j--) {
+				int c = neighbours.get(b).get(j);
+				if (parent[c] == b) {
+					stack.add(c);
+				}
+			}
+		}
+
+		XMLProducer producer = new XMLProducer();
+		PrintStream [] cmdFiles = openCmdFiles();
+		for (int n = 0; n < stepDirs.size(); n++) {
+			PairedPathSamplingStep step;
+			List<PosteriorDifference> diffs = new ArrayList<PosteriorDifference>();
+			if (stepModel.get(n) >= 0) {
+				// endpoint: sample from a single model, and log the differences with all its neighbours
+				int a = stepModel.get(n);
+				List<Integer> others = neighbours.get(a);
+				step = createStep(models[a].posteriorInput.get(), models[others.get(0)].posteriorInput.get());
+				for (int j = 1; j < others.size(); j++) {
+					step.extraPosteriorInput.setValue(models[others.get(j)].posteriorInput.get(), step);
+				}
+				step.setInputValue("beta", 0.0);
+				for (int b : others) {
+					if (parent[b] == a) {
+						diffs.add(createDifference(a, b));
+					} else {
+						diffs.add(createDifference(b, a));
+					}
+				}
+			} else {
+				int [] edge = edges.get(stepEdge.get(n));
+				step = createStep(models[edge[0]].posteriorInput.get(), models[edge[1]].posteriorInput.get());
+				double beta = nextBeta(schemeInput.get(), stepIndex.get(n), m_nSteps - 1, alphaInput.get());
+				step.setInputValue("beta", beta);
+				diffs.add(createDifference(edge[0], edge[1]));
+			}
+			restrictToPosteriors(step);
+			Logger logger = new TraceLogger();
+			for (PosteriorDifference diff : diffs) {
+				logger.loggersInput.setValue(diff, logger);
+			}
+			logger.initByName("fileName", LIKELIHOOD_LOG_FILE, 
+					"logEvery", chainLengthInput.get() / 1000,
+					"compress", compressInput.get());
+			step.loggersInput.setValue(logger, step);
+			writeStepFiles(step, n, producer, cmdFiles);
+		}
+		for (int i = 0; i < BeastMCMC.m_nThreads; i++) {
+			cmdFiles[i].close();
+		}
+
+		// record which log files make up each path, with the directories of the chains of a step separated by commas
+		PrintStream out = new PrintStream(new FileOutputStream(rootDirInput.get() + fileSep + MODEL_GRAPH_FILE));
+		for (int i = 0; i < k; i++) {
+			out.println("model\t" + i + "\t" + modelsInput.get().get(i).getPath() + "\t" + rootDirInput.get() + "/model" + i);
+		}
+		for (int [] edge : edges) {
+			out.print("edge\t" + edge[0] + "\t" + edge[1]);
+			for (int i = 0; i < m_nSteps; i++) {
+				double beta = nextBeta(schemeInput.get(), i, m_nSteps - 1, alphaInput.get());
+				String dir;
+				if (i == 0 || i == m_nSteps - 1) {
+					// beta = 0 samples from the first model of the pair, beta = 1 from the second
+					dir = rootDirInput.get() + "/model" + (beta < 0.5 ? edge[0] : edge[1]);
+				} else {
+					dir = rootDirInput.get() + "/path" + edge[0] + "-" + edge[1] + "/step" + formatter.format(i);
+				}
+				for (int j = 0; j < nChains; j++) {
+					out.print((j == 0 ? "\t" : ",") + getChainDir(dir, j));
+				}
+			}
+			out.println();
+		}
+		out.close();
+
+		// from here on, steps are numbered in the order they are run
+		pathSteps = m_nSteps;
+		m_nSteps = stepDirs.size();
+		calibrateHosts();
+		manifest.write();
+	}
+
+	/** indices of the steps strictly between the endpoints of a path, in order of increasing beta **/
+	private List<Integer> interiorSteps() {
+		List<Integer> steps = new ArrayList<Integer>();
+		boolean increasing = nextBeta(schemeInput.get(), 0, m_nSteps - 1, alphaInput.get()) < 0.5; 
+		for (int i = 1; i < m_nSteps - 1; i++) {
+			steps.add(increasing ? i : m_nSteps - 1 - i);
+		}
+		return steps;
+	}
+
+	private PosteriorDifference createDifference(int a, int b) throws Exception {
+		PosteriorDifference diff = new PosteriorDifference();
+		diff.initByName("posterior", models[a].posteriorInput.get(),
+				"posterior2", models[b].posteriorInput.get(),
+				"label", a + "-" + b);
+		return diff;
+	}
+
+	@Override
+	int getStartsFrom(int i) {
+		if (stepStartsFrom != null) {
+			return stepStartsFrom.get(i);
+		}
+		return super.getStartsFrom(i);
+	}
+
+	@Override
+	String getStepDir(int iParticle) {
+		if (stepDirs != null) {
+			return stepDirs.get(iParticle);
+		}
+		return super.getStepDir(iParticle);
+	}
+
 
  	/** sigmoid shaped steps **/
 	static public double nextBeta(Scheme scheme, int step, int pathSteps, Double alpha) {
@@ -289,124 +596,188 @@ public class PairedPathSampler extends PathSampler {
 
 	/**
 	 * replace all objects in model2 with those in model1 if they have the same
-	 * functionality.
+	 * functionality, that is, the same ID, class and structurally identical inputs.
+	 * Structural hashes are computed bottom-up once for every object, and objects with equal
+	 * hashes are compared input by input, so this takes time linear in the size of the models.
 	 */
 	private void mergeModel2IntoModel1() throws Exception {
-		// collect objects from model 1 and model 2
+		// collect objects from model 1
 		Map<String, BEASTObject> objects1 = new HashMap<String, BEASTObject>();
 		collectObjects((BEASTObject) model1, objects1);
+		mergeModel(objects1, model1Input.get().getName(), model1, model2);
+	}
+
+	/**
+	 * replace objects in source by those in objects1 with the same ID, class and structurally
+	 * identical inputs, and add operators and state nodes of source that are not merged to target.
+	 */
+	private void mergeModel(Map<String, BEASTObject> objects1, String targetName, MCMC target, MCMC source) throws Exception {
+		// collect objects from source
 		Map<String, BEASTObject> objects2 = new HashMap<String, BEASTObject>();
-		collectObjects((BEASTObject) model2, objects2);
-
-		// merge those objects in model 2 that have are of the same class
-		// and have the same inputs as in model 1
-		boolean progress = true;
-		while (progress) {
-			// iterate over graph multiple times till no more merging takes
-			// place
-			progress = false;
-			Set<String> objectSet = new HashSet<String>(); 
-			objectSet.addAll(objects2.keySet());
-			for (String id2 : objectSet) {
-				BEASTObject plugin1 = objects1.get(id2);
-				BEASTObject plugin2 = objects2.get(id2);
-				if (plugin1 != null) {
-					if (haveCommonInputs(plugin1, plugin2)) {
-						mergePlugins(plugin1, plugin2);
-						objects2.remove(id2);
-						progress = true;
+		collectObjects((BEASTObject) source, objects2);
+
+		// find objects in source that are of the same class
+		// and have the same inputs as in objects1
+		StructuralHash hasher = new StructuralHash();
+		Map<BEASTObject, BEASTObject> replacements = new IdentityHashMap<BEASTObject, BEASTObject>();
+		Set<String> merged = new HashSet<String>();
+		for (String id2 : new TreeSet<String>(objects2.keySet())) {
+			BEASTObject plugin1 = objects1.get(id2);
+			BEASTObject plugin2 = objects2.get(id2);
+			if (plugin1 != null) {
+				String difference = (plugin1 == plugin2 ? null : hasher.explainDifference(plugin1, plugin2));
+				if (difference == null) {
+					System.err.println("Merging " + plugin1.getID());
+					merged.add(plugin1.getID());
+					if (plugin1 != plugin2) {
+						replacements.put(plugin2, plugin1);
 					}
+					mergeReport.add("merged\t" + id2 + "\tsame class " + plugin1.getClass().getName() + " and identical inputs");
+				} else {
+					mergeReport.add("kept\t" + id2 + "\t" + difference);
 				}
+			} else {
+				mergeReport.add("kept\t" + id2 + "\tno object with this ID in " + targetName);
 			}
 		}
+		for (String id : merged) {
+			objects2.remove(id);
+		}
+		mergedSet.addAll(merged);
+
+		// point all remaining objects of source to the merged objects
+		replaceInputs((BEASTObject) source, replacements);
+		for (BEASTObject plugin2 : objects2.values()) {
+			replaceInputs(plugin2, replacements);
+		}
 
 		// ensure IDs are unique
 		for (String id2 : objects2.keySet()) {
 			if (objects1.keySet().contains(id2)) {
 				int i = 2;
-				while (objects1.keySet().contains(id2 + i)) {
+				while (objects1.keySet().contains(id2 + i) || objects2.keySet().contains(id2 + i)) {
 					i++;
 				}
 				BEASTObject plugin = objects2.get(id2);
 				plugin.setID(id2 + i);
 			}
 		}
+
+		// merge operators
+		for (Operator operator : source.operatorsInput.get()) {
+			if (!merged.contains(operator.getID())) {
+				target.operatorsInput.setValue(operator, target);
+			}
+		}
+
+		// merge states
+		for (StateNode stateNode : source.startStateInput.get().stateNodeInput
+				.get()) {
+			if (!merged.contains(stateNode.getID())) {
+				target.startStateInput.get().stateNodeInput
+						.setValue(stateNode, target);
+			}
+		}
 	}
 
-	/** replace plugin2 of model2 by plugin1 **/
-	private void mergePlugins(BEASTObject plugin1, BEASTObject plugin2) throws Exception {
-		
-		System.err.println("Merging " + plugin1.getID());
-		mergedSet.add(plugin1.getID());
-		
-		Set<BEASTObject> outputSet = new HashSet<BEASTObject>();
-		outputSet.addAll(plugin2.outputs);
-		for (BEASTObject output : outputSet) {
-			boolean found = false;
-			for (Input<?> input : output.listInputs()) {
-				if (input.get() != null) {
-					if (input.get() instanceof List) {
-						List list = (List<?>) input.get();
-						if (list.contains(plugin2)) {
-							list.remove(plugin2);
-							list.add(plugin1);
-							found = true;
-						}
-					} else if (input.get().equals(plugin2)) {
-						input.setValue(plugin1, output);
-						found = true;
+	/** replace values of inputs of plugin that are keys in replacements, keeping the order of list inputs **/
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private void replaceInputs(BEASTObject plugin, Map<BEASTObject, BEASTObject> replacements) throws Exception {
+		for (Input<?> input : plugin.listInputs()) {
+			Object value = input.get();
+			if (value instanceof List) {
+				List list = (List) value;
+				for (int i = 0; i < list.size(); i++) {
+					BEASTObject replacement = replacements.get(list.get(i));
+					if (replacement != null) {
+						list.set(i, replacement);
+						replacement.outputs.add(plugin);
 					}
 				}
-			}
-			if (!found) {
-				throw new Exception(
-						"Programming error: could not find plugin2 "
-								+ plugin2.getID() + " in output "
-								+ output.getID());
+			} else if (value instanceof BEASTObject && replacements.containsKey(value)) {
+				input.setValue(replacements.get(value), plugin);
 			}
 		}
 	}
 
-	/** check whether plugin1 and plugin2 share inputs **/
-	private boolean haveCommonInputs(BEASTObject plugin1, BEASTObject plugin2)
-			throws IllegalArgumentException, IllegalAccessException, Exception {
-		if (!plugin1.getClass().equals(plugin2.getClass())) {
-			return false;
+	/**
+	 * Restrict the state, operators, initialisers and loggers of a step on a model graph, which are those
+	 * of all models merged, to the ones that belong to the posteriors of the step. So a step only samples
+	 * and stores the parameters of the models it calculates, instead of those of every model.
+	 */
+	private void restrictToPosteriors(PairedPathSamplingStep step) throws Exception {
+		Set<BEASTObject> reachable = Collections.newSetFromMap(new IdentityHashMap<BEASTObject, Boolean>());
+		collectReachable(step.posteriorInput.get(), reachable);
+		collectReachable(step.posterior2Input.get(), reachable);
+		for (Distribution extra : step.extraPosteriorInput.get()) {
+			collectReachable(extra, reachable);
 		}
-		
-		for (Input<?> input1 : plugin1.listInputs()) {
-			Input<?> input2 = plugin2.getInput(input1.getName());
-			if (input1.get() == null || input2.get() == null) {
-				if (input1.get() != null || input2.get() != null) {
-					// one input is null, the other is not
-					return false;
-				}
-				// both inputs are null, so we are still fine
-			} else if (input1.get() instanceof List) {
-				List<?> list1 = (List<?>) input1.get();
-				List<?> list2 = (List<?>) input2.get();
-				if (list1.size() != list2.size()) {
-					return false;
-				}
-				for (Object o : list1) {
-					if (!list2.contains(o)) {
-						return false;
-					}
-				}
-			} else if (input1.get() instanceof String) {
-				String str1 = (String) input1.get();
-				String str2 = (String) input2.get();
-				if (!str1.trim().equals(str2.trim())) {
-					return false;
-				}
-			} else // it is a primitive or plugin
-			if (!input1.get().equals(input2.get())) {
+
+		State state = new State();
+		state.setID(model1.startStateInput.get().getID());
+		Set<BEASTObject> stateNodes = Collections.newSetFromMap(new IdentityHashMap<BEASTObject, Boolean>());
+		for (StateNode stateNode : model1.startStateInput.get().stateNodeInput.get()) {
+			if (reachable.contains(stateNode)) {
+				state.stateNodeInput.setValue(stateNode, state);
+				stateNodes.add(stateNode);
+			}
+		}
+		step.startStateInput.setValue(state, step);
+
+		List<Operator> operators = new ArrayList<Operator>(step.operatorsInput.get());
+		step.operatorsInput.get().clear();
+		for (Operator operator : operators) {
+			if (usesOnly(operator, stateNodes)) {
+				step.operatorsInput.setValue(operator, step);
+			}
+		}
+		List<StateNodeInitialiser> initialisers = new ArrayList<StateNodeInitialiser>(step.initialisersInput.get());
+		step.initialisersInput.get().clear();
+		for (StateNodeInitialiser initialiser : initialisers) {
+			if (usesOnly((BEASTObject) initialiser, stateNodes)) {
+				step.initialisersInput.setValue(initialiser, step);
+			}
+		}
+		List<Logger> loggers = new ArrayList<Logger>(step.loggersInput.get());
+		step.loggersInput.get().clear();
+		for (Logger logger : loggers) {
+			if (usesOnly(logger, stateNodes)) {
+				step.loggersInput.setValue(logger, step);
+			}
+		}
+	}
+
+	/** @return true if all state nodes plugin reaches through its inputs are in stateNodes **/
+	private boolean usesOnly(BEASTObject plugin, Set<BEASTObject> stateNodes) throws Exception {
+		Set<BEASTObject> reachable = Collections.newSetFromMap(new IdentityHashMap<BEASTObject, Boolean>());
+		collectReachable(plugin, reachable);
+		for (BEASTObject o : reachable) {
+			if (o instanceof StateNode && !stateNodes.contains(o)) {
 				return false;
 			}
 		}
 		return true;
 	}
 
+	private void collectReachable(BEASTObject plugin, Set<BEASTObject> reachable) throws Exception {
+		if (reachable.add(plugin)) {
+			for (BEASTObject plugin2 : plugin.listActivePlugins()) {
+				collectReachable(plugin2, reachable);
+			}
+		}
+	}
+
+	/** write report of merged and unmerged objects to the root directory **/
+	private void writeMergeReport() throws Exception {
+		PrintStream out = new PrintStream(new FileOutputStream(rootDirInput.get() + fileSep + MERGE_REPORT_FILE));
+		out.println("status\tID\treason");
+		for (String line : mergeReport) {
+			out.println(line);
+		}
+		out.close();
+		System.err.println(mergedSet.size() + " objects merged, see " + rootDirInput.get() + fileSep + MERGE_REPORT_FILE + " for details");
+	}
+
 	/**
 	 * Put all objects of a model in a map by ID If no ID is specified, an ID is
 	 * generated.
@@ -434,14 +805,19 @@ public class PairedPathSampler extends PathSampler {
 	void printDoNotRunMessage() {
 		System.out.println("batch files can be found in " + rootDirInput.get());
 		System.out.println("Run these and then run"); 
-		System.out.println(PairedPathSampleAnalyser.class.getName() + m_nSteps + " " + alphaInput.get() + " " + rootDirInput.get() + " " + burnInPercentage);
+		System.out.println("java " + PairedPathSampleAnalyser.class.getName() + " " + rootDirInput.get());
 	}
 	
 	@Override
-	void analyse() throws Exception {
-    	PairedPathSampleAnalyser analyser = new PairedPathSampleAnalyser();
-    	double marginalL = analyser.estimateMarginalLikelihood(m_nSteps, alphaInput.get(), rootDirInput.get(), burnInPercentage);
+	double analyse() throws Exception {
+    	if (manifest.getColumn() == null) {
+    		PairedPathSampleAnalyser analyser = new PairedPathSampleAnalyser();
+    		analyser.estimateBayesFactors(rootDirInput.get(), manifest.getPathBetas(), manifest.getEstimator(), burnInPercentage);
+    		return Double.NaN;
+    	}
+    	double marginalL = PathSampleAnalyser.estimate(manifest, burnInPercentage);
 		System.out.println("Bayes factor estimate = " + marginalL);
+		return marginalL;
 	}
 
 }
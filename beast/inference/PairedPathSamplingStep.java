@@ -1,8 +1,12 @@
 package beast.inference;
 
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import beast.core.BEASTObject;
 import beast.core.Description;
 import beast.core.Distribution;
 import beast.core.Loggable;
@@ -14,22 +18,36 @@ import beast.core.util.CompoundDistribution;
 import beast.util.Randomizer;
 
 @Description("Calculate marginal likelihood through path sampling for a single step when comparing two models")
-public class PairedPathSamplingStep extends PathSamplingStep implements Loggable {
+public class PairedPathSamplingStep extends PathSamplingStep implements Loggable, TraceSource {
 	public Input<Distribution> posterior2Input = new Input<Distribution>("posterior2", "posterior of the second model, the " +
 			"first one is represented by 'posterior'.", Validate.REQUIRED);
+	public Input<Boolean> shareComponentsInput = new Input<Boolean>("shareComponents", "calculate sub-distributions of posterior2 " +
+			"that are structurally identical to one of posterior only once per iteration (default true)", true);
+	public Input<List<Distribution>> extraPosteriorInput = new Input<List<Distribution>>("extraPosterior", "posteriors of further models " +
+			"that are calculated with the joint posterior, but not sampled from, so their log densities can be logged", new ArrayList<Distribution>());
 	
 	Distribution model1;
 	Distribution model2;
 	Distribution likelihood1;
 	Distribution likelihood2;
 	Distribution jointPosterior;
+
+	/** components of model2 replaced by a SharedDistribution, and the components of model1 they share **/
+	List<SharedDistribution> shared;
+	/** number of iterations each shared component was recalculated, each time sparing a calculation of its duplicate **/
+	long [] sharedCount;
 	
 	@Override
 	public void initAndValidate() throws Exception {
 		CompoundDistribution distribution;
 		distribution = new CompoundDistribution();
+		// model1 must be calculated before model2, which may read shared components of model1
+		distribution.useThreadsInput.setValue(false, distribution);
 		distribution.pDistributions.get().add(posteriorInput.get());
 		distribution.pDistributions.get().add(posterior2Input.get());
+		for (Distribution extra : extraPosteriorInput.get()) {
+			distribution.pDistributions.get().add(extra);
+		}
 		distribution.initAndValidate();
 		
 		super.initAndValidate();
@@ -43,6 +61,93 @@ public class PairedPathSamplingStep extends PathSamplingStep implements Loggable
 		model2 = posterior2Input.get();
 		distributions = ((CompoundDistribution) model2).pDistributions.get();
 		likelihood2 = distributions.get(distributions.size() - 1);
+
+		if (shareComponentsInput.get() && model1 != model2) {
+			shareComponents();
+		}
+	}
+
+	/**
+	 * Replace sub-distributions of model2 that are the same object as, or structurally identical to,
+	 * a sub-distribution of model1 by a SharedDistribution, so they are calculated only once.
+	 * The joint posterior calculates its models one after the other, never in threads, so model1 is
+	 * calculated before model2 and the shared value is always up to date when model2 reads it.
+	 */
+	void shareComponents() throws Exception {
+		shared = new ArrayList<SharedDistribution>();
+		StructuralHash hasher = new StructuralHash();
+		Map<Long, Distribution> components1 = new HashMap<Long, Distribution>();
+		for (Distribution d : ((CompoundDistribution) model1).pDistributions.get()) {
+			collectComponents(d, hasher, components1);
+		}
+		shareComponents((CompoundDistribution) model2, hasher, components1);
+		if (shared.size() > 0) {
+			System.err.println("Sharing " + shared.size() + " component(s) of posterior2 with posterior:");
+			for (SharedDistribution d : shared) {
+				System.err.println("  " + d.getID());
+			}
+		}
+		sharedCount = new long[shared.size()];
+	}
+
+	private void collectComponents(Distribution d, StructuralHash hasher, Map<Long, Distribution> components) throws Exception {
+		Long hash = hasher.hash(d);
+		if (!components.containsKey(hash)) {
+			components.put(hash, d);
+		}
+		if (d instanceof CompoundDistribution) {
+			for (Distribution d2 : ((CompoundDistribution) d).pDistributions.get()) {
+				collectComponents(d2, hasher, components);
+			}
+		}
+	}
+
+	private void shareComponents(CompoundDistribution compound, StructuralHash hasher, Map<Long, Distribution> components1) throws Exception {
+		List<Distribution> distributions = compound.pDistributions.get();
+		for (int i = 0; i < distributions.size(); i++) {
+			Distribution d2 = distributions.get(i);
+			Distribution d1 = components1.get(hasher.hash(d2));
+			if (d1 != null && hasher.explainDifference(d1, d2) == null) {
+				SharedDistribution sharedDistribution = new SharedDistribution(d1);
+				sharedDistribution.setID(d2.getID());
+				distributions.set(i, sharedDistribution);
+				d2.outputs.remove(compound);
+				sharedDistribution.outputs.add(compound);
+				if (d1 != d2 && d2.outputs.size() == 0) {
+					// detach the duplicate, so it is not stored and restored any more
+					detach(d2);
+				}
+				shared.add(sharedDistribution);
+			} else if (d2 instanceof CompoundDistribution) {
+				shareComponents((CompoundDistribution) d2, hasher, components1);
+			}
+		}
+	}
+
+	private void detach(BEASTObject plugin) throws Exception {
+		for (Input<?> input : plugin.listInputs()) {
+			Object value = input.get();
+			if (value instanceof BEASTObject) {
+				((BEASTObject) value).outputs.remove(plugin);
+			} else if (value instanceof List) {
+				for (Object o : (List<?>) value) {
+					if (o instanceof BEASTObject) {
+						((BEASTObject) o).outputs.remove(plugin);
+					}
+				}
+			}
+		}
+	}
+
+	/** report how many calculations of duplicates sharing saved **/
+	private void reportSharedComponents(int iterations) {
+		if (shared == null || shared.size() == 0) {
+			return;
+		}
+		System.err.println("Shared components were recalculated once instead of twice in:");
+		for (int i = 0; i < shared.size(); i++) {
+			System.err.println("  " + shared.get(i).getID() + ": " + sharedCount[i] + " of " + iterations + " iterations");
+		}
 	}
 	
 	
@@ -58,15 +163,28 @@ public class PairedPathSamplingStep extends PathSamplingStep implements Loggable
     	
         double logModel1Prob = model1.calculateLogP();
         double logModel2Prob = model2.calculateLogP();        
-        oldLogLikelihood = logModel1Prob * (1.0-beta) + logModel2Prob * beta; 
-    	
+        // sample from the priors of both models only at the start of burn-in, to disperse the starting state
+        int dispersedUntil = -burnIn + Math.min(disperseInput.get(), burnIn);
+        boolean dispersing = dispersedUntil > -burnIn;
+        oldLogLikelihood = (dispersing ? getLogPrior() : logModel1Prob * (1.0-beta) + logModel2Prob * beta); 
     	
-        for (int iSample = -burnIn; iSample <= chainLength; iSample++) {
+    	final boolean recording = recordMetrics;
+        for (int iSample = startSample - burnIn; iSample <= chainLength; iSample++) {
             final int currentState = iSample;
+            if (iSample == dispersedUntil && dispersing) {
+            	dispersing = false;
+            	oldLogLikelihood = model1.getCurrentLogP() * (1.0 - beta) + model2.getCurrentLogP() * beta;
+            }
+            final boolean profiling = recording && metrics.profiling;
+            if (profiling && profiler == null) {
+            	// switched on through JMX
+            	profiler = new StepProfiler(operatorsInput.get());
+            }
+            long t = (profiling ? System.nanoTime() : 0);
 
             state.store(currentState);
             if (storeEvery > 0 && iSample % storeEvery == 0 && iSample > 0) {
-                state.storeToFile(iSample);
+                storeState(iSample);
                 // Do not store operator optimisation information
                 // since this may not be valid for the next step
                 // especially when sampling from the prior only
@@ -74,6 +192,11 @@ public class PairedPathSamplingStep extends PathSamplingStep implements Loggable
             }
 
             Operator operator = operatorSchedule.selectOperator();
+            // looked up once per iteration, and only when metrics are recorded
+            final int operatorNr = (recording ? metrics.indexOf(operator) : -1);
+            if (profiling) {
+            	t = profiler.record(operatorNr, StepProfiler.STORE, t);
+            }
             //System.out.print("\n" + iSample + " " + operator.getName()+ ":");
 
             final Distribution evaluatorDistribution = operator.getEvaluatorDistribution();
@@ -104,6 +227,9 @@ public class PairedPathSamplingStep extends PathSamplingStep implements Loggable
             }
 
             double fLogHastingsRatio = operator.proposal(evaluator);
+            if (profiling) {
+            	t = profiler.record(operatorNr, StepProfiler.PROPOSAL, t);
+            }
 
             if (fLogHastingsRatio != Double.NEGATIVE_INFINITY) {
 
@@ -112,10 +238,21 @@ public class PairedPathSamplingStep extends PathSamplingStep implements Loggable
 
                 
                 posterior.calculateLogP();
+                if (sharedCount != null) {
+                    for (int i = 0; i < sharedCount.length; i++) {
+                        if (shared.get(i).isDirtyCalculation()) {
+                            sharedCount[i]++;
+                        }
+                    }
+                }
                 logModel1Prob = model1.getArrayValue();
                 logModel2Prob = model2.getArrayValue();
                 
-                newLogLikelihood = logModel1Prob * (1.0 - beta) + logModel2Prob * beta; 
+                newLogLikelihood = (dispersing ? getLogPrior() : logModel1Prob * (1.0 - beta) + logModel2Prob * beta); 
+
+                if (profiling) {
+                	t = profiler.record(operatorNr, StepProfiler.CALCULATE, t);
+                }
 
                 logAlpha = newLogLikelihood - oldLogLikelihood + fLogHastingsRatio; //CHECK HASTINGS
                 //System.out.println(logAlpha + " " + fNewLogLikelihood + " " + fOldLogLikelihood);
@@ -127,12 +264,24 @@ public class PairedPathSamplingStep extends PathSamplingStep implements Loggable
                     if (iSample >= 0) {
                         operator.accept();
                     }
+                    if (recording) {
+                    	metrics.accepted(operatorNr);
+                    }
+                    if (profiling) {
+                    	profiler.accepted(operatorNr);
+                    }
                     //System.out.print(" accept");
                 } else {
                     // reject
                     if (iSample >= 0) {
                         operator.reject();
                     }
+                    if (recording) {
+                    	metrics.rejected(operatorNr);
+                    }
+                    if (profiling) {
+                    	profiler.rejected(operatorNr);
+                    }
                     state.restore();
                     state.restoreCalculationNodes();
                     //System.out.print(" reject");
@@ -143,17 +292,58 @@ public class PairedPathSamplingStep extends PathSamplingStep implements Loggable
                 if (iSample >= 0) {
                     operator.reject();
                 }
+                if (recording) {
+                	metrics.rejected(operatorNr);
+                }
+                if (profiling) {
+                	profiler.rejected(operatorNr);
+                }
                 state.restore();
                 //System.out.print(" direct reject");
             }
+            if (profiling) {
+            	t = profiler.record(operatorNr, StepProfiler.ACCEPT_REJECT, t);
+            }
             log(iSample);
+            if (recording) {
+            	metrics.sampled(iSample, getTraceValue());
+            }
+            if (logAdapter != null) {
+            	adaptLogging();
+            }
 
             operator.optimize(logAlpha);
             callUserFunction(iSample);
+            if (profiling) {
+            	profiler.record(operatorNr, StepProfiler.LOG, t);
+            }
         }
+        reportSharedComponents(burnIn + chainLength + 1);
     }
 
 
+	/** sum of the current log densities of both models, except their likelihoods **/
+	private double getLogPrior() {
+		double logP = 0;
+		for (Distribution d : ((CompoundDistribution) model1).pDistributions.get()) {
+			if (d != likelihood1) {
+				logP += d.getCurrentLogP();
+			}
+		}
+		for (Distribution d : ((CompoundDistribution) model2).pDistributions.get()) {
+			if (d != likelihood2) {
+				logP += d.getCurrentLogP();
+			}
+		}
+		return logP;
+	}
+
+	@Override
+	public double getTraceValue() {
+		return model1.getCurrentLogP() - model2.getCurrentLogP();
+	}
+
+
 	@Override
 	public void init(PrintStream out) throws Exception {
 		out.append("diff-posterior\t");
@@ -162,7 +352,7 @@ public class PairedPathSamplingStep extends PathSamplingStep implements Loggable
 
 	@Override
 	public void log(int nSample, PrintStream out) {
-		out.append(model1.getCurrentLogP() - model2.getCurrentLogP() + "\t");
+		out.append(getTraceValue() + "\t");
 	}
 
 
@@ -0,0 +1,360 @@
+package beast.inference;
+
+import java.io.File;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Analysis engine shared by the analysers: reads the trace of every step once, feeds it to
+ * the accumulators of all registered estimators in a single scan, and reports the estimates
+ * side by side. By default thermodynamic integration (trapezoid rule), stepping stone
+ * sampling and Simpson's rule are registered; further estimators can be added with register().
+ */
+public class PathAnalysis {
+	public final static String TRAPEZOID = "TI";
+	public final static String STEPPING_STONE = "SS";
+	public final static String SIMPSON = "Simpson";
+
+	final List<PathEstimator> estimators = new ArrayList<PathEstimator>();
+
+	/** contributions of every step, per estimator, of the last analysis **/
+	double [][] contributions;
+	double [] means;
+	double [] ESSs;
+	double [] RHats;
+	int [] logEverys;
+
+	public PathAnalysis() {
+		register(new Trapezoid());
+		register(new SteppingStone());
+		register(new Simpson());
+	}
+
+	public void register(PathEstimator estimator) {
+		estimators.add(estimator);
+	}
+
+	public List<PathEstimator> getEstimators() {
+		return estimators;
+	}
+
+	/**
+	 * Analyse the column of the logs of all steps of a path, print a table with per step
+	 * information followed by the estimates of all estimators.
+	 * @param betas beta of every step, in the order of the log files
+	 * @param defaultEstimator name of the estimator whose per step contributions are shown and which is returned
+	 * @return estimate of the default estimator
+	 */
+	public double analyse(String [] logFiles, String column, double [] betas, int burnInPercentage, String defaultEstimator) throws Exception {
+		String [][] chainLogFiles = new String[logFiles.length][];
+		for (int i = 0; i < logFiles.length; i++) {
+			chainLogFiles[i] = new String[]{logFiles[i]};
+		}
+		return analyse(chainLogFiles, column, betas, burnInPercentage, defaultEstimator);
+	}
+
+	/**
+	 * As analyse above, for steps that ran several independent chains. Burn-in is removed from
+	 * every chain, and the remaining samples of all chains of a step are pooled. For steps with 
+	 * more than one chain, the R-hat of the chains is reported as well.
+	 * @param logFiles per step the log files of all its chains
+	 */
+	public double analyse(String [][] logFiles, String column, double [] betas, int burnInPercentage, String defaultEstimator) throws Exception {
+		compute(logFiles, column, betas, burnInPercentage);
+		int nSteps = logFiles.length;
+		boolean hasChains = false;
+		for (String [] chainLogFiles : logFiles) {
+			hasChains |= chainLogFiles.length > 1;
+		}
+
+		int iDefault = getIndex(defaultEstimator);
+		System.out.println("\nStep        beta        " + pad(column, 12) + " contribution ESS         logEvery" + 
+				(hasChains ? "    R-hat" : ""));
+		for (int i = 0; i < nSteps; i++) {
+			System.out.println(format(i) + " " + format(betas[i]) + " " + format(means[i]) + " " +
+					format(contributions[iDefault][i]) + " " + format(ESSs[i]) + " " + format(logEverys[i]) +
+					(hasChains ? " " + format(RHats[i]) : ""));
+		}
+		System.out.println("\nEstimator   estimate");
+		for (int e = 0; e < estimators.size(); e++) {
+			System.out.println(format(estimators.get(e).getName()) + " " + format(sum(contributions[e])) +
+					(e == iDefault ? " (reported)" : ""));
+		}
+		System.out.println();
+		return sum(contributions[iDefault]);
+	}
+
+	/**
+	 * Analyse the column of the logs of all steps of a path without reporting anything, 
+	 * after which per step statistics and contributions are available through the getters.
+	 * @param logFiles per step the log files of all its chains
+	 */
+	public void compute(String [][] logFiles, String column, double [] betas, int burnInPercentage) throws Exception {
+		int nSteps = logFiles.length;
+		means = new double[nSteps];
+		ESSs = new double[nSteps];
+		RHats = new double[nSteps];
+		logEverys = new int[nSteps];
+		PathEstimator.StepAccumulator [][] accumulators = new PathEstimator.StepAccumulator[estimators.size()][nSteps];
+		for (int i = 0; i < nSteps; i++) {
+			double [][] traces = new double[logFiles[i].length][];
+			double sum = 0;
+			int n = 0;
+			for (int j = 0; j < traces.length; j++) {
+				TraceLogReader reader = new TraceLogReader(new File(logFiles[i][j]));
+				traces[j] = reader.getTrace(column, burnInPercentage);
+				ESSs[i] += TraceStatistics.calcESS(traces[j]);
+				sum += TraceStatistics.mean(traces[j]) * traces[j].length;
+				n += traces[j].length;
+				logEverys[i] = reader.getLogEvery();
+			}
+			scan(traces, i, betas, accumulators);
+			means[i] = sum / n;
+			RHats[i] = TraceStatistics.calcRHat(traces);
+		}
+		contributions = getContributions(accumulators, betas);
+	}
+
+	/** @return per step mean of the column after burn-in, pooled over chains, of the last analysis **/
+	public double [] getMeans() {
+		return means;
+	}
+
+	/** @return per step effective sample size, summed over chains, of the last analysis **/
+	public double [] getESSs() {
+		return ESSs;
+	}
+
+	/** @return per step R-hat of the chains of the last analysis **/
+	public double [] getRHats() {
+		return RHats;
+	}
+
+	public int [] getLogEverys() {
+		return logEverys;
+	}
+
+	/** @return contribution of every step to the estimate of the named estimator in the last analysis **/
+	public double [] getContributions(String estimator) {
+		return contributions[getIndex(estimator)];
+	}
+
+	/** @return estimate of the named estimator in the last analysis **/
+	public double getEstimate(String estimator) {
+		return sum(getContributions(estimator));
+	}
+
+	/** feed a trace of step i to a new accumulator of every estimator, visiting every value once **/
+	public void scan(double [] trace, int i, double [] betas, PathEstimator.StepAccumulator [][] accumulators) {
+		scan(new double[][]{trace}, i, betas, accumulators);
+	}
+
+	/** feed the traces of all chains of step i to a new accumulator of every estimator, visiting every value once **/
+	public void scan(double [][] traces, int i, double [] betas, PathEstimator.StepAccumulator [][] accumulators) {
+		int nEstimators = estimators.size();
+		PathEstimator.StepAccumulator [] stepAccumulators = new PathEstimator.StepAccumulator[nEstimators];
+		for (int e = 0; e < nEstimators; e++) {
+			stepAccumulators[e] = estimators.get(e).newAccumulator(i, betas);
+			accumulators[e][i] = stepAccumulators[e];
+		}
+		for (double [] trace : traces) {
+			for (double value : trace) {
+				for (int e = 0; e < nEstimators; e++) {
+					stepAccumulators[e].add(value);
+				}
+			}
+		}
+	}
+
+	/** @return per estimator the contribution of every step **/
+	public double [][] getContributions(PathEstimator.StepAccumulator [][] accumulators, double [] betas) {
+		double [][] contributions = new double[estimators.size()][];
+		for (int e = 0; e < estimators.size(); e++) {
+			contributions[e] = estimators.get(e).getContributions(accumulators[e], betas);
+		}
+		return contributions;
+	}
+
+	public int getIndex(String name) {
+		for (int e = 0; e < estimators.size(); e++) {
+			if (estimators.get(e).getName().equals(name)) {
+				return e;
+			}
+		}
+		throw new IllegalArgumentException("Unknown estimator " + name);
+	}
+
+	/** @return weights[i] = betas[i+1] - betas[i] **/
+	public static double [] getWeights(double [] betas) {
+		double [] weights = new double[betas.length - 1];
+		for (int i = 0; i < weights.length; i++) {
+			weights[i] = betas[i + 1] - betas[i];
+		}
+		return weights;
+	}
+
+	public static double sum(double [] values) {
+		double sum = 0;
+		for (double d : values) {
+			sum += d;
+		}
+		return sum;
+	}
+
+	static String format(double d) {
+		DecimalFormat format = new DecimalFormat("###.####");
+		return pad(format.format(d), 12);
+	}
+
+	static String format(String s) {
+		return pad(s, 12);
+	}
+
+	static String pad(String s, int width) {
+		if (s.length() < width) {
+			s += "            ".substring(0, width - s.length());
+		}
+		return s;
+	}
+
+	/** mean of the trace **/
+	public static class MeanAccumulator implements PathEstimator.StepAccumulator {
+		double sum;
+		int n;
+
+		@Override
+		public void add(double value) {
+			sum += value;
+			n++;
+		}
+
+		public double getMean() {
+			return (n > 0 ? sum / n : Double.NaN);
+		}
+	}
+
+	/** log of the mean of exp(weight * value), with a running maximum to avoid overflow **/
+	public static class LogMeanExpAccumulator implements PathEstimator.StepAccumulator {
+		final double weight;
+		double max = Double.NEGATIVE_INFINITY;
+		double sum;
+		int n;
+
+		public LogMeanExpAccumulator(double weight) {
+			this.weight = weight;
+		}
+
+		@Override
+		public void add(double value) {
+			double x = weight * value;
+			if (x > max) {
+				sum = sum * Math.exp(max - x) + 1.0;
+				max = x;
+			} else {
+				sum += Math.exp(x - max);
+			}
+			n++;
+		}
+
+		public double getLogMeanExp() {
+			return (n > 0 ? max + Math.log(sum / n) : Double.NaN);
+		}
+	}
+
+	/** step contributions -c[i] * mean[i] for integration coefficients c **/
+	static double [] integrate(PathEstimator.StepAccumulator [] accumulators, double [] coefficients) {
+		double [] contributions = new double[accumulators.length];
+		for (int i = 0; i < accumulators.length; i++) {
+			contributions[i] = -coefficients[i] * ((MeanAccumulator) accumulators[i]).getMean();
+		}
+		return contributions;
+	}
+
+	/** thermodynamic integration of the step means with the trapezoid rule **/
+	public static class Trapezoid implements PathEstimator {
+		@Override
+		public String getName() {
+			return TRAPEZOID;
+		}
+
+		@Override
+		public StepAccumulator newAccumulator(int i, double [] betas) {
+			return new MeanAccumulator();
+		}
+
+		@Override
+		public double [] getContributions(StepAccumulator [] accumulators, double [] betas) {
+			double [] weights = getWeights(betas);
+			double [] coefficients = new double[betas.length];
+			for (int i = 0; i < weights.length; i++) {
+				coefficients[i] += weights[i] / 2.0;
+				coefficients[i + 1] += weights[i] / 2.0;
+			}
+			return integrate(accumulators, coefficients);
+		}
+	}
+
+	/**
+	 * Stepping stone sampling, using formula top right at page 153 of
+	 * Xie W, Lewis PO, Fan Y, Kuo L, Chen MH. 2011. Improving marginal
+	 * likelihood estimation for Bayesian phylogenetic model selection.
+	 * Syst Biol. 60:150-160.
+	 * The last step does not contribute.
+	 */
+	public static class SteppingStone implements PathEstimator {
+		@Override
+		public String getName() {
+			return STEPPING_STONE;
+		}
+
+		@Override
+		public StepAccumulator newAccumulator(int i, double [] betas) {
+			return new LogMeanExpAccumulator(i < betas.length - 1 ? betas[i + 1] - betas[i] : 0.0);
+		}
+
+		@Override
+		public double [] getContributions(StepAccumulator [] accumulators, double [] betas) {
+			double [] contributions = new double[accumulators.length];
+			for (int i = 0; i < accumulators.length - 1; i++) {
+				contributions[i] = -((LogMeanExpAccumulator) accumulators[i]).getLogMeanExp();
+			}
+			return contributions;
+		}
+	}
+
+	/**
+	 * thermodynamic integration of the step means with Simpson's rule for unequal intervals,
+	 * using the trapezoid rule for the last interval if the number of intervals is odd
+	 */
+	public static class Simpson implements PathEstimator {
+		@Override
+		public String getName() {
+			return SIMPSON;
+		}
+
+		@Override
+		public StepAccumulator newAccumulator(int i, double [] betas) {
+			return new MeanAccumulator();
+		}
+
+		@Override
+		public double [] getContributions(StepAccumulator [] accumulators, double [] betas) {
+			double [] weights = getWeights(betas);
+			double [] coefficients = new double[betas.length];
+			int i = 0;
+			for (; i + 1 < weights.length; i += 2) {
+				double h0 = weights[i], h1 = weights[i + 1];
+				double f = (h0 + h1) / 6.0;
+				coefficients[i] += f * (2.0 - h1 / h0);
+				coefficients[i + 1] += f * (h0 + h1) * (h0 + h1) / (h0 * h1);
+				coefficients[i + 2] += f * (2.0 - h0 / h1);
+			}
+			if (i < weights.length) {
+				coefficients[i] += weights[i] / 2.0;
+				coefficients[i + 1] += weights[i] / 2.0;
+			}
+			return integrate(accumulators, coefficients);
+		}
+	}
+}
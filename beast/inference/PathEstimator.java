@@ -0,0 +1,25 @@
+package beast.inference;
+
+/**
+ * Estimator of a log marginal likelihood (or log Bayes factor) from the traces of the steps
+ * of a path. Every estimator gets an accumulator per step, which sees every value of the
+ * trace of that step exactly once, so that any number of estimators can share a single
+ * scan over each trace (see PathAnalysis).
+ *
+ * Betas are given in step order, and the estimate is the sum of the step contributions.
+ */
+public interface PathEstimator {
+
+	/** collects what an estimator needs from the trace of a single step **/
+	public interface StepAccumulator {
+		void add(double value);
+	}
+
+	String getName();
+
+	/** @return new accumulator for the trace of step i **/
+	StepAccumulator newAccumulator(int i, double [] betas);
+
+	/** @return contribution of every step to the estimate, given the filled accumulators of all steps **/
+	double [] getContributions(StepAccumulator [] accumulators, double [] betas);
+}
@@ -1,9 +1,10 @@
 package beast.inference;
 
 
+import java.awt.GraphicsEnvironment;
+import java.io.File;
 import java.text.DecimalFormat;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 import org.apache.commons.math.distribution.BetaDistribution;
 import org.apache.commons.math.distribution.BetaDistributionImpl;
@@ -11,7 +12,6 @@ import org.apache.commons.math.distribution.BetaDistributionImpl;
 import beast.app.util.ConsoleApp;
 import beast.core.Description;
 import beast.core.Input;
-import beast.util.LogAnalyser;
 
 
 
@@ -21,7 +21,14 @@ public class PathSampleAnalyser extends beast.core.Runnable {
 	public Input<Double> alphaInput = new Input<Double>("alpha", "alpha parameter of Beta(alpha,1) distribution used to space out steps, default 0.3" +
 			"If alpha <= 0, uniform intervals are used.", 0.3);
 	public Input<Integer> stepsInput = new Input<Integer>("nrOfSteps", "the number of steps to use, default 8", 8);
-	public Input<Integer> burnInPercentageInput = new Input<Integer>("burnInPercentage", "burn-In Percentage used for analysing log files", 50);
+	public Input<Integer> burnInPercentageInput = new Input<Integer>("burnInPercentage", "burn-In Percentage used for analysing log files. " +
+			"If not specified, the one in the manifest of the run is used, or 50 if there is no manifest");
+	public Input<Boolean> watchInput = new Input<Boolean>("watch", "follow the logs of a run that is still in progress, " +
+			"and report the estimate whenever a log grows, until all steps are done (default false)", false);
+	public Input<String> burnInSweepInput = new Input<String>("burnInSweep", "comma separated list of burn-in percentages. If specified, " +
+			"the estimate is calculated for each of these in a single pass over the log files, instead of for burnInPercentage only");
+
+	final static int DEFAULT_BURN_IN_PERCENTAGE = 50;
 
 	DecimalFormat formatter;
 	
@@ -38,96 +45,191 @@ public class PathSampleAnalyser extends beast.core.Runnable {
 	 * @throws Exception
 	 */
 	double estimateMarginalLikelihood(int nSteps, double alpha, String rootDir, int burnInPercentage) throws Exception {
-		List<List<Double>> logdata = new ArrayList<List<Double>>(); 
-		
+		String sFormat = "";
+		for (int i = nSteps; i > 0; i /= 10) {
+			sFormat += "#";
+		}
+		formatter = new DecimalFormat(sFormat);
+
+		String [] logFiles = new String[nSteps];
+		for (int i = 0; i < nSteps; i++) {
+			logFiles[i] = getStepDir(rootDir, i) + "/" + PathSampler.LIKELIHOOD_LOG_FILE;
+		}
+		PathAnalysis analysis = new PathAnalysis();
+		double marginalL = analysis.analyse(logFiles, "likelihood", getBetas(nSteps, alpha), burnInPercentage, getEstimator(alpha));
 		
+		flushConsole();
+		return marginalL;
+	}
+
+	/** estimate from the logs of the run described by manifest, with the betas and estimator recorded in it **/
+	static double estimate(RunManifest manifest, int burnInPercentage) throws Exception {
+		PathAnalysis analysis = new PathAnalysis();
+		return analysis.analyse(manifest.getLogFiles(), manifest.getColumn(), manifest.getBetas(), burnInPercentage, manifest.getEstimator());
+	}
+
+	/** estimate for each of the burn-in percentages from the logs of the run described by manifest, reading every log only once **/
+	static double [] estimates(RunManifest manifest, int [] burnInPercentages, String estimateName) throws Exception {
+		String [][] logFiles = manifest.getLogFiles();
+		double [][][] traces = new double[logFiles.length][][];
+		for (int i = 0; i < logFiles.length; i++) {
+			traces[i] = new double[logFiles[i].length][];
+			for (int j = 0; j < logFiles[i].length; j++) {
+				traces[i][j] = new TraceLogReader(new File(logFiles[i][j])).getTrace(manifest.getColumn(), 0);
+			}
+		}
+		double [] estimates = sweepBurnIn(traces, manifest.getBetas(), manifest.getEstimator(), burnInPercentages);
+		System.out.println("\nburnIn%     " + estimateName);
+		for (int k = 0; k < estimates.length; k++) {
+			System.out.println(PathAnalysis.format(burnInPercentages[k]) + " " + PathAnalysis.format(estimates[k]));
+		}
+		System.out.println();
+		return estimates;
+	}
+
+	/** follow the logs of the run described by manifest while it is in progress, until all steps are done **/
+	static double watch(RunManifest manifest, int burnInPercentage, String estimateName) throws Exception {
+		LogWatcher watcher = new LogWatcher(manifest.getStepDirs(), manifest.getColumn(), manifest.getBetas(), burnInPercentage, manifest.getEstimator(), estimateName);
+		return watcher.watch();
+	}
+
+	/** @return burn-in percentage given as input, otherwise the one in manifest, if any **/
+	int getBurnInPercentage(RunManifest manifest) {
+		if (burnInPercentageInput.get() != null) {
+			return burnInPercentageInput.get();
+		}
+		return (manifest != null ? manifest.getBurnInPercentage() : DEFAULT_BURN_IN_PERCENTAGE);
+	}
+
+	/** estimator reported: thermodynamic integration for uniform intervals, stepping stone otherwise **/
+	static String getEstimator(double alpha) {
+		return (alpha <= 0 ? PathAnalysis.TRAPEZOID : PathAnalysis.STEPPING_STONE);
+	}
+
+	/** estimate marginal likelihood for each of the burn-in percentages, reading every log only once **/
+	double [] estimateMarginalLikelihoods(int nSteps, double alpha, String rootDir, int [] burnInPercentages) throws Exception {
 		String sFormat = "";
 		for (int i = nSteps; i > 0; i /= 10) {
 			sFormat += "#";
 		}
 		formatter = new DecimalFormat(sFormat);
 
-		// collect likelihood estimates for each step
-		double [] marginalLs = new double[nSteps];
-		Double [] [] marginalLs2 = new Double[nSteps][];
+		double [][] traces = new double[nSteps][];
 		for (int i = 0; i < nSteps; i++) {
-			List<Double> logdata1 = new ArrayList<Double>();
 			String logFile = getStepDir(rootDir, i) + "/" + PathSampler.LIKELIHOOD_LOG_FILE;
-			LogAnalyser analyser = new LogAnalyser(new String[] {logFile}, 2000, burnInPercentage);
-			marginalLs[i] = analyser.getMean("likelihood");
-			marginalLs2[i] = analyser.getTrace("likelihood");
-			System.out.println("marginalLs[" + i + " ] = " + marginalLs[i]);
-
-			logdata1.add(marginalLs[i]);
-			logdata1.add(0.0);
-			logdata1.add(analyser.getESS("likelihood"));
-			logdata.add(logdata1);
+			traces[i] = new TraceLogReader(new File(logFile)).getTrace("likelihood", 0);
 		}
-		
-		// combine steps
-		double logMarginalL = 0;
-		if (alpha <= 0) { 
-			// uniform intervals
-			for (int i = 0; i < nSteps - 1; i++) {
-				logMarginalL += (marginalLs[i] + marginalLs[i + 1]); 
-			}		
-			logMarginalL = logMarginalL / (2.0 * (nSteps - 1));
-		} else {
-			// intervals follow Beta distribution
-			BetaDistribution betaDistribution = new BetaDistributionImpl(alpha, 1.0);
-			double [] contrib = new double[nSteps-1];
-			
-			for (int i = 0; i < nSteps - 1; i++) {
-				List<Double> logdata1 = logdata.get(i);;
-				double beta1 = betaDistribution.inverseCumulativeProbability((nSteps - 1.0 - i)/ (nSteps - 1));
-				double beta2 = betaDistribution.inverseCumulativeProbability((nSteps - 1.0 - (i + 1.0))/ (nSteps - 1));
-				double weight = beta2 - beta1;
-
-				// Use formula top right at page 153 of 
-				// Xie W, Lewis PO, Fan Y, Kuo L, Chen MH. 2011. Improving marginal
-				// likelihood estimation for Bayesian phylogenetic model selection.
-				// Syst Biol. 60:150-160.
-				Double [] marginal2 = marginalLs2[i];
-				double logLmax = max(marginal2);
-				logMarginalL += weight * logLmax;
-				
-				int n = marginal2.length;
-				double x = 0;
-				for (int j = 0; j < n; j++) {
-					x += Math.exp(weight * (marginal2[j] - logLmax)); 
-				}
-				logMarginalL += Math.log(x/n);
+		double [] estimates = sweepBurnIn(traces, getBetas(nSteps, alpha), getEstimator(alpha), burnInPercentages);
+		System.out.println("\nburnIn%     marginal L");
+		for (int k = 0; k < estimates.length; k++) {
+			System.out.println(format(burnInPercentages[k]) + " " + format(estimates[k]));
+		}
+		System.out.println();
+		return estimates;
+	}
 
-				contrib[i] = -(weight * logLmax + Math.log(x/n));
-				logdata1.set(1, -(weight * logLmax + Math.log(x/n)));
+	/**
+	 * Combine steps for several burn-ins at once, using suffix sums (for means) and suffix 
+	 * log-sum-exps (for stepping stone ratios) of the complete traces, so the cost hardly
+	 * depends on the number of burn-ins. Burn-in is applied as in TraceLogReader.getTrace,
+	 * and estimates are the same as those of PathAnalysis.
+	 * @param traces complete trace of every step
+	 * @param estimator PathAnalysis.TRAPEZOID or PathAnalysis.STEPPING_STONE
+	 * @return for every burn-in percentage the estimate
+	 */
+	static double [] sweepBurnIn(double [][] traces, double [] betas, String estimator, int [] burnInPercentages) {
+		double [][][] chainTraces = new double[traces.length][][];
+		for (int i = 0; i < traces.length; i++) {
+			chainTraces[i] = new double[][]{traces[i]};
+		}
+		return sweepBurnIn(chainTraces, betas, estimator, burnInPercentages);
+	}
 
-//				logMarginalL += weight * marginalLs[i]; 
+	/** as sweepBurnIn above, for steps with several chains, where burn-in is removed from every chain before pooling them **/
+	static double [] sweepBurnIn(double [][][] traces, double [] betas, String estimator, int [] burnInPercentages) {
+		int nSteps = traces.length;
+		double [] weights = PathAnalysis.getWeights(betas);
+		double [] estimates = new double[burnInPercentages.length];
+		for (int i = 0; i < nSteps; i++) {
+			// per burn-in the sum (TI) or log of the sum of exponents (SS) over all chains, and the pooled sample count
+			double [] sums = new double[burnInPercentages.length];
+			double [] logSums = new double[burnInPercentages.length];
+			int [] counts = new int[burnInPercentages.length];
+			Arrays.fill(logSums, Double.NEGATIVE_INFINITY);
+			for (double [] trace : traces[i]) {
+				int n = trace.length;
+				if (estimator.equals(PathAnalysis.TRAPEZOID)) {
+					double [] suffix = TraceStatistics.suffixSums(trace);
+					for (int k = 0; k < burnInPercentages.length; k++) {
+						int from = n * burnInPercentages[k] / 100;
+						sums[k] += suffix[from];
+						counts[k] += n - from;
+					}
+				} else if (estimator.equals(PathAnalysis.STEPPING_STONE)) {
+					if (i < nSteps - 1) {
+						double [] suffix = TraceStatistics.suffixLogSumExp(trace, weights[i]);
+						for (int k = 0; k < burnInPercentages.length; k++) {
+							int from = n * burnInPercentages[k] / 100;
+							double max = Math.max(logSums[k], suffix[from]);
+							logSums[k] = max + Math.log(Math.exp(logSums[k] - max) + Math.exp(suffix[from] - max));
+							counts[k] += n - from;
+						}
+					}
+				} else {
+					throw new IllegalArgumentException("Burn-in sweep is not supported for estimator " + estimator);
+				}
+			}
+			for (int k = 0; k < burnInPercentages.length; k++) {
+				if (estimator.equals(PathAnalysis.TRAPEZOID)) {
+					// trapezoid rule coefficient of step i
+					double coefficient = ((i > 0 ? weights[i - 1] : 0) + (i < nSteps - 1 ? weights[i] : 0)) / 2.0;
+					estimates[k] -= coefficient * sums[k] / counts[k];
+				} else if (i < nSteps - 1) {
+					estimates[k] -= logSums[k] - Math.log(counts[k]);
+				}
 			}
-						
 		}
-		
-		if (consoleApp != null) {
-			// allow output to flush to app window
-			Thread.sleep(500);
+		return estimates;
+	}
+
+	/** parse comma separated list of percentages **/
+	static int [] parseBurnIns(String str) throws Exception {
+		String [] strs = str.split(",");
+		int [] burnIns = new int[strs.length];
+		for (int i = 0; i < strs.length; i++) {
+			burnIns[i] = Integer.parseInt(strs[i].trim());
+			if (burnIns[i] < 0 || burnIns[i] >= 100) {
+				throw new Exception("burn-in percentages should be between 0 and 100");
+			}
 		}
+		return burnIns;
+	}
 
-		System.out.println("\nStep        theta         likelihood   contribution ESS");
-		BetaDistribution betaDistribution = new BetaDistributionImpl(alpha, 1.0);
+	/** @return beta of every step, as used by PathSampler **/
+	double [] getBetas(int nSteps, double alpha) throws Exception {
+		BetaDistribution betaDistribution = (alpha > 0 ? new BetaDistributionImpl(alpha, 1.0) : null);
+		double [] betas = new double[nSteps];
 		for (int i = 0; i < nSteps; i++) {
-			System.out.print(format(i)+" ");
-			double beta = betaDistribution != null ?
+			betas[i] = betaDistribution != null ?
 					betaDistribution.inverseCumulativeProbability((nSteps - 1.0 - i)/ (nSteps - 1)):
 						(nSteps - 1.0 - i)/ (nSteps - 1);
-			System.out.print(format(beta)+" ");
+		}
+		return betas;
+	}
 
-			
-			for (Double d : logdata.get(i)) {
-				System.out.print(format(d) + " ");
-			}
-			System.out.println();
-		}		
-		System.out.println();
-		return -logMarginalL;
+	/** follow the logs of a run in progress, reporting the estimate whenever a log grows, until all steps are done **/
+	double watch(int nSteps, double alpha, String rootDir, int burnInPercentage) throws Exception {
+		String sFormat = "";
+		for (int i = nSteps; i > 0; i /= 10) {
+			sFormat += "#";
+		}
+		formatter = new DecimalFormat(sFormat);
+		String [] stepDirs = new String[nSteps];
+		for (int i = 0; i < nSteps; i++) {
+			stepDirs[i] = getStepDir(rootDir, i);
+		}
+		LogWatcher watcher = new LogWatcher(stepDirs, "likelihood", getBetas(nSteps, alpha), burnInPercentage, getEstimator(alpha), "marginal L estimate");
+		return watcher.watch();
 	}
 
 	private String format(double d) {
@@ -139,23 +241,37 @@ public class PathSampleAnalyser extends beast.core.Runnable {
 		return s;
 	}
 
-	private double max(Double[] marginal2) {
-		Double max = marginal2[0];
-		for (Double v : marginal2) {
-			max = Math.max(v, max);
-		}
-		return max;
-	}
-
 	String getStepDir(String rootDir, int iParticle) {
 		return rootDir + "/step" + formatter.format(iParticle);
 	}
 	
 	public static void main(String[] args) throws Exception {
 		PathSampleAnalyser analyser = new PathSampleAnalyser();
+		if (args.length < 4) {
+			// rootDir [burnInPercentage(s)] [watch], with everything else taken from the manifest
+			RunManifest manifest = RunManifest.load(args[0]);
+			String burnIns = (args.length > 1 ? args[1] : manifest.getBurnInPercentage() + "");
+			if (args.length > 2 && args[2].equals("watch")) {
+				System.out.println("marginal L estimate = " + watch(manifest, Integer.parseInt(burnIns), "marginal L estimate"));
+			} else if (burnIns.indexOf(',') >= 0) {
+				estimates(manifest, parseBurnIns(burnIns), "marginal L");
+			} else {
+				System.out.println("marginal L estimate = " + estimate(manifest, Integer.parseInt(burnIns)));
+			}
+			return;
+		}
 		int nSteps = Integer.parseInt(args[0]);
 		double alpha = Double.parseDouble(args[1]);
 		String rootDir = args[2];
+		if (args.length > 4 && args[4].equals("watch")) {
+			double estimate = analyser.watch(nSteps, alpha, rootDir, Integer.parseInt(args[3]));
+			System.out.println("marginal L estimate = " + estimate);
+			return;
+		}
+		if (args[3].indexOf(',') >= 0) {
+			analyser.estimateMarginalLikelihoods(nSteps, alpha, rootDir, parseBurnIns(args[3]));
+			return;
+		}
 		int burnInPercentage = Integer.parseInt(args[3]);
 		double marginalL = analyser.estimateMarginalLikelihood(nSteps, alpha, rootDir, burnInPercentage);
 		System.out.println("marginal L estimate = " + marginalL);
@@ -163,22 +279,62 @@ public class PathSampleAnalyser extends beast.core.Runnable {
 
     ConsoleApp consoleApp = null;
     
+	/** allow output to flush to app window, if there is one **/
+	void flushConsole() throws InterruptedException {
+		if (consoleApp != null) {
+			Thread.sleep(500);
+		}
+	}
+
 	@Override
 	public void run() throws Exception {
 		// create output window
         String nameString = "PathSampleAnalyser";
         String title = "Path Sample Analyser -- " + rootDirInput.get();
-        consoleApp = new ConsoleApp(nameString, title);
+        if (!GraphicsEnvironment.isHeadless()) {
+        	consoleApp = new ConsoleApp(nameString, title);
+        }
         
         // do the work
+        if (RunManifest.exists(rootDirInput.get())) {
+        	RunManifest manifest = RunManifest.load(rootDirInput.get());
+        	if (watchInput.get()) {
+        		double marginalL = watch(manifest, getBurnInPercentage(manifest), "marginal L estimate");
+        		flushConsole();
+        		System.out.println("marginal L estimate = " + marginalL);
+        	} else if (burnInSweepInput.get() != null) {
+        		estimates(manifest, parseBurnIns(burnInSweepInput.get()), "marginal L");
+        		flushConsole();
+        	} else {
+        		double marginalL = estimate(manifest, getBurnInPercentage(manifest));
+        		flushConsole();
+        		System.out.println("marginal L estimate = " + marginalL);
+        	}
+        	return;
+        }
+        if (watchInput.get()) {
+        	double marginalL = watch(stepsInput.get(), alphaInput.get(), rootDirInput.get(), getBurnInPercentage(null));
+    		flushConsole();
+    		System.out.println("marginal L estimate = " + marginalL);
+        	return;
+        }
+        if (burnInSweepInput.get() != null) {
+        	estimateMarginalLikelihoods(
+    				stepsInput.get(), 
+    				alphaInput.get(), 
+    				rootDirInput.get(), 
+    				parseBurnIns(burnInSweepInput.get()));
+    		flushConsole();
+        	return;
+        }
         double marginalL = estimateMarginalLikelihood(
 				stepsInput.get(), 
 				alphaInput.get(), 
 				rootDirInput.get(), 
-				burnInPercentageInput.get());
+				getBurnInPercentage(null));
         
         
-		Thread.sleep(500);
+		flushConsole();
 		System.out.println("marginal L estimate = " + marginalL);
 	}
 	
@@ -2,15 +2,19 @@ package beast.inference;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.InputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.io.PrintStream;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.commons.math.distribution.BetaDistribution;
 import org.apache.commons.math.distribution.BetaDistributionImpl;
@@ -34,6 +38,29 @@ import beast.util.XMLProducer;
 		"Uses multiple threads if specified as command line option to BEAST.")
 public class PathSampler extends beast.core.Runnable {
 	public static String LIKELIHOOD_LOG_FILE = "likelihood.log";
+	public static String PROGRESS_FILE = "progress.properties";
+	public static String STATE_FILE = "beast.xml.state";
+	public static String PROFILE_FILE = "profile.txt";
+	/** directory under the root directory where the pilot run is done **/
+	public static String PILOT_DIR = "pilot";
+	/** directory under rootdir where hosts are calibrated **/
+	public static String CALIBRATION_DIR = "calibration";
+	/** directory under the directory of a step where a speculative duplicate of the step runs **/
+	public static String SPECULATIVE_DIR = "speculative";
+	/** interval in seconds at which steps report progress when metrics are served **/
+	final static int PROGRESS_INTERVAL = 5;
+	/** number of state snapshots a step publishes over its chain when steps are pipelined **/
+	final static int SNAPSHOTS_PER_STEP = 100;
+	/** interval in milliseconds at which a running step is checked for a new snapshot **/
+	final static int SNAPSHOT_POLL_INTERVAL = 1000;
+	/** interval in milliseconds at which running steps are checked for stragglers **/
+	final static int SPECULATION_POLL_INTERVAL = 10000;
+	/** added to the seed of a step for its speculative duplicate **/
+	final static long SPECULATIVE_SEED_OFFSET = 1;
+	final static Pattern SNAPSHOT_SAMPLE = Pattern.compile("sample=['\"]([0-9]+)['\"]");
+	/** element of the likelihood logger, whatever the order of its attributes **/
+	final static Pattern LIKELIHOOD_LOGGER = Pattern.compile("<[^<>]*\\sfileName=['\"]" + Pattern.quote(LIKELIHOOD_LOG_FILE) + "['\"][^<>]*>");
+	final static Pattern LOG_EVERY = Pattern.compile("(\\slogEvery=['\"])[0-9]+");
 
 	public Input<Double> alphaInput = new Input<Double>("alpha", "alpha parameter of Beta(alpha,1) distribution used to space out steps, default 0.3" +
 			"If alpha <= 0, uniform intervals are used.", 0.3);
@@ -50,26 +77,107 @@ public class PathSampler extends beast.core.Runnable {
 			"$(seed) is replaced by a random number seed that differs with every launch " +
 			"$(host) is replaced by a host from the list of hosts", Validate.REQUIRED);
 	public Input<String> m_sHostsInput = new Input<String>("hosts", "comma separated list of hosts. " +
-			"If there are k hosts in the list, for particle i the term $(host) in the script will be replaced " +
-			"by the (i modulo k) host in the list. " +
+			"The term $(host) in the script is replaced by the host where the step is expected to finish first, " +
+			"given the throughput of the hosts and the steps already assigned to them. A host listed k times runs k steps at a time. " +
+			"Throughput comes from a calibration run, from " + HostScheduler.HOSTS_FILE + " in rootdir as written by an earlier run, " +
+			"or from the steps that finished on the host. " +
 			"Note that whitespace is removed");
 	public Input<Boolean> doNotRun = new Input<Boolean>("doNotRun", "Set up all files but do not run analysis if true. " +
 			"This can be useful for setting up an analysis on a cluster", false);
 	
 	public Input<Boolean> deleteOldLogsInpuyt = new Input<Boolean>("deleteOldLogs", "delete existing log files from root dir", false);
+	public Input<Integer> metricsPortInput = new Input<Integer>("metricsPort", "port on localhost where progress of running steps is served over HTTP. " +
+			"Use 0 to pick a free port, and a negative value to disable (default -1)", -1);
+	public Input<Boolean> profileInput = new Input<Boolean>("profile", "record per operator timing of the MCMC loop of every step " +
+			"and write it to " + PROFILE_FILE + " in the step directory (default false)", false);
+	public Input<Double> logEveryACTInput = new Input<Double>("logEveryACT", "if larger than zero, every step logs its likelihood at this multiple " +
+			"of its integrated autocorrelation time, estimated at the start of the step, instead of every chainLength/1000 samples (default 0)", 0.0);
+	public Input<Boolean> compressInput = new Input<Boolean>("compress", "write likelihood logs and states of steps gzipped (default false). " +
+			"Other log files of the model are not affected", false);
+	public Input<Boolean> pipelineInput = new Input<Boolean>("pipeline", "let a step start from an intermediate state of the step it depends on, " +
+			"as soon as that step has passed burnInPercentage of its chain, instead of waiting for it to finish. " +
+			"Steps then store their state " + SNAPSHOTS_PER_STEP + " times per chain, and fewer steps need the preBurnin " +
+			"since fewer lanes of steps are needed to keep all threads busy. " +
+			"Only applies when steps are run by the path sampler, not by the run scripts (default false)", false);
+	public Input<Integer> chainsPerStepInput = new Input<Integer>("chainsPerStep", "number of independent chains run for every step, in parallel, " +
+			"each with its own seed and start state and a chain length of chainLength/chainsPerStep. The analysers pool the samples " +
+			"of the chains of a step after removing burn-in from each, and report R-hat per step. " +
+			"Chain j of a step starts from chain j of an earlier step, and chains that start from scratch spend the first half " +
+			"of preBurnin sampling from the prior, so they start from dispersed states. " +
+			"With more than one chain, chain j of step i is run in directory step<i>/chain<j> (default 1)", 1);
+	public Input<Boolean> resumeInput = new Input<Boolean>("resume", "continue the run described by the manifest in rootdir instead of setting up a new one. " +
+			"Steps that are done are skipped, the others are run again (default false)", false);
+	public Input<Double> pilotFractionInput = new Input<Double>("pilotFraction", "if larger than zero, first run a pilot of every step, " +
+			"together using this fraction of the total number of samples nrOfSteps*chainLength, in directory " + PILOT_DIR + " under rootdir. " +
+			"The remaining samples are divided over the steps so that the variance of the estimate is minimal, " +
+			"given the variance and autocorrelation of every step in the pilot (default 0)", 0.0);
+	public Input<Double> timeBudgetInput = new Input<Double>("timeBudget", "if larger than zero, wall clock budget of the run in hours. " +
+			"Steps that start from scratch run with chainLength, and the chain length of every other step is set when it starts, " +
+			"so that the run ends within the budget, based on the throughput of the steps so far. " +
+			"With a pilot run, the chain lengths allocated after the pilot are scaled to the budget, keeping their proportions (default 0)", 0.0);
+	public Input<Double> minESSInput = new Input<Double>("minESS", "effective sample size every step should reach when a time budget is given. " +
+			"Steps for which the budget is projected to be too small are reported (default 200)", 200.0);
+	public Input<Boolean> workersInput = new Input<Boolean>("workers", "run steps in a pool of long lived worker JVMs, which keep classes loaded " +
+			"and code compiled between steps, instead of starting a JVM for every step through its run script. " +
+			"The script is then only used for running steps by hand (default false)", false);
+	public Input<Boolean> inProcessInput = new Input<Boolean>("inProcess", "run steps on threads of this JVM instead of in processes of their own. " +
+			"Data that does not depend on the state, like alignments, is then parsed into memory once and shared by all steps, " +
+			"so more steps fit in memory. With more than one thread, steps running at the same time share the random number generator, " +
+			"so they are not seeded, their seed in the manifest is " + RunManifest.NO_SEED + " and runs are not reproducible (default false)", false);
+	public Input<String> workerJVMArgsInput = new Input<String>("workerJVMArgs", "options for the worker JVMs, e.g. -Xmx4g", "");
+	public Input<Integer> stepsPerWorkerInput = new Input<Integer>("stepsPerWorker", "number of steps after which a worker JVM is replaced " +
+			"by a fresh one, unlimited if zero or less (default 20)", 20);
+	public Input<Double> workerHeapFractionInput = new Input<Double>("workerHeapFraction", "a worker JVM is replaced by a fresh one " +
+			"when more than this fraction of its maximum heap is in use after a step (default 0.75)", 0.75);
+	public Input<Integer> retriesInput = new Input<Integer>("retries", "number of times a step that fails is run again, " +
+			"continuing from the last state it stored (see storeEvery). Steps that start from a failed step are not run, " +
+			"other steps are (default 2)", 2);
+	public Input<Double> stepTimeoutInput = new Input<Double>("stepTimeout", "if larger than zero, time in minutes after which a step " +
+			"that has not finished is stopped and counts as failed. Not supported for steps run in this JVM (default 0)", 0.0);
+	public Input<Double> speculationFactorInput = new Input<Double>("speculationFactor", "if larger than zero, a running step whose throughput " +
+			"is less than that of the other steps divided by this factor, e.g. because it shares its node with a busy neighbour, " +
+			"gets a speculative duplicate in a directory of its own when a thread is idle. The duplicate starts from the same state " +
+			"with another seed, and whichever copy finishes first is kept. Not supported for steps run in this JVM (default 0)", 0.0);
+	public Input<Integer> calibrationLengthInput = new Input<Integer>("calibrationLength", "if larger than zero and hosts are given, " +
+			"the first step is run for this number of samples on every host before the scripts are written, to measure the throughput of the hosts. " +
+			"Not needed when rootdir contains " + HostScheduler.HOSTS_FILE + " from an earlier run (default 0)", 0);
 	
 	int m_nSteps;
 	String [] m_sHosts;
 	String m_sScript;
 	int burnInPercentage;
 
-	CountDownLatch m_nCountDown;
-
     final static String fileSep = System.getProperty("file.separator");
 
+	/** description of the run, also written to the root directory **/
+	RunManifest manifest;
+	/** worker JVMs running the steps, null if steps are run through their scripts **/
+	StepWorkerPool workers;
+	/** builds steps run in this JVM, null if steps run in processes of their own **/
+	StepFactory stepFactory;
+	/** chain length of every step according to a pilot run, null if every step gets chainLength **/
+	ChainLengthAllocation allocation;
+	/** sets chain lengths of steps when they start to fit the run in its wall clock budget, null without budget **/
+	WallTimeBudget budget;
+	/** assigns steps to hosts by throughput, null without hosts **/
+	HostScheduler hostScheduler;
+	/** tasks of the steps that are scheduled, for finding stragglers **/
+	List<StepTask> stepTasks = new ArrayList<StepTask>();
+	/** start of the pilot run, 0 if there was none **/
+	long pilotStartTime;
+
 	DecimalFormat formatter;
 	String getStepDir(int iParticle) {
-		return rootDirInput.get() + "/step" + formatter.format(iParticle);
+		if (manifest != null && iParticle < manifest.size()) {
+			return manifest.getStep(iParticle).dir;
+		}
+		int nChains = chainsPerStepInput.get();
+		return getChainDir(rootDirInput.get() + "/step" + formatter.format(iParticle / nChains), iParticle % nChains);
+	}
+
+	/** directory of a chain of the step in stepDir, which is stepDir itself if steps have a single chain **/
+	String getChainDir(String stepDir, int iChain) {
+		return chainsPerStepInput.get() > 1 ? stepDir + "/chain" + iChain : stepDir;
 	}
 
 
@@ -79,19 +187,89 @@ public class PathSampler extends beast.core.Runnable {
 	
 	@Override
 	public void run() throws Exception {
+		if (resumeInput.get()) {
+			loadManifest();
+		} else {
+			allocateChainLengths();
+			generateStepFiles();
+		}
+    	doRuns();
+	} // run
+
+	/**
+	 * Run a pilot of all steps, with pilotFraction of the samples, in the pilot directory.
+	 * The remaining samples are divided over the steps of the run according to the pilot.
+	 * Does nothing if pilotFraction is not set.
+	 */
+	void allocateChainLengths() throws Exception {
+		double fraction = pilotFractionInput.get();
+		if (fraction <= 0) {
+			return;
+		}
+		if (fraction >= 1) {
+			throw new Exception("pilotFraction should be less than 1");
+		}
+		if (doNotRun.get()) {
+			throw new Exception("The steps of the pilot run need to run before the run can be set up: set doNotRun to false or pilotFraction to 0");
+		}
+		String rootDir = rootDirInput.get();
+		int chainLength = chainLengthInput.get();
+		pilotStartTime = System.currentTimeMillis();
+		RunManifest pilot;
+		try {
+			rootDirInput.setValue(rootDir + fileSep + PILOT_DIR, this);
+			chainLengthInput.setValue(Math.max(chainsPerStepInput.get(), (int) (chainLength * fraction)), this);
+			System.err.println("Starting pilot run in " + rootDirInput.get());
+			generateStepFiles();
+			runSteps();
+			pilot = manifest;
+		} finally {
+			rootDirInput.setValue(rootDir, this);
+			chainLengthInput.setValue(chainLength, this);
+		}
+		allocation = ChainLengthAllocation.fromManifest(pilot, burnInPercentage);
+		long budget = (long) ((long) chainLength * pilot.getStepCount() * (1 - fraction));
+		allocation.allocate(budget, chainsPerStepInput.get());
+		System.out.println("Chain lengths allocated after the pilot run:");
+		allocation.report();
+	}
+
+	/** @return chain length of a single chain of the step with chain i **/
+	int getChainLength(int i) {
+		int nChains = chainsPerStepInput.get();
+		if (allocation != null) {
+			return allocation.getChainLength(i / nChains) / nChains;
+		}
+		return chainLengthInput.get() / nChains;
+	}
+
+	/** set chain length of step for chain i, and how often it stores its state **/
+	void setChainLength(PathSamplingStep step, int i) throws Exception {
+		int chainLength = getChainLength(i);
+		step.chainLengthInput.setValue(chainLength, step);
+		if (pipelineInput.get()) {
+			step.storeEveryInput.setValue(Math.max(1, chainLength / SNAPSHOTS_PER_STEP), step);
+		}
+	}
+
+	/** pick up the run in rootdir as recorded in its manifest, so that only steps that are not done yet are run **/
+	void loadManifest() throws Exception {
+		manifest = RunManifest.load(rootDirInput.get());
+		m_nSteps = manifest.size();
+		burnInPercentage = manifest.getBurnInPercentage();
+		// logs of steps that did not finish are incomplete
+		deleteOldLogsInpuyt.setValue(true, this);
+	}
+
+	/** set up step directories with beast.xml and scripts for running each step **/
+	void generateStepFiles() throws Exception {
 		// grab info from inputs
 		m_sScript = m_sScriptInput.get();
 		if (m_sScript == null) {
 			m_sScript = "cd $(dir)\n" +
 					"java -cp $(java.class.path) beast.app.beastapp.BeastMain $(resume/overwrite) -java -seed $(seed) beast.xml\n";
 		}
-		if (m_sHostsInput.get() != null) {
-			m_sHosts = m_sHostsInput.get().split(",");
-			// remove whitespace
-			for (int i = 0; i < m_sHosts.length; i++) {
-				m_sHosts[i] = m_sHosts[i].replaceAll("\\s", "");
-			}
-		}
+		parseHosts();
 		
 		m_nSteps = stepsInput.get();
 		if (m_nSteps <= 1) {
@@ -102,6 +280,10 @@ public class PathSampler extends beast.core.Runnable {
 			throw new Exception("burnInPercentage should be between 0 and 100");
 		}
 		int preBurnIn = preBurnInInput.get();
+		int nChains = chainsPerStepInput.get();
+		if (nChains < 1) {
+			throw new Exception("chainsPerStep should be at least 1");
+		}
 		
 		// root directory sanity checks
 		File rootDir = new File(rootDirInput.get());
@@ -140,14 +322,21 @@ public class PathSampler extends beast.core.Runnable {
 		mcmc = step;
 		
 		int chainLength = chainLengthInput.get();
-		// set up chain length for a single step
+		// set up chain length for a single chain of a step
 		mcmc.burnInInput.setValue(0, mcmc);
-		mcmc.chainLengthInput.setValue(chainLength, mcmc);
+		mcmc.chainLengthInput.setValue(chainLength / nChains, mcmc);
+		// the time budget and speculation need the throughput of steps
+		if (metricsPortInput.get() >= 0 || timeBudgetInput.get() > 0 || speculationFactorInput.get() > 0) {
+			step.progressEveryInput.setValue(PROGRESS_INTERVAL, step);
+		}
+		step.profileInput.setValue(profileInput.get(), step);
+		step.logEveryACTInput.setValue(logEveryACTInput.get(), step);
+		step.compressStateInput.setValue(compressInput.get(), step);
 		
 		// add posterior logger
-		Logger logger = new Logger();
+		Logger logger = new TraceLogger();
 		Distribution likelihood = extractLikelihood(mcmc); 
-		logger.initByName("fileName", LIKELIHOOD_LOG_FILE, "log", likelihood, "logEvery", chainLength/1000);
+		logger.initByName("fileName", LIKELIHOOD_LOG_FILE, "log", likelihood, "logEvery", chainLength/1000, "compress", compressInput.get());
 		mcmc.loggersInput.setValue(logger, mcmc);
 
 		// set up directories with beast.xml files in each of them
@@ -156,6 +345,7 @@ public class PathSampler extends beast.core.Runnable {
 			sFormat += "#";
 		}
 		formatter = new DecimalFormat(sFormat);
+		manifest = new RunManifest(rootDirInput.get(), "likelihood", PathSampleAnalyser.getEstimator(alphaInput.get()), burnInPercentage);
 		
 		XMLProducer producer = new XMLProducer();
 		BetaDistribution betaDistribution = null;
@@ -164,30 +354,29 @@ public class PathSampler extends beast.core.Runnable {
 		}
 		
 		
-		PrintStream [] cmdFiles = new PrintStream[BeastMCMC.m_nThreads];
-    	for (int i = 0; i < BeastMCMC.m_nThreads; i++) {
-    		FileOutputStream outStream = (beast.app.util.Utils.isWindows()?
-    					new FileOutputStream(rootDirInput.get() + "/run" + i +".bat"):
-    					new FileOutputStream(rootDirInput.get() + "/run" + i +".sh"));
-    		 cmdFiles[i] = new PrintStream(outStream);
-    	}
+		PrintStream [] cmdFiles = openCmdFiles();
 
 		
 		
-		for (int i = 0; i < m_nSteps; i++) {
-			if (i < BeastMCMC.m_nThreads) {
+		// i runs over all chains of all steps
+		for (int i = 0; i < m_nSteps * nChains; i++) {
+			if (getStartsFrom(i) < 0) {
 				mcmc.burnInInput.setValue(preBurnIn, mcmc);
 			} else {
 				mcmc.burnInInput.setValue(0, mcmc);
 			}
+			step.disperseInput.setValue(getDispersion(i), step);
 			// create XML for a single step
+			int iStep = i / nChains;
 			double beta = betaDistribution != null ?
-					betaDistribution.inverseCumulativeProbability((m_nSteps - 1.0 - i)/ (m_nSteps - 1)):
-						(m_nSteps - 1.0 - i)/ (m_nSteps - 1);
+					betaDistribution.inverseCumulativeProbability((m_nSteps - 1.0 - iStep)/ (m_nSteps - 1)):
+						(m_nSteps - 1.0 - iStep)/ (m_nSteps - 1);
 			step.setInputValue("beta", beta);
+			setChainLength(step, i);
 			String sXML = producer.toXML(step);
+			addManifestStep(i, beta, mcmc.burnInInput.get());
 			File stepDir = new File(getStepDir(i));
-			if (!stepDir.exists() && !stepDir.mkdir()) {
+			if (!stepDir.exists() && !stepDir.mkdirs()) {
 				throw new Exception("Failed to make directory " + stepDir.getName());
 			}
 			stepDir.setWritable(true, false);
@@ -196,44 +385,246 @@ public class PathSampler extends beast.core.Runnable {
             out.print(sXML);
 			out.close();
 			
-			String cmd = getCommand(stepDir.getAbsolutePath(), i);
-        	FileOutputStream cmdFile = 
-        			(beast.app.util.Utils.isWindows()?
-        					new FileOutputStream(stepDir.getAbsoluteFile() + "/run.bat"):
-        					new FileOutputStream(stepDir.getAbsoluteFile() + "/run.sh"));
-        	PrintStream out2 = new PrintStream(cmdFile);
-            out2.print(cmd);
-			out2.close();
-
-        	cmdFile = 
-        			(beast.app.util.Utils.isWindows()?
-        					new FileOutputStream(stepDir.getAbsoluteFile() + "/resume.bat"):
-        					new FileOutputStream(stepDir.getAbsoluteFile() + "/resume.sh"));
-        	cmd = cmd.replace("-overwrite", "-resume");
-        	out2 = new PrintStream(cmdFile);
-            out2.print(cmd);
-			out2.close();
-//TODO: probably more efficient to group cmdFiles in block of #steps/#threads
-//instead of skipping #threads steps every time.
-			if (i >= BeastMCMC.m_nThreads) {
-				String copyCmd = (beast.app.util.Utils.isWindows()
-						? "copy " + getStepDir(i - BeastMCMC.m_nThreads) + "\\beast.xml.state " + getStepDir(i)
-						: "cp " + getStepDir(i - BeastMCMC.m_nThreads) + "/beast.xml.state " + getStepDir(i)
-							);
-				cmdFiles[i % BeastMCMC.m_nThreads].print(copyCmd);				
-			}
-			cmdFiles[i % BeastMCMC.m_nThreads].print(cmd);
-			File script = new File(stepDir.getAbsoluteFile() + 
-					(beast.app.util.Utils.isWindows()? "/run.bat": "/run.sh"));
-			script.setExecutable(true);
+			writeScripts(i, cmdFiles);
 		}
     	for (int k = 0; k < BeastMCMC.m_nThreads; k++) {
     		cmdFiles[k].close();
     	}
+    	calibrateHosts();
+    	manifest.write();
+    	// from here on, every chain counts as a step
+    	m_nSteps = manifest.size();
+	} // generateStepFiles
 
-    	doRuns();
-		
-	} // run
+	/** write run and resume scripts of chain i, and add it to the batch file of its lane **/
+	void writeScripts(int i, PrintStream [] cmdFiles) throws Exception {
+		File stepDir = new File(getStepDir(i));
+		String cmd = getCommand(stepDir.getAbsolutePath(), i);
+		FileOutputStream cmdFile = 
+				(beast.app.util.Utils.isWindows()?
+						new FileOutputStream(stepDir.getAbsoluteFile() + "/run.bat"):
+						new FileOutputStream(stepDir.getAbsoluteFile() + "/run.sh"));
+		PrintStream out2 = new PrintStream(cmdFile);
+		out2.print(cmd);
+		out2.close();
+
+		cmdFile = 
+				(beast.app.util.Utils.isWindows()?
+						new FileOutputStream(stepDir.getAbsoluteFile() + "/resume.bat"):
+						new FileOutputStream(stepDir.getAbsoluteFile() + "/resume.sh"));
+		cmd = cmd.replace("-overwrite", "-resume");
+		out2 = new PrintStream(cmdFile);
+		out2.print(cmd);
+		out2.close();
+		if (cmdFiles == null) {
+			return;
+		}
+		int startsFrom = manifest.getStep(i).startsFrom;
+		int batchFile = getBatchFile(i);
+		if (startsFrom >= 0) {
+			String copyCmd = (beast.app.util.Utils.isWindows()
+					? "copy " + getStepDir(startsFrom) + "\\" + getStateFileName() + " " + getStepDir(i)
+					: "cp " + getStepDir(startsFrom) + "/" + getStateFileName() + " " + getStepDir(i)
+						);
+			cmdFiles[batchFile].print(copyCmd);
+		}
+		cmdFiles[batchFile].print(cmd);
+		File script = new File(stepDir.getAbsoluteFile() + 
+				(beast.app.util.Utils.isWindows()? "/run.bat": "/run.sh"));
+		script.setExecutable(true);
+	}
+
+	/**
+	 * @return batch file that runs chain i: the one of the chain it starts from, so that chain runs
+	 * before it, or for chains starting from scratch the next batch file in turn
+	 */
+	int getBatchFile(int i) {
+		while (manifest.getStep(i).startsFrom >= 0) {
+			i = manifest.getStep(i).startsFrom;
+		}
+		int first = 0;
+		for (int j = 0; j < i; j++) {
+			if (manifest.getStep(j).startsFrom < 0) {
+				first++;
+			}
+		}
+		return first % getLanes();
+	}
+
+	/** batch files running the steps of every lane **/
+	PrintStream [] openCmdFiles() throws Exception {
+		PrintStream [] cmdFiles = new PrintStream[BeastMCMC.m_nThreads];
+    	for (int i = 0; i < BeastMCMC.m_nThreads; i++) {
+    		FileOutputStream outStream = (beast.app.util.Utils.isWindows()?
+    					new FileOutputStream(rootDirInput.get() + "/run" + i +".bat"):
+    					new FileOutputStream(rootDirInput.get() + "/run" + i +".sh"));
+    		 cmdFiles[i] = new PrintStream(outStream);
+    	}
+    	return cmdFiles;
+	}
+
+	/**
+	 * Number of lanes of steps, where every step starts from the state of the previous step 
+	 * in its lane. Normally one lane per thread, but pipelined steps overlap with the step they 
+	 * start from for the part of the chain after burn-in, so fewer lanes keep all threads busy. 
+	 * Only the first step of every lane needs the preBurnin.
+	 * When steps have several chains, every chain counts as a step here.
+	 */
+	int getLanes() {
+		if (pipelineInput.get()) {
+			return Math.max(1, (int) Math.ceil(BeastMCMC.m_nThreads * burnInPercentage / 100.0));
+		}
+		return BeastMCMC.m_nThreads;
+	}
+
+	/**
+	 * @return chain that chain i starts from, or -1 if it starts from scratch. With one chain per step, that is
+	 * the step the number of lanes before it. With more chains, chain j of a step starts from chain j of the step that
+	 * ran in its lanes before, so chains of a step never start from each other and stay independent.
+	 */
+	int getStartsFrom(int i) {
+		int nChains = chainsPerStepInput.get();
+		int stride = nChains * ((getLanes() + nChains - 1) / nChains);
+		return (i >= stride ? i - stride : -1);
+	}
+
+	/** @return number of iterations chain i samples from the prior at the start of its burn-in, to disperse the chains of a step **/
+	int getDispersion(int i) {
+		return (chainsPerStepInput.get() > 1 && getStartsFrom(i) < 0 ? preBurnInInput.get() / 2 : 0);
+	}
+
+	/** record chain i in the manifest, with the seed it will run with **/
+	void addManifestStep(int i, double beta, int burnIn) throws Exception {
+		if (i == 0) {
+			if (hostScheduler == null) {
+				hostScheduler = createHostScheduler();
+			}
+			if (hostScheduler != null) {
+				hostScheduler.resetPlan();
+			}
+		}
+		int nChains = chainsPerStepInput.get();
+		RunManifest.Step step = new RunManifest.Step();
+		step.step = i / nChains;
+		step.chain = i % nChains;
+		step.beta = beta;
+		step.seed = Math.abs(Randomizer.nextInt());
+		step.chainLength = getChainLength(i);
+		step.burnIn = burnIn;
+		if (allocation != null) {
+			step.pilotVariance = allocation.getVariance(step.step);
+			step.pilotACT = allocation.getACT(step.step);
+		}
+		step.startsFrom = getStartsFrom(i);
+		step.dir = new File(getStepDir(i)).getAbsolutePath();
+		step.logFile = step.dir + fileSep + LIKELIHOOD_LOG_FILE + (compressInput.get() ? CompressedIO.GZIP_EXTENSION : "");
+		step.stateFile = step.dir + fileSep + getStateFileName();
+		boolean isWindows = beast.app.util.Utils.isWindows();
+		step.script = step.dir + fileSep + (isWindows ? "run.bat" : "run.sh");
+		step.resumeScript = step.dir + fileSep + (isWindows ? "resume.bat" : "resume.sh");
+		if (hostScheduler != null) {
+			step.host = hostScheduler.plan(step.startsFrom, step.chainLength + burnIn);
+		}
+		manifest.add(step);
+	}
+
+	/** split the list of hosts, removing whitespace **/
+	void parseHosts() {
+		if (m_sHostsInput.get() != null) {
+			m_sHosts = m_sHostsInput.get().split(",");
+			for (int i = 0; i < m_sHosts.length; i++) {
+				m_sHosts[i] = m_sHosts[i].replaceAll("\\s", "");
+			}
+		}
+	}
+
+	/** @return scheduler for the hosts, with throughputs of an earlier run if rootdir has them, null without hosts **/
+	HostScheduler createHostScheduler() throws Exception {
+		if (m_sHosts == null) {
+			return null;
+		}
+		HostScheduler scheduler = new HostScheduler(m_sHosts);
+		File hostsFile = new File(rootDirInput.get(), HostScheduler.HOSTS_FILE);
+		if (hostsFile.exists()) {
+			scheduler.load(hostsFile);
+		}
+		return scheduler;
+	}
+
+	/**
+	 * Measure the throughput of every host by running the first step for calibrationLength samples
+	 * on all hosts at the same time, then assign the steps to hosts again and rewrite their scripts.
+	 * Does nothing without hosts or calibrationLength, or if the throughput of the hosts is known already.
+	 */
+	void calibrateHosts() throws Exception {
+		final int calibrationLength = calibrationLengthInput.get();
+		if (hostScheduler == null || calibrationLength <= 0 || hostScheduler.hasMeasuredRates()) {
+			return;
+		}
+		String xml = new String(CompressedIO.readFully(new File(getStepDir(0), "beast.xml")), "UTF-8");
+		xml = xml.replaceFirst("chainLength=(['\"])[0-9]+", "chainLength=$1" + calibrationLength);
+		xml = xml.replaceFirst("preBurnin=(['\"])[0-9]+", "preBurnin=$10");
+		List<Thread> threads = new ArrayList<Thread>();
+		for (final String host : hostScheduler.getHosts()) {
+			final File dir = new File(rootDirInput.get() + fileSep + CALIBRATION_DIR + fileSep + host);
+			if (!dir.exists() && !dir.mkdirs()) {
+				throw new Exception("Failed to make directory " + dir.getPath());
+			}
+			CompressedIO.writeAtomically(new File(dir, "beast.xml"), xml);
+			final File script = new File(dir, beast.app.util.Utils.isWindows() ? "run.bat" : "run.sh");
+			PrintStream out = new PrintStream(new FileOutputStream(script));
+			out.print(getCommand(dir.getAbsolutePath(), manifest.getStep(0).seed, host, false));
+			out.close();
+			script.setExecutable(true);
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						long start = System.currentTimeMillis();
+						int exitValue = runScript(script.getAbsolutePath(), new ProcessWatchdog(0));
+						double seconds = (System.currentTimeMillis() - start) / 1000.0;
+						if (exitValue != 0) {
+							System.err.println("WARNING: calibration on " + host + " exited with value " + exitValue + ", keeping its default throughput");
+							return;
+						}
+						// prefer the throughput of the chain itself, without start up
+						double rate = parseDouble(RunMetricsServer.readProgress(dir.getAbsolutePath()).getProperty("samplesPerSecond"));
+						if (rate <= 0) {
+							rate = calibrationLength / seconds;
+						}
+						hostScheduler.setRate(host, rate);
+						System.err.println("Host " + host + " runs " + Math.round(rate) + " samples per second");
+					} catch (Exception e) {
+						System.err.println("WARNING: calibration on " + host + " failed: " + e.getMessage());
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		hostScheduler.resetPlan();
+		PrintStream [] cmdFiles = openCmdFiles();
+		for (int i = 0; i < manifest.size(); i++) {
+			RunManifest.Step step = manifest.getStep(i);
+			step.host = hostScheduler.plan(step.startsFrom, step.chainLength + step.burnIn);
+			writeScripts(i, cmdFiles);
+		}
+		for (PrintStream cmdFile : cmdFiles) {
+			cmdFile.close();
+		}
+	}
+
+	private static double parseDouble(String s) {
+		try {
+			return s != null ? Double.parseDouble(s) : 0;
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
 	
 	private Distribution extractLikelihood(MCMC mcmc) throws Exception {
 		Distribution posterior = mcmc.posteriorInput.get();
@@ -258,17 +649,27 @@ public class PathSampler extends beast.core.Runnable {
 	}
 
 	String getCommand(String sStepDir, int iStep) {
+		RunManifest.Step step = manifest.getStep(iStep);
+		String host = null;
+		if (m_sHosts != null) {
+			host = (step.host != null ? step.host : m_sHosts[iStep % m_sHosts.length]);
+		}
+		return getCommand(sStepDir, step.seed, host, step.startsFrom >= 0);
+	}
+
+	/** @param host host replacing $(host), null if there are no hosts **/
+	String getCommand(String sStepDir, long seed, String host, boolean resume) {
 		sStepDir = sStepDir.replace("\\", "\\\\");
 		String sCommand = m_sScript.replaceAll("\\$\\(dir\\)", "\"" + sStepDir + "\"");
 		//while (sCommand.matches("$(seed)")) {
-			sCommand = sCommand.replaceAll("\\$\\(seed\\)", Math.abs(Randomizer.nextInt())+"");
+			sCommand = sCommand.replaceAll("\\$\\(seed\\)", seed + "");
 		//}
 		sCommand = sCommand.replaceAll("\\$\\(java.library.path\\)",  "\"" + sanitise(System.getProperty("java.library.path")) + "\"");
 		sCommand = sCommand.replaceAll("\\$\\(java.class.path\\)", "\"" + sanitise(System.getProperty("java.class.path")) + "\"");
-		if (m_sHosts != null) {
-			sCommand = sCommand.replaceAll("\\$\\(host\\)", m_sHosts[iStep % m_sHosts.length]);
+		if (host != null) {
+			sCommand = sCommand.replaceAll("\\$\\(host\\)", host);
 		}
-		if (iStep < BeastMCMC.m_nThreads) {
+		if (!resume) {
 			sCommand = sCommand.replaceAll("\\$\\(resume/overwrite\\)", "-overwrite");
 		} else {
 			sCommand = sCommand.replaceAll("\\$\\(resume/overwrite\\)", "-resume");
@@ -289,44 +690,552 @@ public class PathSampler extends beast.core.Runnable {
 	}
 
 
-	class StepThread extends Thread {
+	/** runs a single step, after copying the state of the step it starts from **/
+	class StepTask implements Callable<Object> {
 		int stepNr;
+		/** scheduler running this task and id of the task, to start dependent steps early when pipelining **/
+		StepScheduler scheduler;
+		int id;
+		/** whether an attempt of the step is running **/
+		volatile boolean running;
+		/** stops the process of the attempt that is running, null if none started yet **/
+		ProcessWatchdog watchdog;
+		/** speculative duplicate of the step, null if there is none **/
+		SpeculativeRun duplicate;
+		/** whether the step or its duplicate finished first, and which of them **/
+		boolean finished;
+		boolean supersededByDuplicate;
 		
-		StepThread(int stepNr) {
+		StepTask(int stepNr) {
 			this.stepNr = stepNr;
 		}
 		
 		@Override
-		public void run() {
+		public Object call() throws Exception {
+			long start = System.currentTimeMillis();
+			manifest.started(stepNr);
+			int exitValue;
+			try {
+				exitValue = runStep();
+				manifest.getStep(stepNr).samples = getLastSample(manifest.getStep(stepNr));
+				manifest.finished(stepNr, exitValue == 0, System.currentTimeMillis() - start);
+			} catch (Exception e) {
+				manifest.finished(stepNr, false, System.currentTimeMillis() - start);
+				throw e;
+			}
+			if (exitValue != 0) {
+				// let the scheduler skip the steps that start from this one
+				throw new Exception("Step " + stepNr + " failed after " + manifest.getStep(stepNr).attempts + " attempts");
+			}
+			return null;
+		}
+
+		/**
+		 * Run the step, and run it again from its last state through its resume script when it fails,
+		 * up to the number of retries. A step fails when it exits with a value other than 0, runs out
+		 * of time, or leaves a likelihood log that does not reach the end of its chain.
+		 * @return exit value of the last attempt, 1 if it exited with 0 but its log is incomplete
+		 */
+		private int runStep() throws Exception {
+			File stepDir = new File(getStepDir(stepNr));
+			if (!stepDir.exists()) {
+				throw new Exception("Failed to find directory " + stepDir.getName());
+			}
+			int startsFrom = manifest.getStep(stepNr).startsFrom;
+			if (startsFrom >= 0) {
+				copyStateFile(startsFrom, stepNr);
+			}
+			if (budget != null) {
+				int chainLength = budget.plan(stepNr);
+				if (chainLength > 0) {
+					changeChainLength(manifest.getStep(stepNr), chainLength);
+				}
+			}
+			checkLogFiles(stepNr);
+
+			System.err.println("Starting step " + stepNr);
+			SnapshotMonitor monitor = null;
+			if (pipelineInput.get() && scheduler != null) {
+				monitor = new SnapshotMonitor(this);
+				monitor.start();
+			}
+			RunManifest.Step step = manifest.getStep(stepNr);
+			long timeout = (long) (stepTimeoutInput.get() * 60 * 1000);
+			int exitValue = 1;
+			running = true;
+			try {
+				step.attempts = 0;
+				while (step.attempts <= retriesInput.get()) {
+					ProcessWatchdog attemptWatchdog = new ProcessWatchdog(timeout);
+					synchronized (this) {
+						if (supersededByDuplicate) {
+							break;
+						}
+						watchdog = attemptWatchdog;
+					}
+					// the first attempt of a step that starts from scratch overwrites, later attempts continue from the last state the step stored
+					boolean resume = (step.attempts == 0 ? startsFrom >= 0 : hasState(step));
+					if (step.attempts > 0 && !resume) {
+						new File(step.logFile).delete();
+					}
+					if (step.attempts > 0) {
+						System.err.println("Retrying step " + stepNr + (resume ? " from its last state" : " from scratch") +
+								" (attempt " + (step.attempts + 1) + " of " + (retriesInput.get() + 1) + ")");
+					}
+					step.attempts++;
+					if (stepFactory != null) {
+						exitValue = runInProcess(step, resume);
+					} else if (workers != null) {
+						exitValue = workers.run(step, resume, attemptWatchdog);
+					} else if (hostScheduler != null && m_sScript != null) {
+						exitValue = runOnHost(step, resume, attemptWatchdog);
+					} else {
+						exitValue = runScript(resume && startsFrom < 0 ? step.resumeScript : step.script, attemptWatchdog);
+					}
+					if (exitValue == 0 && !isComplete(step)) {
+						System.err.println("Step " + stepNr + " exited normally, but its log " + step.logFile + " does not reach the end of the chain");
+						exitValue = 1;
+					}
+					if (exitValue == 0 && claimFinish(false)) {
+						break;
+					}
+					if (isSupersededByDuplicate()) {
+						break;
+					}
+					System.err.println("Step " + stepNr + " exited with value " + exitValue);
+				}
+			} finally {
+				running = false;
+				if (monitor != null) {
+					monitor.interrupt();
+				}
+			}
+			SpeculativeRun speculative = getDuplicate();
+			if (speculative != null) {
+				if (exitValue == 0 && !isSupersededByDuplicate()) {
+					speculative.watchdog.stopProcess();
+				} else {
+					// the duplicate may still finish
+					speculative.done.await();
+				}
+				if (isSupersededByDuplicate()) {
+					speculative.adopt();
+					exitValue = 0;
+				}
+			}
+			System.err.println((exitValue == 0 ? "Finished" : "Gave up on") + " step " + stepNr);
+			return exitValue;
+		}
+
+		/**
+		 * Run the script of step on the host where it is expected to finish first now, which differs
+		 * from the host it was set up for when hosts turn out faster or slower than planned.
+		 * @return exit value of the process running the script
+		 */
+		private int runOnHost(RunManifest.Step step, boolean resume, ProcessWatchdog watchdog) throws Exception {
+			HostScheduler.Assignment assignment = hostScheduler.acquire(step.chainLength + step.burnIn);
+			long start = System.currentTimeMillis();
+			int exitValue = 1;
+			// the slot is released whatever goes wrong, so steps waiting for one are not held up
+			try {
+				String host = hostScheduler.getHost(assignment.host);
+				if (!host.equals(step.host)) {
+					System.err.println("Step " + stepNr + " runs on " + host + " instead of " + step.host + ", where it is expected to finish first");
+					step.host = host;
+					writeScripts(stepNr, null);
+				}
+				exitValue = runScript(resume && step.startsFrom < 0 ? step.resumeScript : step.script, watchdog);
+			} finally {
+				int samples = (exitValue == 0 ? getLastSample(step) : -1);
+				hostScheduler.release(assignment, samples > 0 ? samples + step.burnIn : 0, (System.currentTimeMillis() - start) / 1000.0);
+			}
+			return exitValue;
+		}
+
+		/**
+		 * Mark the step as finished by the step itself or by its duplicate.
+		 * When the duplicate is first, the process of the step is stopped.
+		 * @return true if this is the first copy of the step that finished
+		 */
+		synchronized boolean claimFinish(boolean byDuplicate) {
+			if (finished) {
+				return false;
+			}
+			finished = true;
+			supersededByDuplicate = byDuplicate;
+			if (byDuplicate && watchdog != null) {
+				watchdog.stopProcess();
+			}
+			return true;
+		}
+
+		synchronized boolean isSupersededByDuplicate() {
+			return supersededByDuplicate;
+		}
+
+		synchronized SpeculativeRun getDuplicate() {
+			return duplicate;
+		}
+
+		synchronized void clearDuplicate() {
+			duplicate = null;
+		}
+
+		/** @return false if the step already finished or has a duplicate **/
+		synchronized boolean setDuplicate(SpeculativeRun duplicate) {
+			if (finished || !running || this.duplicate != null) {
+				return false;
+			}
+			this.duplicate = duplicate;
+			return true;
+		}
+
+		/** @return 0 if the step ran in this JVM without throwing an exception, 1 otherwise **/
+		private int runInProcess(RunManifest.Step step, boolean resume) {
 			try {
-				System.err.println("Starting step " + stepNr);
-				File stepDir = new File(getStepDir(stepNr));
-				if (!stepDir.exists()) {
-					throw new Exception("Failed to find directory " + stepDir.getName());
+				if (!stepFactory.seedsSteps()) {
+					// steps running at the same time share the random number generator
+					step.seed = RunManifest.NO_SEED;
 				}
-	        	String cmd = 
-        			(beast.app.util.Utils.isWindows()?
-        					stepDir.getAbsoluteFile() + "/run.bat":
-        					stepDir.getAbsoluteFile() + "/run.sh");
-	        	
-				ProcessBuilder pb = new ProcessBuilder(cmd);
-				pb.redirectErrorStream(true); // merge stdout and stderr
-				Process p = pb.start();
-//	        	
-//				Process p = Runtime.getRuntime().exec(cmd);
-				BufferedReader pout = new BufferedReader((new InputStreamReader(p.getInputStream())));
-				String line;
-				while ((line = pout.readLine()) != null) {
-					//System.out.println(line);
+				beast.core.Runnable runnable = stepFactory.create(step.dir, step.seed, resume);
+				try {
+					runnable.run();
+				} finally {
+					stepFactory.release(runnable);
 				}
-				pout.close();
-				
-				p.waitFor();
+				return 0;
 			} catch (Exception e) {
 				e.printStackTrace();
+				return 1;
+			}
+		}
+	}
+
+	/**
+	 * @param watchdog stops the process when it runs out of time or is stopped on request
+	 * @return exit value of the process running the script
+	 */
+	int runScript(String cmd, ProcessWatchdog watchdog) throws Exception {
+		if (BeastMCMC.m_nThreads == 1) {
+			System.out.println(cmd);
+		}
+        	
+		ProcessBuilder pb = new ProcessBuilder(cmd);
+		pb.redirectErrorStream(true); // merge stdout and stderr
+		Process p = pb.start();
+		watchdog.watch(p);
+		try {
+			BufferedReader pout = new BufferedReader((new InputStreamReader(p.getInputStream())));
+			String line;
+			while ((line = pout.readLine()) != null) {
+				if (BeastMCMC.m_nThreads == 1) {
+					// only show output when it is not interleaved with that of other steps
+					System.out.println(line);
+				}
+			}
+			pout.close();
+			int exitValue = p.waitFor();
+			if (watchdog.isTimedOut()) {
+				System.err.println(cmd + " ran out of time and was stopped after " + watchdog.timeout / 60000 + " minutes");
+			}
+			return exitValue;
+		} finally {
+			watchdog.cancel();
+		}
+	}
+
+	/** @return true if the step stored a state it can resume from **/
+	private boolean hasState(RunManifest.Step step) {
+		return CompressedIO.find(new File(step.dir, STATE_FILE)).exists();
+	}
+
+	/** @return true if the likelihood log of step reaches the end of its chain **/
+	static boolean isComplete(RunManifest.Step step) {
+		try {
+			TraceLogReader reader = new TraceLogReader(new File(step.logFile));
+			double [] samples = reader.getTrace("Sample", 0);
+			return samples.length > 0 && samples[samples.length - 1] + Math.max(1, reader.getLogEvery()) > step.chainLength;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Speculative duplicate of a running step, which runs in a directory of its own under the directory
+	 * of the step, from the same starting state with an offset seed. Whichever copy finishes first is
+	 * kept: if the duplicate wins, the step is stopped and takes over the files of the duplicate.
+	 */
+	class SpeculativeRun implements Runnable {
+		final StepTask task;
+		final RunManifest.Step step = new RunManifest.Step();
+		final ProcessWatchdog watchdog;
+		/** counted down when the duplicate ended, after it claimed the step if it finished first **/
+		final CountDownLatch done = new CountDownLatch(1);
+
+		SpeculativeRun(StepTask task) {
+			this.task = task;
+			RunManifest.Step original = manifest.getStep(task.stepNr);
+			step.step = original.step;
+			step.chain = original.chain;
+			step.chainLength = original.chainLength;
+			step.burnIn = original.burnIn;
+			step.startsFrom = original.startsFrom;
+			step.seed = original.seed + SPECULATIVE_SEED_OFFSET;
+			step.dir = original.dir + fileSep + SPECULATIVE_DIR;
+			step.logFile = step.dir + fileSep + new File(original.logFile).getName();
+			step.stateFile = step.dir + fileSep + new File(original.stateFile).getName();
+			step.script = step.dir + fileSep + new File(original.script).getName();
+			watchdog = new ProcessWatchdog((long) (stepTimeoutInput.get() * 60 * 1000));
+		}
+
+		@Override
+		public void run() {
+			try {
+				int exitValue = runDuplicate();
+				if (exitValue == 0 && isComplete(step) && task.claimFinish(true)) {
+					System.err.println("Speculative duplicate of step " + task.stepNr + " finished first: keeping its results");
+					// the step takes over the directory
+					return;
+				}
+			} catch (Exception e) {
+				System.err.println("Speculative duplicate of step " + task.stepNr + " failed: " + e.getMessage());
+			} finally {
+				done.countDown();
+			}
+			deleteDirectory(new File(step.dir));
+		}
+
+		/** @return exit value of the duplicate **/
+		private int runDuplicate() throws Exception {
+			File dir = new File(step.dir);
+			deleteDirectory(dir);
+			if (!dir.mkdirs()) {
+				throw new Exception("Failed to make directory " + dir.getPath());
+			}
+			// beast.xml has the chain length the step runs with, and relative log file names
+			CompressedIO.writeAtomically(new File(dir, "beast.xml"),
+					new String(CompressedIO.readFully(new File(getStepDir(task.stepNr), "beast.xml")), "UTF-8"));
+			boolean resume = step.startsFrom >= 0;
+			if (resume) {
+				copyStateFile(step.startsFrom, step.dir);
+			}
+			if (workers != null) {
+				return workers.run(step, resume, watchdog);
+			}
+			HostScheduler.Assignment assignment = null;
+			String host = null;
+			if (hostScheduler != null) {
+				assignment = hostScheduler.acquire(step.chainLength + step.burnIn);
+				host = hostScheduler.getHost(assignment.host);
+			}
+			long start = System.currentTimeMillis();
+			int exitValue = 1;
+			try {
+				PrintStream out = new PrintStream(new FileOutputStream(step.script));
+				out.print(getCommand(step.dir, step.seed, host, resume));
+				out.close();
+				new File(step.script).setExecutable(true);
+				exitValue = runScript(step.script, watchdog);
+			} finally {
+				if (assignment != null) {
+					int samples = (exitValue == 0 ? getLastSample(step) : -1);
+					hostScheduler.release(assignment, samples > 0 ? samples + step.burnIn : 0, (System.currentTimeMillis() - start) / 1000.0);
+				}
+			}
+			return exitValue;
+		}
+
+		/** move the logs and state of the duplicate into the directory of the step, which it replaces **/
+		void adopt() throws IOException {
+			File dir = new File(step.dir);
+			File stepDir = new File(getStepDir(task.stepNr));
+			for (File file : dir.listFiles()) {
+				if (file.getName().equals("beast.xml") || file.getPath().equals(step.script)) {
+					continue;
+				}
+				File target = new File(stepDir, file.getName());
+				target.delete();
+				if (!file.renameTo(target)) {
+					throw new IOException("Could not move " + file.getPath() + " to " + target.getPath());
+				}
+			}
+			deleteDirectory(dir);
+			// the manifest records the seed the adopted samples were drawn with, so the step can be reproduced
+			manifest.getStep(task.stepNr).seed = step.seed;
+		}
+	}
+
+	/**
+	 * Starts speculative duplicates of stragglers while the scheduler has idle threads. A straggler is a running
+	 * step whose throughput, according to its progress file, is less than the median throughput of the other
+	 * steps divided by speculationFactor, and that is expected to finish later than a duplicate running
+	 * at the median throughput would. Every step gets at most one duplicate.
+	 */
+	class SpeculationMonitor extends Thread {
+		final StepScheduler scheduler;
+
+		SpeculationMonitor(StepScheduler scheduler) {
+			this.scheduler = scheduler;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					Thread.sleep(SPECULATION_POLL_INTERVAL);
+					speculate();
+				}
+			} catch (InterruptedException e) {
+				// all steps finished
+			}
+		}
+
+		private void speculate() {
+			List<Double> rates = new ArrayList<Double>();
+			for (int i = 0; i < manifest.size(); i++) {
+				double rate = parseDouble(RunMetricsServer.readProgress(manifest.getStep(i).dir).getProperty("samplesPerSecond"));
+				if (rate > 0) {
+					rates.add(rate);
+				}
+			}
+			for (StepTask task : stepTasks) {
+				if (!task.running || task.getDuplicate() != null) {
+					continue;
+				}
+				RunManifest.Step step = manifest.getStep(task.stepNr);
+				Properties progress = RunMetricsServer.readProgress(step.dir);
+				double rate = parseDouble(progress.getProperty("samplesPerSecond"));
+				List<Double> others = new ArrayList<Double>(rates);
+				if (rate <= 0 || !others.remove((Double) rate) || others.size() < 2) {
+					continue;
+				}
+				Collections.sort(others);
+				double median = others.get(others.size() / 2);
+				double secondsLeft = parseDouble(progress.getProperty("secondsToCompletion"));
+				if (rate * speculationFactorInput.get() >= median || (step.chainLength + step.burnIn) / median >= secondsLeft) {
+					continue;
+				}
+				SpeculativeRun duplicate = new SpeculativeRun(task);
+				if (!task.setDuplicate(duplicate)) {
+					continue;
+				}
+				if (!scheduler.runIfIdle(duplicate)) {
+					// no thread to spare, so the step is not waiting for its duplicate
+					duplicate.done.countDown();
+					task.clearDuplicate();
+					return;
+				}
+				System.err.println("Step " + task.stepNr + " runs at " + Math.round(rate) + " samples per second, against " + Math.round(median) +
+						" for the other steps: starting a speculative duplicate in " + duplicate.step.dir);
+			}
+		}
+	}
+
+	/** @return monitor starting speculative duplicates of stragglers among the steps in scheduler, null if speculation is off **/
+	SpeculationMonitor startSpeculation(StepScheduler scheduler) {
+		if (speculationFactorInput.get() <= 0) {
+			return null;
+		}
+		if (stepFactory != null) {
+			System.err.println("WARNING: speculationFactor is ignored for steps run in this JVM");
+			return null;
+		}
+		if (workers == null && m_sScript == null) {
+			System.err.println("WARNING: speculationFactor is ignored when resuming a run with scripts, since the script is not known");
+			return null;
+		}
+		SpeculationMonitor monitor = new SpeculationMonitor(scheduler);
+		monitor.start();
+		return monitor;
+	}
+
+	/** delete dir and everything in it **/
+	static void deleteDirectory(File dir) {
+		File [] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				deleteDirectory(file);
+			}
+		}
+		dir.delete();
+	}
+
+	/**
+	 * Follows the state snapshots of a running step, and lets the scheduler start the steps
+	 * that start from its state once a snapshot beyond the burn-in of the step appears.
+	 */
+	class SnapshotMonitor extends Thread {
+		final StepTask task;
+		final File stateFile;
+		final int releaseSample;
+
+		SnapshotMonitor(StepTask task) {
+			this.task = task;
+			RunManifest.Step step = manifest.getStep(task.stepNr);
+			stateFile = new File(step.stateFile);
+			releaseSample = step.chainLength * burnInPercentage / 100;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (getSnapshotSample(stateFile) < releaseSample) {
+					Thread.sleep(SNAPSHOT_POLL_INTERVAL);
+				}
+				System.err.println("Step " + task.stepNr + " is past its burn-in: starting the steps that depend on it");
+				task.scheduler.release(task.id);
+			} catch (InterruptedException e) {
+				// the step finished before publishing a snapshot beyond burn-in
+			}
+		}
+
+	}
+
+	/** @return sample number stored in the header of a state file, -1 if there is none (yet) **/
+	static int getSnapshotSample(File stateFile) {
+		if (!stateFile.exists()) {
+			return -1;
+		}
+		try {
+			BufferedReader fin = new BufferedReader(new InputStreamReader(CompressedIO.openInput(stateFile)));
+			try {
+				String header = fin.readLine();
+				Matcher matcher = SNAPSHOT_SAMPLE.matcher(header != null ? header : "");
+				return matcher.find() ? Integer.parseInt(matcher.group(1)) : -1;
+			} finally {
+				fin.close();
+			}
+		} catch (IOException e) {
+			// replaced while reading, try again later
+			return -1;
+		}
+	}
+
+	/**
+	 * Add all steps that are not done to scheduler. Every step waits for the step it starts 
+	 * from according to the manifest, as in the run scripts, unless that step is done already.
+	 */
+	void scheduleSteps(StepScheduler scheduler) {
+		int [] ids = new int[m_nSteps];
+		stepTasks = new ArrayList<StepTask>();
+		for (int i = 0; i < m_nSteps; i++) {
+			RunManifest.Step step = manifest.getStep(i);
+			int startsFrom = step.startsFrom;
+			if (step.status == RunManifest.Status.done) {
+				ids[i] = -1;
+			} else {
+				StepTask task = new StepTask(i);
+				if (startsFrom < 0 || ids[startsFrom] < 0) {
+					ids[i] = scheduler.add(task);
+				} else {
+					ids[i] = scheduler.add(task, ids[startsFrom]);
+				}
+				task.scheduler = scheduler;
+				task.id = ids[i];
+				stepTasks.add(task);
 			}
-			System.err.println("Finished step " + stepNr);
-			m_nCountDown.countDown();
 		}
 	}
 	
@@ -336,84 +1245,140 @@ public class PathSampler extends beast.core.Runnable {
     		return;
     	}
     	long startTime = System.currentTimeMillis();
+    	if (timeBudgetInput.get() > 0) {
+    		budget = new WallTimeBudget(this, pilotStartTime > 0 ? pilotStartTime : startTime, timeBudgetInput.get(), minESSInput.get());
+    	}
+    	RunMetricsServer metricsServer = null;
+    	if (metricsPortInput.get() >= 0) {
+    		metricsServer = new RunMetricsServer(this);
+    		metricsServer.start(metricsPortInput.get());
+    	}
+
+    	runSteps();
+    	if (hostScheduler != null) {
+    		hostScheduler.save(new File(rootDirInput.get(), HostScheduler.HOSTS_FILE));
+    	}
 
-		for (int i = 0; i < m_nSteps; i++) {
-	    	if (BeastMCMC.m_nThreads > 1) {
-	    		int nSteps = Math.min(BeastMCMC.m_nThreads, m_nSteps - i);
-	    		m_nCountDown = new CountDownLatch(nSteps);
-	    		for (int j = 0; j < nSteps; j++) {
-	    			new StepThread(i).start();
-	    			i++;
-	    		}
-	    		m_nCountDown.await();	    		
-    			for (int j = 0; j < BeastMCMC.m_nThreads && i+j < m_nSteps; j++) {
-    				copyStateFile(i-1, i + j);	    			
-    				checkLogFiles(i + j);
-    			}
-	    		i--;
-	    	} else {
-				File stepDir = new File(getStepDir(i));
-				if (!stepDir.exists()) {
-					throw new Exception("Failed to find directory " + stepDir.getName());
-				}
-	        	String cmd = 
-	        			(beast.app.util.Utils.isWindows()?
-	        					stepDir.getAbsoluteFile() + "\\run.bat":
-	        					stepDir.getAbsoluteFile() + "/run.sh");
-	        	
-	        	
-//				try {
-	    		if (i > 0) {
-	    			copyStateFile(i-1, i);
-	    		}
-				checkLogFiles(i);
-					
-					System.out.println(cmd);
-					
-					ProcessBuilder pb = new ProcessBuilder(cmd);
-					pb.redirectErrorStream(true); // merge stdout and stderr
-					Process p = pb.start();
-					
-					BufferedReader pout = new BufferedReader((new InputStreamReader(p.getInputStream())));
-					String line;
-					while ((line = pout.readLine()) != null) {
-						System.out.println(line);
-					}
-					pout.close();
-					p.waitFor();
-//				} catch (Exception e) {
-//					e.printStackTrace();
-//				}
-	    	}
-		}
     	long endTime = System.currentTimeMillis();
+    	if (metricsServer != null) {
+    		metricsServer.stop();
+    	}
 
     	analyse();
 
+    	if (budget != null) {
+    		budget.report();
+    	}
 		System.out.println("\n\nTotal wall time: " + (endTime-startTime)/1000 + " seconds\nDone");
     } // run;	
 
 
-	void analyse() throws Exception {
-    	PathSampleAnalyser analyser = new PathSampleAnalyser();
-    	double marginalL = analyser.estimateMarginalLikelihood(m_nSteps, alphaInput.get(), rootDirInput.get(), burnInPercentage);
+	/** run all steps that are not done, on as many threads as BEAST is given **/
+	void runSteps() throws Exception {
+    	workers = createWorkerPool();
+    	stepFactory = createStepFactory();
+    	StepScheduler scheduler = new StepScheduler();
+    	scheduleSteps(scheduler);
+    	SpeculationMonitor speculation = startSpeculation(scheduler);
+    	try {
+    		scheduler.run(BeastMCMC.m_nThreads);
+    	} finally {
+    		if (speculation != null) {
+    			speculation.interrupt();
+    		}
+    		if (workers != null) {
+    			workers.close();
+    			workers = null;
+    		}
+    	}
+    	if (scheduler.getFailedCount() > 0) {
+    		throw new Exception(scheduler.getFailedCount() + " steps failed and " + scheduler.getSkippedCount() +
+    				" steps starting from them did not run, see " + manifest.file.getPath() +
+    				". Once the cause is fixed, the run can be continued with resume='true'");
+    	}
+	}
+
+	/** @return pool of worker JVMs for running steps, null if steps are run through their scripts **/
+	StepWorkerPool createWorkerPool() {
+		if (!workersInput.get()) {
+			return null;
+		}
+		return new StepWorkerPool(workerJVMArgsInput.get(), stepsPerWorkerInput.get(), 
+				workerHeapFractionInput.get(), BeastMCMC.m_nThreads == 1);
+	}
+
+	/** @return factory for running steps in this JVM, null if steps run in processes of their own **/
+	StepFactory createStepFactory() throws Exception {
+		if (!inProcessInput.get()) {
+			return null;
+		}
+		if (workersInput.get()) {
+			throw new Exception("Steps can either run in worker JVMs or in this JVM, not both: set workers or inProcess to false");
+		}
+		if (stepTimeoutInput.get() > 0) {
+			System.err.println("WARNING: stepTimeout is ignored for steps run in this JVM");
+		}
+		// whether a step appends to its log is set per step by the factory, not through Logger.FILE_MODE
+		return new StepFactory(BeastMCMC.m_nThreads == 1);
+	}
+
+	/** analyse logs of all steps, print and return the estimate **/
+	double analyse() throws Exception {
+    	double marginalL = PathSampleAnalyser.estimate(manifest, burnInPercentage);
 		System.out.println("marginal L estimate = " + marginalL);
+		return marginalL;
 	}
 
 
 	void printDoNotRunMessage() {
 		System.out.println("batch files can be found in " + rootDirInput.get());
 		System.out.println("Run these and then run"); 
-		System.out.println("java beast.inference.PathSampleAnalyser " + m_nSteps + " " + alphaInput.get() + " " + rootDirInput.get() + " " + burnInPercentage);
+		System.out.println("java beast.inference.PathSampleAnalyser " + rootDirInput.get());
+	}
+
+
+	/**
+	 * change the chain length of a step that has not started yet in its beast.xml and the manifest,
+	 * together with the logging interval of its likelihood, and how often it stores its state
+	 */
+	void changeChainLength(RunManifest.Step step, int chainLength) throws Exception {
+		File xmlFile = new File(step.dir, "beast.xml");
+		String xml = new String(CompressedIO.readFully(xmlFile), "UTF-8");
+		xml = xml.replaceFirst("chainLength=(['\"])[0-9]+", "chainLength=$1" + chainLength);
+		if (pipelineInput.get()) {
+			xml = xml.replaceFirst("storeEvery=(['\"])[0-9]+", "storeEvery=$1" + Math.max(1, chainLength / SNAPSHOTS_PER_STEP));
+		}
+		int logEvery = Math.max(1, chainLength * chainsPerStepInput.get() / 1000);
+		Matcher logger = LIKELIHOOD_LOGGER.matcher(xml);
+		if (!logger.find() || !LOG_EVERY.matcher(logger.group()).find()) {
+			throw new Exception("Could not find the logEvery attribute of the logger of " + LIKELIHOOD_LOG_FILE + " in " + xmlFile.getPath());
+		}
+		xml = xml.substring(0, logger.start()) + LOG_EVERY.matcher(logger.group()).replaceFirst("$1" + logEvery) + xml.substring(logger.end());
+		CompressedIO.writeAtomically(xmlFile, xml);
+		step.chainLength = chainLength;
 	}
 
+	/** @return number of the last sample in the likelihood log of step, -1 if it did not log anything **/
+	static int getLastSample(RunManifest.Step step) {
+		try {
+			double [] samples = new TraceLogReader(new File(step.logFile)).getTrace("Sample", 0);
+			return samples.length > 0 ? (int) samples[samples.length - 1] : -1;
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/** name of the state file written by steps **/
+	String getStateFileName() {
+		return STATE_FILE + (compressInput.get() ? CompressedIO.GZIP_EXTENSION : "");
+	}
 
 	/** check for log files in directory for step i **/
 	private void checkLogFiles(int i) throws Exception {
 		File stepDir = new File(getStepDir(i));
 		
 		// remove any existing likglihood.log file
-		File logFile = new File(stepDir.getPath() + fileSep + "likelihood.log");
+		File logFile = CompressedIO.find(new File(stepDir.getPath() + fileSep + LIKELIHOOD_LOG_FILE));
 		if (logFile.exists()) {
 			if (deleteOldLogsInpuyt.get()) {
 				System.err.println("WARNING: deleting file " + logFile.getPath());
@@ -425,8 +1390,12 @@ public class PathSampler extends beast.core.Runnable {
 		
 		// process other log and tree files
 		for (File file : stepDir.listFiles()) {
-			if (file.getPath().endsWith(".log") || 
-					file.getPath().endsWith(".trees")) {
+			String path = file.getPath();
+			if (CompressedIO.isCompressed(file)) {
+				path = path.substring(0, path.length() - CompressedIO.GZIP_EXTENSION.length());
+			}
+			if (path.endsWith(".log") || 
+					path.endsWith(".trees")) {
 				if (deleteOldLogsInpuyt.get()) {
 				System.err.println("WARNING: deleting file " + file.getPath());
 					file.delete();
@@ -437,19 +1406,30 @@ public class PathSampler extends beast.core.Runnable {
 		}
 	}
 
-	/** copy beast.xml.state file from previous directory **/
+	/** copy beast.xml.state file from previous directory, 
+	 * as is, so a gzipped state stays gzipped **/
 	private void copyStateFile(int iFrom, int iTo) throws Exception {
+		copyStateFile(iFrom, getStepDir(iTo));
+	}
+
+	/**
+	 * copy the state of step iFrom to directory toDir. The sample number in the copy is set to 0,
+	 * so the step starts its chain from the start, and only continues from a sample number
+	 * once it stored a state of its own.
+	 */
+	private void copyStateFile(int iFrom, String toDir) throws Exception {
 		File prevStepDir = new File(getStepDir(iFrom));
-		File stepDir = new File(getStepDir(iTo));
-        InputStream in = new FileInputStream(new File(prevStepDir.getPath() + fileSep + "beast.xml.state"));
-        OutputStream out = new FileOutputStream(new File(stepDir.getPath() + fileSep + "beast.xml.state"));
-        byte[] buf = new byte[1024];
-        int len;
-        while ((len = in.read(buf)) > 0) {
-            out.write(buf, 0, len);
-        }
-        in.close();
-        out.close();
+		File stepDir = new File(toDir);
+		File stateFile = CompressedIO.find(new File(prevStepDir.getPath() + fileSep + STATE_FILE));
+		// remove stale states, so the step does not pick up the wrong one
+		new File(stepDir.getPath() + fileSep + STATE_FILE).delete();
+		new File(stepDir.getPath() + fileSep + STATE_FILE + CompressedIO.GZIP_EXTENSION).delete();
+		String state = new String(CompressedIO.readFully(stateFile), "UTF-8");
+		Matcher matcher = SNAPSHOT_SAMPLE.matcher(state);
+		if (matcher.find()) {
+			state = state.substring(0, matcher.start(1)) + "0" + state.substring(matcher.end(1));
+		}
+		CompressedIO.writeAtomically(new File(stepDir.getPath() + fileSep + stateFile.getName()), state);
 	}
 
 	@Override
@@ -0,0 +1,169 @@
+package beast.inference;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import beast.app.BeastMCMC;
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Input.Validate;
+
+@Description("Calculate marginal likelihoods of many models through path sampling. " +
+		"The steps of all models share a single queue, so all threads are kept busy " +
+		"as long as any model has a step that can run. " +
+		"Every model gets its own directory under rootdir, named after its file.")
+public class PathSamplerBatch extends PathSampler {
+	public static String BATCH_RESULTS_FILE = "batch-results.txt";
+
+	public Input<List<File>> modelsInput = new Input<List<File>>("models", "file names of BEAST XML files containing the models " +
+			"for which to run the path sampler", new ArrayList<File>());
+	public Input<File> modelDirInput = new Input<File>("modelDir", "directory containing BEAST XML files (*.xml) of models " +
+			"for which to run the path sampler, in addition to those in models");
+
+	List<File> modelFiles;
+	List<PathSamplerFromFile> samplers;
+
+	public PathSamplerBatch() {
+		mcmcInput.setRule(Validate.OPTIONAL);
+		m_sScriptInput.setRule(Validate.OPTIONAL);
+	}
+
+	@Override
+	public void initAndValidate() throws Exception {
+		modelFiles = new ArrayList<File>(modelsInput.get());
+		if (modelDirInput.get() != null) {
+			File [] files = modelDirInput.get().listFiles(new FileFilter() {
+				@Override
+				public boolean accept(File file) {
+					return file.isFile() && file.getName().toLowerCase().endsWith(".xml");
+				}
+			});
+			if (files == null) {
+				throw new Exception(modelDirInput.get() + " is not a directory.");
+			}
+			Arrays.sort(files);
+			modelFiles.addAll(Arrays.asList(files));
+		}
+	}
+
+	@Override
+	public void run() throws Exception {
+		if (modelFiles.size() == 0) {
+			throw new Exception("No models given: specify models or modelDir");
+		}
+		if (timeBudgetInput.get() > 0) {
+			System.err.println("WARNING: timeBudget is ignored for batches, since the steps of all models compete for the same threads");
+		}
+		samplers = new ArrayList<PathSamplerFromFile>();
+		List<String> names = new ArrayList<String>();
+		for (File file : modelFiles) {
+			String name = file.getName().replaceAll("\\.xml$", "");
+			if (names.contains(name)) {
+				throw new Exception("Two models with the same file name " + file.getName() + ": their directories would clash");
+			}
+			names.add(name);
+			System.err.println("Setting up " + file.getPath());
+			samplers.add(createSampler(file, rootDirInput.get() + "/" + name));
+		}
+		// a single scheduler for the hosts, so the steps of all models together do not exceed the slots of a host,
+		// and all models contribute to the observed throughput
+		parseHosts();
+		HostScheduler hostScheduler = createHostScheduler();
+		for (PathSamplerFromFile sampler : samplers) {
+			sampler.hostScheduler = hostScheduler;
+			if (resumeInput.get()) {
+				sampler.loadManifest();
+			} else {
+				sampler.allocateChainLengths();
+				sampler.generateStepFiles();
+			}
+		}
+		if (doNotRun.get()) {
+			for (PathSamplerFromFile sampler : samplers) {
+				sampler.printDoNotRunMessage();
+			}
+			return;
+		}
+
+		long startTime = System.currentTimeMillis();
+		// all models share the worker JVMs, or the data shared by steps run in this JVM
+		StepWorkerPool workers = createWorkerPool();
+		StepFactory stepFactory = createStepFactory();
+		StepScheduler scheduler = new StepScheduler();
+		for (PathSamplerFromFile sampler : samplers) {
+			sampler.workers = workers;
+			sampler.stepFactory = stepFactory;
+			sampler.scheduleSteps(scheduler);
+		}
+		List<Thread> speculation = new ArrayList<Thread>();
+		for (PathSamplerFromFile sampler : samplers) {
+			Thread monitor = sampler.startSpeculation(scheduler);
+			if (monitor != null) {
+				speculation.add(monitor);
+			}
+		}
+		try {
+			scheduler.run(BeastMCMC.m_nThreads);
+		} finally {
+			for (Thread monitor : speculation) {
+				monitor.interrupt();
+			}
+			if (workers != null) {
+				workers.close();
+			}
+		}
+		if (hostScheduler != null) {
+			hostScheduler.save(new File(rootDirInput.get(), HostScheduler.HOSTS_FILE));
+		}
+		if (scheduler.getFailedCount() > 0) {
+			// models whose steps all ran are still analysed
+			System.err.println("WARNING: " + scheduler.getFailedCount() + " steps failed and " + scheduler.getSkippedCount() +
+					" steps starting from them did not run. Once the cause is fixed, the batch can be continued with resume='true'");
+		}
+		long endTime = System.currentTimeMillis();
+
+		// consolidated results
+		PrintStream out = new PrintStream(new File(rootDirInput.get(), BATCH_RESULTS_FILE));
+		out.println("model\tmarginalL\trootdir");
+		for (int i = 0; i < samplers.size(); i++) {
+			PathSamplerFromFile sampler = samplers.get(i);
+			double marginalL = Double.NaN;
+			try {
+				marginalL = sampler.analyse();
+			} catch (Exception e) {
+				System.err.println("Could not analyse " + modelFiles.get(i).getPath() + ": " + e.getMessage());
+			}
+			out.println(modelFiles.get(i).getPath() + "\t" + marginalL + "\t" + sampler.rootDirInput.get());
+		}
+		out.close();
+		System.out.println("\nResults of all models:");
+		System.out.print(new String(CompressedIO.readFully(new File(rootDirInput.get(), BATCH_RESULTS_FILE)), "UTF-8"));
+		System.out.println("\n\nTotal wall time: " + (endTime-startTime)/1000 + " seconds\nDone");
+	}
+
+	/** path sampler for a single model, with all settings but the root directory taken from this batch **/
+	private PathSamplerFromFile createSampler(File modelFile, String rootDir) throws Exception {
+		if (!modelFile.exists()) {
+			throw new Exception("Could not find model " + modelFile.getPath());
+		}
+		PathSamplerFromFile sampler = new PathSamplerFromFile();
+		for (Input<?> input : listInputs()) {
+			if (input == modelsInput || input == modelDirInput || input == rootDirInput || input == mcmcInput || input == timeBudgetInput || input.get() == null) {
+				continue;
+			}
+			try {
+				sampler.setInputValue(input.getName(), input.get());
+			} catch (Exception e) {
+				// not an input of the sampler
+			}
+		}
+		sampler.model1Input.setValue(modelFile, sampler);
+		sampler.rootDirInput.setValue(rootDir, sampler);
+		sampler.initAndValidate();
+		return sampler;
+	}
+}
@@ -1,6 +1,12 @@
 package beast.inference;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import beast.core.Description;
 import beast.core.Distribution;
@@ -8,6 +14,7 @@ import beast.core.Input;
 import beast.core.Logger;
 import beast.core.MCMC;
 import beast.core.Operator;
+import beast.core.StateNode;
 import beast.core.StateNodeInitialiser;
 import beast.core.util.CompoundDistribution;
 import beast.core.util.Evaluator;
@@ -19,11 +26,36 @@ import beast.util.Randomizer;
 public class PathSamplingStep extends MCMC {
 
 	public Input<Double> betaInput = new Input<Double>("beta","power used for likelihood: 1 = using full posterior, 0 = using prior only", 1.0);
+	public Input<Integer> progressEveryInput = new Input<Integer>("progressEvery", "interval in seconds for writing progress of this step to " +
+			PathSampler.PROGRESS_FILE + " in the step directory. Not written if zero or less (default 0)", 0);
+	public Input<Boolean> profileInput = new Input<Boolean>("profile", "record per operator timing of the MCMC loop and write it to " +
+			PathSampler.PROFILE_FILE + " in the step directory. Can be switched on and off through JMX while running, " +
+			"which requires the step to profile or report progress, since only then its metrics are registered with JMX (default false)", false);
+	public Input<Double> logEveryACTInput = new Input<Double>("logEveryACT", "if larger than zero, the interval of trace loggers is set to " +
+			"this multiple of the integrated autocorrelation time, which is estimated at the start of the chain. " +
+			"Samples up to then are logged once the interval is known. Ignored when a chain continues from a state it stored, " +
+			"since a log keeps the interval it started with (default 0, which keeps logEvery of the loggers)", 0.0);
+	public Input<Integer> disperseInput = new Input<Integer>("disperse", "number of iterations at the start of burn-in that sample " +
+			"from the prior only, so that independent chains of a step start from dispersed states. Ignored when resuming (default 0)", 0);
+	public Input<Boolean> compressStateInput = new Input<Boolean>("compressState", "store state gzipped, in the state file name + .gz (default false)", false);
 
 	double beta;
 	Distribution prior;
 	Distribution likelihood;
+	StepMetrics metrics;
+	/** whether the MCMC loop updates metrics, only when the step reports progress or profiles **/
+	boolean recordMetrics;
+	/** null till profiling is switched on **/
+	StepProfiler profiler;
+	LogIntervalAdapter logAdapter;
+	/** sample the chain starts at: 0, or the sample its state was stored at when it continues from it **/
+	int startSample;
+	/** writes snapshots stored while sampling in the background, null when not sampling **/
+	CheckpointWriter checkpointWriter;
 	
+	/** state node in a state file, as written by State.toXML() **/
+	final static Pattern STATE_NODE = Pattern.compile("<statenode id=['\"]([^'\"]*)['\"]>.*?</statenode>\\n?", Pattern.DOTALL);
+
 	@Override
 	public void initAndValidate() throws Exception {
 		super.initAndValidate();
@@ -53,6 +85,28 @@ public class PathSamplingStep extends MCMC {
 	}
 	
 	
+	/** remove state nodes the state does not have from the state file, since the state cannot restore them **/
+	void dropUnknownStateNodes(File stateFile) throws IOException {
+		Set<String> ids = new HashSet<String>();
+		for (StateNode stateNode : state.stateNodeInput.get()) {
+			ids.add(stateNode.getID());
+		}
+		String content = new String(CompressedIO.readFully(stateFile), "UTF-8");
+		Matcher matcher = STATE_NODE.matcher(content);
+		StringBuffer buf = new StringBuffer();
+		boolean dropped = false;
+		while (matcher.find()) {
+			if (!ids.contains(matcher.group(1))) {
+				matcher.appendReplacement(buf, "");
+				dropped = true;
+			}
+		}
+		if (dropped) {
+			matcher.appendTail(buf);
+			CompressedIO.writeAtomically(stateFile, buf.toString());
+		}
+	}
+
     @Override
     public void run() throws Exception {
         // set up state (again). Other plugins may have manipulated the
@@ -64,11 +118,23 @@ public class PathSamplingStep extends MCMC {
 
         burnIn = burnInInput.get();
         chainLength = chainLengthInput.get();
+        if (storeEveryInput.get() != null && storeEveryInput.get() > 0) {
+        	storeEvery = storeEveryInput.get();
+        }
         int nInitiliasiationAttemps = 0;
         state.setEverythingDirty(true);
         posterior = posteriorInput.get();
 
+        startSample = 0;
         if (restoreFromFile) {
+            File stateFile = new File(stateFileName);
+            // continue the chain from the sample its state was stored at, 0 for a state copied from another step
+            startSample = Math.max(0, PathSampler.getSnapshotSample(CompressedIO.find(stateFile)));
+            if (CompressedIO.isCompressed(CompressedIO.find(stateFile))) {
+            	CompressedIO.copy(CompressedIO.find(stateFile), stateFile);
+            }
+            // a step on a model graph can start from the state of a step that has more state nodes
+            dropUnknownStateNodes(stateFile);
             state.restoreFromFile();
             operatorSchedule.restoreFromFile();
             burnIn = 0;
@@ -98,11 +164,72 @@ public class PathSamplingStep extends MCMC {
         }
 
         // initialises log so that log file headers are written, etc.
+        // Trace loggers hold back samples till the logging interval is known when it is adapted,
+        // which is only done for a chain that starts, since a log that is continued keeps its interval.
+        logAdapter = (logEveryACTInput.get() > 0 && startSample == 0 ? new LogIntervalAdapter(burnIn, chainLength) : null);
         for (Logger log : loggersInput.get()) {
-            log.init();
+        	if (log instanceof TraceLogger) {
+        		// so the log reaches the end of the chain whatever its interval
+        		((TraceLogger) log).setFinalSample(chainLength);
+        	}
+        	if (restoreFromFile && log instanceof TraceLogger) {
+        		// samples logged after the stored state by an earlier attempt are sampled again
+        		((TraceLogger) log).truncate(startSample);
+        	}
+        	if (logAdapter != null && log instanceof TraceLogger) {
+        		((TraceLogger) log).defer(logAdapter.getWindow());
+        	} else {
+        		log.init();
+        	}
+        }
+
+        File progressFile = new File(new File(stateFileName).getAbsoluteFile().getParentFile(), PathSampler.PROGRESS_FILE);
+        // named after the step directory, which is unique also when steps of several runs share a JVM
+        metrics = new StepMetrics(progressFile.getParentFile().getPath(), operatorsInput.get());
+        metrics.start(burnIn, chainLength);
+        metrics.setProfiling(profileInput.get());
+        // the MBean and the counters in the MCMC loop are only there for a step that reports progress or profiles
+        recordMetrics = (progressEveryInput.get() > 0 || profileInput.get());
+        if (recordMetrics) {
+        	metrics.register();
+        }
+        profiler = (profileInput.get() ? new StepProfiler(operatorsInput.get()) : null);
+        if (progressEveryInput.get() > 0) {
+        	metrics.startReporter(progressFile, progressEveryInput.get());
+        }
+
+        checkpointWriter = new CheckpointWriter(getStateFile());
+        checkpointWriter.start();
+        Throwable failure = null;
+        try {
+        	doLoop();
+        } catch (Throwable e) {
+        	failure = e;
+        	throw e;
+        } finally {
+        	try {
+        		// reports a snapshot that failed to be written in the background
+        		checkpointWriter.close();
+        	} catch (Exception e) {
+        		if (failure != null) {
+        			// keep the reason sampling failed
+        			failure.addSuppressed(e);
+        		} else {
+        			failure = e;
+        			throw e;
+        		}
+        	} finally {
+        		checkpointWriter = null;
+        		// also when sampling or writing the state failed, so no reporter thread or MBean outlives the step in a worker JVM
+        		metrics.finish();
+        		metrics.stopReporter(progressFile, failure == null);
+        		metrics.unregister();
+        	}
         }
 
-        doLoop();
+        if (profiler != null) {
+        	profiler.report(new File(progressFile.getParentFile(), PathSampler.PROFILE_FILE));
+        }
 
         operatorSchedule.showOperatorRates(System.out);
         long tEnd = System.currentTimeMillis();
@@ -111,13 +238,51 @@ public class PathSamplingStep extends MCMC {
 
         System.err.println("End likelihood: " + oldLogLikelihood);
 //        System.err.println(state);
-        state.storeToFile(chainLength);
+        storeState(chainLength);
         // Do not store operator optimisation information
         // since this may not be valid for the next step
         // especially when sampling from the prior only
 //        operatorSchedule.storeToFile();
     } // run;
 	
+	/** 
+	 * store state to file, compressed if required. The file is replaced atomically, 
+	 * so a pipelined step can copy it at any time while this step is running.
+	 * While sampling, only a snapshot is taken here, and the file is written in the background.
+	 **/
+	protected void storeState(int iSample) throws Exception {
+		String snapshot = state.toXML(iSample);
+		if (checkpointWriter != null) {
+			checkpointWriter.submit(snapshot);
+		} else {
+			CompressedIO.writeAtomically(getStateFile(), snapshot);
+		}
+	}
+
+	private File getStateFile() {
+		return new File(stateFileName + (compressStateInput.get() ? CompressedIO.GZIP_EXTENSION : ""));
+	}
+
+	/** record trace value during adaptation window, and start trace loggers once the window is complete **/
+	protected void adaptLogging() throws Exception {
+		if (logAdapter.add(getTraceValue())) {
+			double act = logAdapter.getACT();
+			int logEvery = logAdapter.getLogEvery(logEveryACTInput.get());
+			System.err.println("Integrated autocorrelation time: " + act + ", logging every " + logEvery + " samples");
+			for (Logger log : loggersInput.get()) {
+				if (log instanceof TraceLogger && ((TraceLogger) log).deferredSamples != null) {
+					((TraceLogger) log).setLogEvery(logEvery, act);
+					log.init();
+				}
+			}
+			logAdapter = null;
+		}
+	}
+
+	/** value logged as likelihood for this step **/
+	protected double getTraceValue() {
+		return likelihood.getCurrentLogP();
+	}
 	
 	
     /**
@@ -127,15 +292,28 @@ public class PathSamplingStep extends MCMC {
     	
         double logPriorProb = prior.calculateLogP();
         double logLikelihood = likelihood.calculateLogP();        
-        oldLogLikelihood = logPriorProb + logLikelihood * beta; 
-    	
+        // sample from the prior only at the start of burn-in, to disperse the starting state
+        int dispersedUntil = -burnIn + Math.min(disperseInput.get(), burnIn);
+        double stepBeta = (dispersedUntil > -burnIn ? 0.0 : beta);
+        oldLogLikelihood = logPriorProb + logLikelihood * stepBeta; 
     	
-        for (int iSample = -burnIn; iSample <= chainLength; iSample++) {
+    	final boolean recording = recordMetrics;
+        for (int iSample = startSample - burnIn; iSample <= chainLength; iSample++) {
             final int currentState = iSample;
+            if (iSample == dispersedUntil && stepBeta != beta) {
+            	stepBeta = beta;
+            	oldLogLikelihood = prior.getCurrentLogP() + likelihood.getCurrentLogP() * beta;
+            }
+            final boolean profiling = recording && metrics.profiling;
+            if (profiling && profiler == null) {
+            	// switched on through JMX
+            	profiler = new StepProfiler(operatorsInput.get());
+            }
+            long t = (profiling ? System.nanoTime() : 0);
 
             state.store(currentState);
             if (storeEvery > 0 && iSample % storeEvery == 0 && iSample > 0) {
-                state.storeToFile(iSample);
+                storeState(iSample);
                 // Do not store operator optimisation information
                 // since this may not be valid for the next step
                 // especially when sampling from the prior only
@@ -143,6 +321,11 @@ public class PathSamplingStep extends MCMC {
             }
 
             Operator operator = operatorSchedule.selectOperator();
+            // looked up once per iteration, and only when metrics are recorded
+            final int operatorNr = (recording ? metrics.indexOf(operator) : -1);
+            if (profiling) {
+            	t = profiler.record(operatorNr, StepProfiler.STORE, t);
+            }
             //System.out.print("\n" + iSample + " " + operator.getName()+ ":");
 
             final Distribution evaluatorDistribution = operator.getEvaluatorDistribution();
@@ -173,6 +356,9 @@ public class PathSamplingStep extends MCMC {
             }
 
             double fLogHastingsRatio = operator.proposal(evaluator);
+            if (profiling) {
+            	t = profiler.record(operatorNr, StepProfiler.PROPOSAL, t);
+            }
 
             if (fLogHastingsRatio != Double.NEGATIVE_INFINITY) {
 
@@ -184,7 +370,11 @@ public class PathSamplingStep extends MCMC {
                 logPriorProb = prior.getArrayValue();
                 logLikelihood = likelihood.getArrayValue();
                 
-                newLogLikelihood = logPriorProb + logLikelihood * beta; 
+                newLogLikelihood = logPriorProb + logLikelihood * stepBeta; 
+
+                if (profiling) {
+                	t = profiler.record(operatorNr, StepProfiler.CALCULATE, t);
+                }
 
                 logAlpha = newLogLikelihood - oldLogLikelihood + fLogHastingsRatio; //CHECK HASTINGS
                 //System.out.println(logAlpha + " " + fNewLogLikelihood + " " + fOldLogLikelihood);
@@ -196,12 +386,24 @@ public class PathSamplingStep extends MCMC {
                     if (iSample >= 0) {
                         operator.accept();
                     }
+                    if (recording) {
+                    	metrics.accepted(operatorNr);
+                    }
+                    if (profiling) {
+                    	profiler.accepted(operatorNr);
+                    }
                     //System.out.print(" accept");
                 } else {
                     // reject
                     if (iSample >= 0) {
                         operator.reject();
                     }
+                    if (recording) {
+                    	metrics.rejected(operatorNr);
+                    }
+                    if (profiling) {
+                    	profiler.rejected(operatorNr);
+                    }
                     state.restore();
                     state.restoreCalculationNodes();
                     //System.out.print(" reject");
@@ -212,13 +414,31 @@ public class PathSamplingStep extends MCMC {
                 if (iSample >= 0) {
                     operator.reject();
                 }
+                if (recording) {
+                	metrics.rejected(operatorNr);
+                }
+                if (profiling) {
+                	profiler.rejected(operatorNr);
+                }
                 state.restore();
                 //System.out.print(" direct reject");
             }
+            if (profiling) {
+            	t = profiler.record(operatorNr, StepProfiler.ACCEPT_REJECT, t);
+            }
             log(iSample);
+            if (recording) {
+            	metrics.sampled(iSample, getTraceValue());
+            }
+            if (logAdapter != null) {
+            	adaptLogging();
+            }
 
             operator.optimize(logAlpha);
             callUserFunction(iSample);
+            if (profiling) {
+            	profiler.record(operatorNr, StepProfiler.LOG, t);
+            }
         }
     }
 }
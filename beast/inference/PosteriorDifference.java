@@ -0,0 +1,49 @@
+package beast.inference;
+
+import java.io.PrintStream;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Distribution;
+import beast.core.Input;
+import beast.core.Loggable;
+import beast.core.Input.Validate;
+
+@Description("Logs the difference between the log densities of two posteriors, as column diff-posterior.label. " +
+		"Both posteriors must be calculated by the MCMC analysis it is logged from.")
+public class PosteriorDifference extends BEASTObject implements Loggable, TraceSource {
+	public Input<Distribution> posteriorInput = new Input<Distribution>("posterior", "first posterior", Validate.REQUIRED);
+	public Input<Distribution> posterior2Input = new Input<Distribution>("posterior2", "second posterior, which is subtracted from the first", Validate.REQUIRED);
+	public Input<String> labelInput = new Input<String>("label", "suffix of the column label", Validate.REQUIRED);
+
+	public final static String COLUMN_PREFIX = "diff-posterior.";
+
+	Distribution posterior;
+	Distribution posterior2;
+
+	@Override
+	public void initAndValidate() throws Exception {
+		posterior = posteriorInput.get();
+		posterior2 = posterior2Input.get();
+	}
+
+	@Override
+	public void init(PrintStream out) throws Exception {
+		out.append(COLUMN_PREFIX + labelInput.get() + "\t");
+	}
+
+	@Override
+	public double getTraceValue() {
+		return posterior.getCurrentLogP() - posterior2.getCurrentLogP();
+	}
+
+	@Override
+	public void log(int nSample, PrintStream out) {
+		out.append(getTraceValue() + "\t");
+	}
+
+	@Override
+	public void close(PrintStream out) {
+		// nothing to do
+	}
+}
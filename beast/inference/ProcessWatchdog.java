@@ -0,0 +1,67 @@
+package beast.inference;
+
+/**
+ * Destroys a process that runs longer than its time limit, so a step that hangs,
+ * or runs on a host that stopped responding, does not hold up the steps after it.
+ * The process can also be stopped on request, e.g. when a speculative duplicate
+ * of the step finished first.
+ * Cancel the watchdog when the process ends.
+ */
+public class ProcessWatchdog extends Thread {
+	final long timeout;
+	Process process;
+	volatile boolean timedOut;
+	volatile boolean stopped;
+
+	/** @param timeout time limit in milliseconds, unlimited if zero or less **/
+	public ProcessWatchdog(long timeout) {
+		super("ProcessWatchdog");
+		this.timeout = timeout;
+		setDaemon(true);
+	}
+
+	/** start watching process, which is destroyed straight away if it was stopped before it started **/
+	public synchronized void watch(Process process) {
+		this.process = process;
+		if (stopped) {
+			process.destroy();
+		} else if (timeout > 0) {
+			start();
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			Thread.sleep(timeout);
+		} catch (InterruptedException e) {
+			// cancelled
+			return;
+		}
+		timedOut = true;
+		stopProcess();
+	}
+
+	/** destroy the process now **/
+	public synchronized void stopProcess() {
+		stopped = true;
+		if (process != null) {
+			process.destroy();
+		}
+	}
+
+	/** stop watching, the process ended **/
+	public void cancel() {
+		interrupt();
+	}
+
+	/** @return true if the process was destroyed because it ran out of time **/
+	public boolean isTimedOut() {
+		return timedOut;
+	}
+
+	/** @return true if the process was destroyed, because it ran out of time or on request **/
+	public boolean isStopped() {
+		return stopped;
+	}
+}
@@ -0,0 +1,292 @@
+package beast.inference;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Machine readable description of a path sampling run, written to MANIFEST_FILE in the root
+ * directory when the step files are set up, and updated whenever a step starts or finishes.
+ * It records for every step its beta, seed, chain length, burn-in, wall time, status and files,
+ * and the number of samples it ran, so analysers and resumed runs can pick up the run as it was set up, without being told
+ * the number of steps, alpha or burn-in again.
+ * When steps run several chains, every chain has its own entry, in order of the steps.
+ */
+public class RunManifest {
+	public final static String MANIFEST_FILE = "manifest.json";
+	/** seed of steps that ran in the JVM of the path sampler next to other steps, and so were not seeded **/
+	public final static long NO_SEED = -1;
+
+	public enum Status {
+		pending, running, done, failed
+	}
+
+	/** description of a single chain of a step **/
+	public static class Step {
+		/** index of the step, which differs from the index of the entry when steps have several chains **/
+		public int step;
+		/** index of the chain within the step **/
+		public int chain;
+		public double beta;
+		/** seed the step ran with, NO_SEED if it shared the random number generator with other steps **/
+		public long seed;
+		/** chain length the step was set up with **/
+		public int chainLength;
+		/** last sample logged by the step when it finished, -1 if it did not finish yet **/
+		public int samples = -1;
+		/** variance and autocorrelation time of the pilot of the step the chain length was based on, -1 without pilot run **/
+		public double pilotVariance = -1;
+		public double pilotACT = -1;
+		/** number of samples discarded by the MCMC chain of the step **/
+		public int burnIn;
+		/** step whose final state this step starts from, -1 if it starts from scratch **/
+		public int startsFrom = -1;
+		/** number of times the step was started in its last run, including retries **/
+		public int attempts;
+		/** wall time of the last run of the step, in milliseconds **/
+		public long wallTime;
+		public Status status = Status.pending;
+		public String dir;
+		public String logFile;
+		public String stateFile;
+		public String script;
+		public String resumeScript;
+		/** host the step is assigned to, null without hosts **/
+		public String host;
+
+		JSONObject toJSON() throws JSONException {
+			JSONObject o = new JSONObject();
+			o.put("step", step);
+			o.put("chain", chain);
+			o.put("beta", beta);
+			o.put("seed", seed);
+			o.put("chainLength", chainLength);
+			o.put("samples", samples);
+			if (pilotVariance >= 0) {
+				o.put("pilotVariance", pilotVariance);
+				o.put("pilotACT", pilotACT);
+			}
+			o.put("burnIn", burnIn);
+			o.put("startsFrom", startsFrom);
+			o.put("wallTime", wallTime);
+			if (attempts > 0) {
+				o.put("attempts", attempts);
+			}
+			o.put("status", status.name());
+			o.put("dir", dir);
+			o.put("logFile", logFile);
+			o.put("stateFile", stateFile);
+			o.put("script", script);
+			o.put("resumeScript", resumeScript);
+			if (host != null) {
+				o.put("host", host);
+			}
+			return o;
+		}
+
+		static Step fromJSON(JSONObject o, int index) throws JSONException {
+			Step step = new Step();
+			step.step = o.optInt("step", index);
+			step.chain = o.optInt("chain", 0);
+			step.beta = o.getDouble("beta");
+			step.seed = o.getLong("seed");
+			step.chainLength = o.getInt("chainLength");
+			step.samples = o.optInt("samples", -1);
+			step.pilotVariance = o.optDouble("pilotVariance", -1);
+			step.pilotACT = o.optDouble("pilotACT", -1);
+			step.burnIn = o.getInt("burnIn");
+			step.startsFrom = o.optInt("startsFrom", -1);
+			step.wallTime = o.optLong("wallTime", 0);
+			step.attempts = o.optInt("attempts", 0);
+			step.status = Status.valueOf(o.optString("status", Status.pending.name()));
+			step.dir = o.getString("dir");
+			step.logFile = o.getString("logFile");
+			step.stateFile = o.optString("stateFile", null);
+			step.script = o.optString("script", null);
+			step.resumeScript = o.optString("resumeScript", null);
+			step.host = o.optString("host", null);
+			return step;
+		}
+	}
+
+	final File file;
+	/** column of the likelihood logs to analyse, null if the logs have a column per path of a model graph **/
+	String column;
+	/** estimator reported by the analysers **/
+	String estimator;
+	int burnInPercentage;
+	/** betas of the steps along every path, for runs comparing more than two models **/
+	double [] pathBetas;
+	final List<Step> steps = new ArrayList<Step>();
+
+	public RunManifest(String rootDir, String column, String estimator, int burnInPercentage) {
+		this.file = new File(rootDir, MANIFEST_FILE);
+		this.column = column;
+		this.estimator = estimator;
+		this.burnInPercentage = burnInPercentage;
+	}
+
+	private RunManifest(File file) {
+		this.file = file;
+	}
+
+	public static boolean exists(String rootDir) {
+		return new File(rootDir, MANIFEST_FILE).exists();
+	}
+
+	/** read the manifest in rootDir **/
+	public static RunManifest load(String rootDir) throws IOException {
+		RunManifest manifest = new RunManifest(new File(rootDir, MANIFEST_FILE));
+		try {
+			JSONObject o = new JSONObject(new String(CompressedIO.readFully(manifest.file), "UTF-8"));
+			manifest.column = o.optString("column", null);
+			manifest.estimator = o.getString("estimator");
+			manifest.burnInPercentage = o.getInt("burnInPercentage");
+			JSONArray betas = o.optJSONArray("pathBetas");
+			if (betas != null) {
+				manifest.pathBetas = new double[betas.length()];
+				for (int i = 0; i < betas.length(); i++) {
+					manifest.pathBetas[i] = betas.getDouble(i);
+				}
+			}
+			JSONArray steps = o.getJSONArray("steps");
+			for (int i = 0; i < steps.length(); i++) {
+				manifest.steps.add(Step.fromJSON(steps.getJSONObject(i), i));
+			}
+		} catch (JSONException e) {
+			throw new IOException("Could not parse " + manifest.file.getPath() + ": " + e.getMessage());
+		}
+		return manifest;
+	}
+
+	/** write the manifest, replacing the previous version atomically so readers never see half of it **/
+	public synchronized void write() throws IOException {
+		try {
+			JSONObject o = new JSONObject();
+			if (column != null) {
+				o.put("column", column);
+			}
+			o.put("estimator", estimator);
+			o.put("burnInPercentage", burnInPercentage);
+			if (pathBetas != null) {
+				JSONArray betas = new JSONArray();
+				for (double beta : pathBetas) {
+					betas.put(beta);
+				}
+				o.put("pathBetas", betas);
+			}
+			JSONArray array = new JSONArray();
+			for (Step step : steps) {
+				array.put(step.toJSON());
+			}
+			o.put("steps", array);
+			CompressedIO.writeAtomically(file, o.toString(2));
+		} catch (JSONException e) {
+			throw new IOException("Could not write " + file.getPath() + ": " + e.getMessage());
+		}
+	}
+
+	public synchronized void add(Step step) {
+		steps.add(step);
+	}
+
+	/** mark step i as running, and record this in the manifest file **/
+	public synchronized void started(int i) throws IOException {
+		steps.get(i).status = Status.running;
+		write();
+	}
+
+	/** mark step i as done or failed, and record this in the manifest file **/
+	public synchronized void finished(int i, boolean success, long wallTime) throws IOException {
+		Step step = steps.get(i);
+		step.status = (success ? Status.done : Status.failed);
+		step.wallTime = wallTime;
+		write();
+	}
+
+	public synchronized int size() {
+		return steps.size();
+	}
+
+	public synchronized Step getStep(int i) {
+		return steps.get(i);
+	}
+
+	public String getColumn() {
+		return column;
+	}
+
+	public String getEstimator() {
+		return estimator;
+	}
+
+	public int getBurnInPercentage() {
+		return burnInPercentage;
+	}
+
+	public double [] getPathBetas() {
+		return pathBetas;
+	}
+
+	public void setPathBetas(double [] pathBetas) {
+		this.pathBetas = pathBetas;
+	}
+
+	/** @return number of steps, which is less than size() when steps have several chains **/
+	public synchronized int getStepCount() {
+		int n = 0;
+		for (Step step : steps) {
+			n = Math.max(n, step.step + 1);
+		}
+		return n;
+	}
+
+	/** @return beta of every step **/
+	public synchronized double [] getBetas() {
+		double [] betas = new double[getStepCount()];
+		for (Step step : steps) {
+			betas[step.step] = step.beta;
+		}
+		return betas;
+	}
+
+	/** @return per step the directories of all its chains **/
+	public synchronized String [][] getStepDirs() {
+		List<List<String>> dirs = groupByStep();
+		for (Step step : steps) {
+			dirs.get(step.step).add(step.dir);
+		}
+		return toArray(dirs);
+	}
+
+	/** @return per step the likelihood logs of all its chains **/
+	public synchronized String [][] getLogFiles() {
+		List<List<String>> logFiles = groupByStep();
+		for (Step step : steps) {
+			logFiles.get(step.step).add(step.logFile);
+		}
+		return toArray(logFiles);
+	}
+
+	private List<List<String>> groupByStep() {
+		int n = getStepCount();
+		List<List<String>> list = new ArrayList<List<String>>();
+		for (int i = 0; i < n; i++) {
+			list.add(new ArrayList<String>());
+		}
+		return list;
+	}
+
+	private String [][] toArray(List<List<String>> list) {
+		String [][] array = new String[list.size()][];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = list.get(i).toArray(new String[0]);
+		}
+		return array;
+	}
+}
@@ -0,0 +1,140 @@
+package beast.inference;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Properties;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import beast.app.BeastMCMC;
+
+/**
+ * Serves progress of a running PathSampler over HTTP on the loopback interface only.
+ * Per step information is taken from the progress files written by each step,
+ * so this works whether steps run in this JVM or in separate processes.
+ */
+public class RunMetricsServer {
+	final PathSampler sampler;
+	HttpServer server;
+
+	public RunMetricsServer(PathSampler sampler) {
+		this.sampler = sampler;
+	}
+
+	public void start(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				byte [] response = getMetrics().getBytes("UTF-8");
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+				exchange.sendResponseHeaders(200, response.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(response);
+				out.close();
+			}
+		});
+		server.start();
+		System.err.println("Serving progress on http://localhost:" + server.getAddress().getPort() + "/");
+	}
+
+	public void stop() {
+		if (server != null) {
+			server.stop(0);
+			server = null;
+		}
+	}
+
+	/** one block of key=value lines per step, followed by the run totals **/
+	String getMetrics() {
+		StringBuilder buf = new StringBuilder();
+		int nSteps = sampler.m_nSteps;
+		int done = 0, running = 0;
+		double rateSum = 0;
+		int nRates = 0;
+		double remainingSamples = 0;
+		double samplesPerStep = 0;
+		for (int i = 0; i < nSteps; i++) {
+			Properties progress = readProgress(i);
+			buf.append("step" + i + ".status=" + progress.getProperty("status", "pending") + "\n");
+			if (progress.isEmpty()) {
+				continue;
+			}
+			for (String key : new String[]{"iteration", "chainLength", "samplesPerSecond", "meanLogLikelihood", "secondsToCompletion"}) {
+				buf.append("step" + i + "." + key + "=" + progress.getProperty(key) + "\n");
+			}
+			for (String key : progress.stringPropertyNames()) {
+				if (key.startsWith("acceptance.")) {
+					buf.append("step" + i + "." + key + "=" + progress.getProperty(key) + "\n");
+				}
+			}
+			double rate = parse(progress.getProperty("samplesPerSecond"));
+			double chainLength = parse(progress.getProperty("chainLength"));
+			double iteration = parse(progress.getProperty("iteration"));
+			samplesPerStep = Math.max(samplesPerStep, chainLength);
+			if (rate > 0) {
+				rateSum += rate;
+				nRates++;
+			}
+			if ("done".equals(progress.getProperty("status"))) {
+				done++;
+			} else {
+				running++;
+				// iteration is negative during burn-in, so this includes the remaining burn-in
+				remainingSamples += chainLength - iteration;
+			}
+		}
+		int pending = nSteps - done - running;
+		remainingSamples += pending * samplesPerStep;
+		buf.append("run.steps=" + nSteps + "\n");
+		buf.append("run.done=" + done + "\n");
+		buf.append("run.running=" + running + "\n");
+		buf.append("run.pending=" + pending + "\n");
+		if (nRates > 0) {
+			double stepRate = rateSum / nRates;
+			int concurrency = Math.max(1, Math.min(BeastMCMC.m_nThreads, running + pending));
+			buf.append("run.secondsToCompletion=" + remainingSamples / (stepRate * concurrency) + "\n");
+		} else {
+			buf.append("run.secondsToCompletion=NaN\n");
+		}
+		return buf.toString();
+	}
+
+	Properties readProgress(int iStep) {
+		return readProgress(sampler.getStepDir(iStep));
+	}
+
+	/** @return progress of the step in stepDir, empty if it did not report progress yet **/
+	static Properties readProgress(String stepDir) {
+		Properties progress = new Properties();
+		File file = new File(stepDir + PathSampler.fileSep + PathSampler.PROGRESS_FILE);
+		if (file.exists()) {
+			try {
+				InputStream in = new FileInputStream(file);
+				progress.load(in);
+				in.close();
+			} catch (IOException e) {
+				// file may be replaced while reading, report as pending
+			}
+		}
+		return progress;
+	}
+
+	private double parse(String s) {
+		if (s == null) {
+			return 0;
+		}
+		try {
+			return Double.parseDouble(s);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package beast.inference;
+
+import java.util.List;
+import java.util.Random;
+
+import beast.core.Description;
+import beast.core.Distribution;
+import beast.core.Input;
+import beast.core.State;
+import beast.core.Input.Validate;
+
+@Description("Stands in for a distribution that is already calculated elsewhere in the posterior. " +
+		"Reports the current log density of that distribution without calculating it again, so " +
+		"it must come after the original in a CompoundDistribution that does not calculate its distributions in threads.")
+public class SharedDistribution extends Distribution {
+	public Input<Distribution> distributionInput = new Input<Distribution>("distribution", "distribution that is calculated elsewhere", Validate.REQUIRED);
+
+	Distribution distribution;
+
+	public SharedDistribution() {
+	}
+
+	public SharedDistribution(Distribution distribution) throws Exception {
+		distributionInput.setValue(distribution, this);
+		initAndValidate();
+	}
+
+	@Override
+	public void initAndValidate() throws Exception {
+		distribution = distributionInput.get();
+	}
+
+	@Override
+	public double calculateLogP() throws Exception {
+		logP = distribution.getCurrentLogP();
+		return logP;
+	}
+
+	@Override
+	protected boolean requiresRecalculation() {
+		return distribution.isDirtyCalculation();
+	}
+
+	@Override
+	public List<String> getArguments() {
+		return distribution.getArguments();
+	}
+
+	@Override
+	public List<String> getConditions() {
+		return distribution.getConditions();
+	}
+
+	@Override
+	public void sample(State state, Random random) {
+		// nothing to sample: the distribution is sampled where it is calculated
+	}
+}
@@ -0,0 +1,216 @@
+package beast.inference;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import beast.core.BEASTObject;
+import beast.core.Distribution;
+import beast.core.Input;
+import beast.core.Logger;
+import beast.core.MCMC;
+import beast.core.Operator;
+import beast.core.State;
+import beast.core.StateNode;
+import beast.core.StateNodeInitialiser;
+import beast.util.Randomizer;
+import beast.util.XMLParser;
+
+/**
+ * Builds steps from the beast.xml in their directory, for running them inside this JVM.
+ * Objects that do not depend on the state, like alignments, patterns and taxon sets, are
+ * shared between all steps built by the same factory: an object that is structurally
+ * identical to one of an earlier step is replaced by that object before anything is
+ * initialised, so its copy is never initialised and can be garbage collected.
+ * State nodes, distributions, operators, loggers and everything that depends on them
+ * stay private to every step, and are released from the shared objects once the step is done.
+ * The heap every step adds is reported, as the heap in use after building the step less the heap
+ * in use before, which is only indicative while other steps are sampling.
+ * Steps are only seeded when they run one at a time: steps running at the same time draw from
+ * the same random number generator, so seeding one would reseed the others.
+ */
+public class StepFactory {
+	final static double MB = 1024.0 * 1024.0;
+
+	/** whether every step gets its own seed, which is only meaningful when steps run one at a time **/
+	final boolean seedSteps;
+	/** immutable objects of earlier steps, by structural hash **/
+	final Map<Long, List<BEASTObject>> shared = new HashMap<Long, List<BEASTObject>>();
+	/** the same objects, to recognise them by identity **/
+	final Set<BEASTObject> originals = Collections.newSetFromMap(new IdentityHashMap<BEASTObject, Boolean>());
+
+	/** @param seedSteps whether to seed the random number generator for every step, only for steps that run one at a time **/
+	public StepFactory(boolean seedSteps) {
+		this.seedSteps = seedSteps;
+	}
+
+	/** @return true if steps run with the seed passed to create() **/
+	public boolean seedsSteps() {
+		return seedSteps;
+	}
+
+	/**
+	 * @param stepDir directory with the beast.xml of the step, where its logs and state are written
+	 * @param seed seed of the step, ignored unless steps are seeded
+	 * @param resume whether to start from the state in stepDir
+	 * @return step, ready to run, to be passed to release() once it is done
+	 */
+	public beast.core.Runnable create(String stepDir, long seed, boolean resume) throws Exception {
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		long heapBefore = memory.getHeapMemoryUsage().getUsed();
+		if (seedSteps) {
+			Randomizer.setSeed(seed);
+		}
+		File xml = new File(stepDir, "beast.xml");
+		// parse without initialising, so shared objects replace their copies before anything refers to derived state
+		BEASTObject runnable = new XMLParser().parseFragment(new String(Files.readAllBytes(xml.toPath()), "UTF-8"), false);
+		if (!(runnable instanceof beast.core.Runnable)) {
+			throw new Exception(xml.getPath() + " does not describe a runnable");
+		}
+		if (runnable instanceof MCMC) {
+			// loggers resolve relative file names against the step directory, not the working directory
+			for (Logger logger : ((MCMC) runnable).loggersInput.get()) {
+				String fileName = logger.fileNameInput.get();
+				if (fileName != null && !new File(fileName).isAbsolute()) {
+					logger.fileNameInput.setValue(new File(stepDir, fileName).getPath(), logger);
+				}
+				if (logger instanceof TraceLogger) {
+					// per logger, since other steps in this JVM may start from scratch
+					((TraceLogger) logger).setResume(resume);
+				}
+			}
+		}
+
+		int nShared = share(runnable);
+		initialise(runnable, Collections.newSetFromMap(new IdentityHashMap<BEASTObject, Boolean>()));
+		((beast.core.Runnable) runnable).setStateFile(new File(stepDir, PathSampler.STATE_FILE).getPath(), resume);
+		long heapAfter = memory.getHeapMemoryUsage().getUsed();
+		System.err.println("Step " + stepDir + " shares " + nShared + " objects with earlier steps, and adds about " +
+				Math.round(Math.max(0, heapAfter - heapBefore) / MB) + " MB of heap, " + Math.round(heapAfter / MB) + " MB in use");
+		return (beast.core.Runnable) runnable;
+	}
+
+	/**
+	 * remove the objects of a step that is done from the outputs of the shared objects,
+	 * so the shared objects do not keep the step alive
+	 */
+	public synchronized void release(beast.core.Runnable runnable) throws Exception {
+		Set<BEASTObject> stepObjects = Collections.newSetFromMap(new IdentityHashMap<BEASTObject, Boolean>());
+		collect((BEASTObject) runnable, stepObjects);
+		for (BEASTObject original : originals) {
+			original.outputs.removeAll(stepObjects);
+		}
+	}
+
+	/** add the objects reachable from o that are not shared to objects **/
+	private void collect(BEASTObject o, Set<BEASTObject> objects) throws Exception {
+		if (originals.contains(o) || !objects.add(o)) {
+			return;
+		}
+		for (BEASTObject input : o.listActivePlugins()) {
+			collect(input, objects);
+		}
+	}
+
+	/** initialise the objects reachable from o that are not shared, inputs before the objects using them, as XMLParser does **/
+	private void initialise(BEASTObject o, Set<BEASTObject> done) throws Exception {
+		if (originals.contains(o) || !done.add(o)) {
+			return;
+		}
+		for (BEASTObject input : o.listActivePlugins()) {
+			initialise(input, done);
+		}
+		o.initAndValidate();
+	}
+
+	/** replace immutable objects of runnable by structurally identical ones of earlier steps **/
+	private synchronized int share(BEASTObject runnable) throws Exception {
+		Map<BEASTObject, Boolean> mutable = new IdentityHashMap<BEASTObject, Boolean>();
+		isMutable(runnable, mutable);
+		// a fresh hasher, so objects of earlier steps that were not shared are not kept alive by its memo
+		StructuralHash hasher = new StructuralHash();
+		Map<BEASTObject, BEASTObject> replacements = new IdentityHashMap<BEASTObject, BEASTObject>();
+		for (Map.Entry<BEASTObject, Boolean> entry : mutable.entrySet()) {
+			BEASTObject o = entry.getKey();
+			if (!entry.getValue() && !originals.contains(o)) {
+				long hash = hasher.hash(o);
+				List<BEASTObject> candidates = shared.get(hash);
+				if (candidates == null) {
+					candidates = new ArrayList<BEASTObject>();
+					shared.put(hash, candidates);
+				}
+				BEASTObject original = null;
+				for (BEASTObject candidate : candidates) {
+					// equal hashes only make a candidate, the inputs decide
+					if (hasher.explainDifference(candidate, o) == null) {
+						original = candidate;
+						break;
+					}
+				}
+				if (original == null) {
+					candidates.add(o);
+					originals.add(o);
+				} else {
+					replacements.put(o, original);
+				}
+			}
+		}
+		for (BEASTObject o : mutable.keySet()) {
+			if (!replacements.containsKey(o)) {
+				replaceInputs(o, replacements);
+			}
+		}
+		return replacements.size();
+	}
+
+	/**
+	 * An object is mutable if it is part of the state or of the MCMC machinery,
+	 * or if any of its inputs is mutable.
+	 * @param mutable memo of the objects visited so far
+	 */
+	private boolean isMutable(BEASTObject o, Map<BEASTObject, Boolean> mutable) throws Exception {
+		Boolean known = mutable.get(o);
+		if (known != null) {
+			return known;
+		}
+		// objects on a cycle are not shared
+		mutable.put(o, true);
+		boolean isMutable = o instanceof StateNode || o instanceof State || o instanceof Distribution || o instanceof Operator ||
+				o instanceof Logger || o instanceof StateNodeInitialiser || o instanceof beast.core.Runnable;
+		for (BEASTObject input : o.listActivePlugins()) {
+			isMutable |= isMutable(input, mutable);
+		}
+		mutable.put(o, isMutable);
+		return isMutable;
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private void replaceInputs(BEASTObject o, Map<BEASTObject, BEASTObject> replacements) throws Exception {
+		for (Input<?> input : o.listInputs()) {
+			Object value = input.get();
+			if (value instanceof List) {
+				List list = (List) value;
+				for (int i = 0; i < list.size(); i++) {
+					BEASTObject replaced = (list.get(i) instanceof BEASTObject ? (BEASTObject) list.get(i) : null);
+					BEASTObject replacement = replacements.get(replaced);
+					if (replacement != null) {
+						list.set(i, replacement);
+						replaced.outputs.remove(o);
+						replacement.outputs.add(o);
+					}
+				}
+			} else if (value instanceof BEASTObject && replacements.containsKey(value)) {
+				((BEASTObject) value).outputs.remove(o);
+				input.setValue(replacements.get(value), o);
+			}
+		}
+	}
+}
@@ -0,0 +1,274 @@
+package beast.inference;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import beast.core.Operator;
+
+/**
+ * Progress counters of a single path sampling step.
+ *
+ * Counters are only written by the sampling thread and read by JMX clients
+ * and the progress reporter thread. Writes use lazySet, so the MCMC loop
+ * never takes a lock or issues a full memory fence.
+ */
+public class StepMetrics implements StepMetricsMBean {
+	final String stepName;
+	final String [] operatorIDs;
+	final Map<Operator, Integer> operatorIndex;
+
+	final AtomicLongArray accepted;
+	final AtomicLongArray rejected;
+	final AtomicLong iteration = new AtomicLong();
+	final AtomicLong sampleCount = new AtomicLong();
+	final AtomicLong logLikelihoodSum = new AtomicLong(Double.doubleToRawLongBits(0.0));
+
+	// only touched by the sampling thread
+	double sum = 0;
+	long count = 0;
+
+	volatile int burnIn;
+	volatile int chainLength;
+	volatile long startTime;
+	volatile long endTime = -1;
+	/** whether the MCMC loop records timings in the step profiler, can be switched through JMX while running **/
+	volatile boolean profiling = false;
+
+	ObjectName objectName;
+	Thread reporter;
+
+	public StepMetrics(String stepName, List<Operator> operators) {
+		this.stepName = stepName;
+		operatorIDs = new String[operators.size()];
+		operatorIndex = new IdentityHashMap<Operator, Integer>();
+		for (int i = 0; i < operators.size(); i++) {
+			Operator operator = operators.get(i);
+			operatorIDs[i] = (operator.getID() != null ? operator.getID() : operator.getClass().getSimpleName() + i);
+			operatorIndex.put(operator, i);
+		}
+		accepted = new AtomicLongArray(operatorIDs.length);
+		rejected = new AtomicLongArray(operatorIDs.length);
+	}
+
+	/** mark start of MCMC loop **/
+	public void start(int burnIn, int chainLength) {
+		this.burnIn = burnIn;
+		this.chainLength = chainLength;
+		iteration.lazySet(-burnIn);
+		startTime = System.currentTimeMillis();
+	}
+
+	public void finish() {
+		endTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Look an operator up once per iteration, instead of on every call.
+	 * @return index of operator, -1 if it is not one of the operators of the step
+	 */
+	public int indexOf(Operator operator) {
+		Integer i = operatorIndex.get(operator);
+		return (i != null ? i : -1);
+	}
+
+	/** @param i index of the operator as returned by indexOf() **/
+	public void accepted(int i) {
+		if (i >= 0) {
+			accepted.lazySet(i, accepted.get(i) + 1);
+		}
+	}
+
+	/** @param i index of the operator as returned by indexOf() **/
+	public void rejected(int i) {
+		if (i >= 0) {
+			rejected.lazySet(i, rejected.get(i) + 1);
+		}
+	}
+
+	/** record end of iteration iSample with the current value of the logged likelihood **/
+	public void sampled(int iSample, double logLikelihood) {
+		if (iSample >= 0) {
+			sum += logLikelihood;
+			count++;
+			logLikelihoodSum.lazySet(Double.doubleToRawLongBits(sum));
+			sampleCount.lazySet(count);
+		}
+		iteration.lazySet(iSample);
+	}
+
+	@Override
+	public String getStepName() {
+		return stepName;
+	}
+
+	@Override
+	public long getIteration() {
+		return iteration.get();
+	}
+
+	@Override
+	public int getChainLength() {
+		return chainLength;
+	}
+
+	@Override
+	public int getBurnIn() {
+		return burnIn;
+	}
+
+	@Override
+	public double getSamplesPerSecond() {
+		long end = (endTime > 0 ? endTime : System.currentTimeMillis());
+		double seconds = (end - startTime) / 1000.0;
+		if (seconds <= 0) {
+			return 0;
+		}
+		return (iteration.get() + burnIn) / seconds;
+	}
+
+	@Override
+	public double getMeanLogLikelihood() {
+		long n = sampleCount.get();
+		if (n == 0) {
+			return Double.NaN;
+		}
+		return Double.longBitsToDouble(logLikelihoodSum.get()) / n;
+	}
+
+	@Override
+	public double getSecondsToCompletion() {
+		if (endTime > 0) {
+			return 0;
+		}
+		double rate = getSamplesPerSecond();
+		if (rate <= 0) {
+			return Double.POSITIVE_INFINITY;
+		}
+		return (chainLength - iteration.get()) / rate;
+	}
+
+	@Override
+	public boolean isProfiling() {
+		return profiling;
+	}
+
+	@Override
+	public void setProfiling(boolean profiling) {
+		this.profiling = profiling;
+	}
+
+	@Override
+	public String[] getAcceptanceRates() {
+		String [] rates = new String[operatorIDs.length];
+		for (int i = 0; i < rates.length; i++) {
+			rates[i] = operatorIDs[i] + "=" + getAcceptanceRate(i);
+		}
+		return rates;
+	}
+
+	double getAcceptanceRate(int i) {
+		long a = accepted.get(i);
+		long r = rejected.get(i);
+		return (a + r == 0 ? Double.NaN : a / (double) (a + r));
+	}
+
+	/** register with the platform MBean server, which is only reachable locally unless remote JMX is configured explicitly **/
+	public void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			objectName = new ObjectName("beast.inference:type=PathSamplingStep,name=" + ObjectName.quote(stepName));
+			// never take over the name of a step that is still running
+			server.registerMBean(this, objectName);
+		} catch (Exception e) {
+			System.err.println("Could not register step metrics: " + e.getMessage());
+			objectName = null;
+		}
+	}
+
+	public void unregister() {
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (Exception e) {
+				// ignore
+			}
+			objectName = null;
+		}
+	}
+
+	/** periodically write progress to file, using a daemon thread so the sampling thread is never held up **/
+	public void startReporter(final File progressFile, final int seconds) {
+		reporter = new Thread("progress reporter " + stepName) {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						writeProgress(progressFile, "running");
+						Thread.sleep(seconds * 1000L);
+					}
+				} catch (InterruptedException e) {
+					// done
+				}
+			}
+		};
+		reporter.setDaemon(true);
+		reporter.start();
+	}
+
+	/** stop writing progress, and write the final status: done, or failed if sampling ended with an exception **/
+	public void stopReporter(File progressFile, boolean success) {
+		if (reporter != null) {
+			reporter.interrupt();
+			try {
+				reporter.join();
+			} catch (InterruptedException e) {
+				// ignore
+			}
+			reporter = null;
+			writeProgress(progressFile, success ? "done" : "failed");
+		}
+	}
+
+	/** write progress as properties file; written to a temporary file first so readers never see a partial file **/
+	void writeProgress(File progressFile, String status) {
+		try {
+			File tmpFile = new File(progressFile.getPath() + ".tmp");
+			PrintStream out = new PrintStream(new FileOutputStream(tmpFile));
+			out.println("step=" + stepName);
+			out.println("status=" + status);
+			out.println("updated=" + System.currentTimeMillis());
+			out.println("started=" + startTime);
+			out.println("iteration=" + getIteration());
+			out.println("chainLength=" + getChainLength());
+			out.println("burnIn=" + getBurnIn());
+			out.println("samplesPerSecond=" + getSamplesPerSecond());
+			out.println("meanLogLikelihood=" + getMeanLogLikelihood());
+			out.println("secondsToCompletion=" + getSecondsToCompletion());
+			for (int i = 0; i < operatorIDs.length; i++) {
+				out.println("acceptance." + operatorIDs[i] + "=" + getAcceptanceRate(i));
+			}
+			out.close();
+			// replace in one go, so readers never find the file missing
+			try {
+				Files.move(tmpFile.toPath(), progressFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmpFile.toPath(), progressFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (Exception e) {
+			System.err.println("Could not write progress file: " + e.getMessage());
+		}
+	}
+}
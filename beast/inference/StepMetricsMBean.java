@@ -0,0 +1,27 @@
+package beast.inference;
+
+/** JMX view on the progress of a single path sampling step **/
+public interface StepMetricsMBean {
+
+	String getStepName();
+
+	long getIteration();
+
+	int getChainLength();
+
+	int getBurnIn();
+
+	double getSamplesPerSecond();
+
+	double getMeanLogLikelihood();
+
+	double getSecondsToCompletion();
+
+	boolean isProfiling();
+
+	/** switch per operator timing of the MCMC loop on or off **/
+	void setProfiling(boolean profiling);
+
+	/** acceptance rate of each operator, as 'operatorID=rate' strings **/
+	String[] getAcceptanceRates();
+}
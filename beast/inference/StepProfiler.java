@@ -0,0 +1,162 @@
+package beast.inference;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.text.DecimalFormat;
+import java.util.List;
+
+import beast.core.Operator;
+
+/**
+ * Per operator timing of the phases of an MCMC iteration.
+ * Latencies are kept in histograms with power of two nanosecond buckets.
+ * Only the sampling thread touches the data, and only while profiling is switched on
+ * (see StepMetrics.setProfiling). The profiler is created when profiling is first switched on,
+ * so there is nothing to pay when it is off. Operators are identified by their index in
+ * StepMetrics, which the MCMC loop looks up once per iteration.
+ */
+public class StepProfiler {
+	public final static int STORE = 0;
+	public final static int PROPOSAL = 1;
+	public final static int CALCULATE = 2;
+	public final static int ACCEPT_REJECT = 3;
+	public final static int LOG = 4;
+	final static String [] PHASES = {"store", "proposal", "calculateLogP", "accept/restore", "log"};
+	final static int BUCKETS = 65;
+
+	final String [] operatorIDs;
+
+	/** histogram[operator][phase][bucket], bucket b holds latencies in [2^(b-1), 2^b) ns **/
+	final long [][][] histogram;
+	final long [][] totalTime;
+	final long [] accepted;
+	final long [] rejected;
+
+	public StepProfiler(List<Operator> operators) {
+		operatorIDs = new String[operators.size()];
+		for (int i = 0; i < operators.size(); i++) {
+			Operator operator = operators.get(i);
+			operatorIDs[i] = (operator.getID() != null ? operator.getID() : operator.getClass().getSimpleName() + i);
+		}
+		histogram = new long[operatorIDs.length][PHASES.length][BUCKETS];
+		totalTime = new long[operatorIDs.length][PHASES.length];
+		accepted = new long[operatorIDs.length];
+		rejected = new long[operatorIDs.length];
+	}
+
+	/**
+	 * record time spent by operator i in phase since time start
+	 * @param i index of the operator as returned by StepMetrics.indexOf()
+	 * @return current time, to be used as start of the next phase
+	 */
+	public long record(int i, int phase, long start) {
+		long now = System.nanoTime();
+		if (i >= 0) {
+			long elapsed = now - start;
+			histogram[i][phase][64 - Long.numberOfLeadingZeros(elapsed)]++;
+			totalTime[i][phase] += elapsed;
+		}
+		return now;
+	}
+
+	public void accepted(int i) {
+		if (i >= 0) {
+			accepted[i]++;
+		}
+	}
+
+	public void rejected(int i) {
+		if (i >= 0) {
+			rejected[i]++;
+		}
+	}
+
+	boolean isEmpty() {
+		for (long [] times : totalTime) {
+			for (long t : times) {
+				if (t > 0) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/** write report with per operator counts, time shares and latency percentiles **/
+	public void report(File file) {
+		if (isEmpty()) {
+			return;
+		}
+		try {
+			PrintStream out = new PrintStream(new FileOutputStream(file));
+			report(out);
+			out.close();
+			System.err.println("Profile written to " + file.getPath());
+		} catch (Exception e) {
+			System.err.println("Could not write profile: " + e.getMessage());
+		}
+	}
+
+	void report(PrintStream out) {
+		DecimalFormat f = new DecimalFormat("0.###");
+		long total = 0;
+		long [] phaseTotal = new long[PHASES.length];
+		for (int i = 0; i < operatorIDs.length; i++) {
+			for (int j = 0; j < PHASES.length; j++) {
+				total += totalTime[i][j];
+				phaseTotal[j] += totalTime[i][j];
+			}
+		}
+		out.println("Total profiled time: " + f.format(total / 1e9) + " seconds");
+		for (int j = 0; j < PHASES.length; j++) {
+			out.println("  " + PHASES[j] + ": " + f.format(100.0 * phaseTotal[j] / total) + "%");
+		}
+		out.println();
+		out.println("operator\tphase\taccepted\trejected\tseconds\tshare%\tp50(us)\tp90(us)\tp99(us)\tmax(us)");
+		for (int i = 0; i < operatorIDs.length; i++) {
+			for (int j = 0; j < PHASES.length; j++) {
+				long [] h = histogram[i][j];
+				out.println(operatorIDs[i] + "\t" + PHASES[j] + "\t" + accepted[i] + "\t" + rejected[i] + "\t" +
+						f.format(totalTime[i][j] / 1e9) + "\t" +
+						f.format(100.0 * totalTime[i][j] / total) + "\t" +
+						f.format(percentile(h, 0.5) / 1e3) + "\t" +
+						f.format(percentile(h, 0.9) / 1e3) + "\t" +
+						f.format(percentile(h, 0.99) / 1e3) + "\t" +
+						f.format(percentile(h, 1.0) / 1e3));
+			}
+		}
+		out.println();
+		out.println("latency histograms: operator, phase, then counts for buckets [2^(b-1), 2^b) ns, b = 0.." + (BUCKETS - 1));
+		for (int i = 0; i < operatorIDs.length; i++) {
+			for (int j = 0; j < PHASES.length; j++) {
+				StringBuilder buf = new StringBuilder();
+				buf.append(operatorIDs[i]).append('\t').append(PHASES[j]);
+				for (long c : histogram[i][j]) {
+					buf.append('\t').append(c);
+				}
+				out.println(buf.toString());
+			}
+		}
+	}
+
+	/** upper bound of the bucket containing the given quantile, in ns **/
+	static double percentile(long [] h, double q) {
+		long n = 0;
+		for (long c : h) {
+			n += c;
+		}
+		if (n == 0) {
+			return 0;
+		}
+		long target = (long) Math.ceil(q * n);
+		long cumulative = 0;
+		for (int b = 0; b < h.length; b++) {
+			cumulative += h[b];
+			if (cumulative >= target) {
+				return (b == 0 ? 0 : Math.pow(2, b));
+			}
+		}
+		return Math.pow(2, h.length - 1);
+	}
+}
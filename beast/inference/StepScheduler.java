@@ -0,0 +1,174 @@
+package beast.inference;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs tasks on a fixed number of threads, starting every task as soon as all tasks
+ * it depends on have finished. Steps of several path samplers can share a scheduler,
+ * so no thread is idle as long as any of them has a step that can run.
+ * A task that fails, by throwing an exception, is isolated: the tasks depending on it,
+ * directly or indirectly, are skipped, while all other tasks still run.
+ * A task can also release the tasks depending on it before it finishes, once it has
+ * produced what they need.
+ * Threads that are idle can run extra work, like speculative duplicates of slow tasks.
+ */
+public class StepScheduler {
+	final List<Callable<?>> tasks = new ArrayList<Callable<?>>();
+	final List<List<Integer>> dependents = new ArrayList<List<Integer>>();
+	final List<Integer> dependencyCount = new ArrayList<Integer>();
+
+	int [] waitingFor;
+	boolean [] released;
+	int failed;
+	int skipped;
+	int nThreads;
+	/** number of tasks and extra work submitted to the executor that did not finish yet **/
+	int active;
+	ExecutorService executor;
+	CountDownLatch remaining;
+
+	/**
+	 * @param task to run
+	 * @param dependencies ids of tasks that need to finish before this task can start
+	 * @return id of the task
+	 */
+	public synchronized int add(Callable<?> task, int... dependencies) {
+		int id = tasks.size();
+		tasks.add(task);
+		dependents.add(new ArrayList<Integer>());
+		dependencyCount.add(dependencies.length);
+		for (int i : dependencies) {
+			if (i < 0 || i >= id) {
+				throw new IllegalArgumentException("task " + id + " depends on unknown task " + i);
+			}
+			dependents.get(i).add(id);
+		}
+		return id;
+	}
+
+	/** run all tasks added so far, and return when all of them are finished **/
+	public void run(int nThreads) throws InterruptedException {
+		remaining = new CountDownLatch(tasks.size());
+		synchronized (this) {
+			this.nThreads = Math.max(1, nThreads);
+			executor = Executors.newFixedThreadPool(this.nThreads);
+			waitingFor = new int[tasks.size()];
+			released = new boolean[tasks.size()];
+			for (int i = 0; i < waitingFor.length; i++) {
+				waitingFor[i] = dependencyCount.get(i);
+			}
+			for (int i = 0; i < waitingFor.length; i++) {
+				if (waitingFor[i] == 0) {
+					submit(i);
+				}
+			}
+		}
+		try {
+			remaining.await();
+		} finally {
+			synchronized (this) {
+				executor.shutdown();
+			}
+		}
+	}
+
+	/** @return number of tasks that threw an exception **/
+	public synchronized int getFailedCount() {
+		return failed;
+	}
+
+	/** @return number of tasks that did not run because a task they depend on failed **/
+	public synchronized int getSkippedCount() {
+		return skipped;
+	}
+
+	/**
+	 * run work on a thread of the scheduler if one is idle
+	 * @return false if all threads are busy, and work was not started
+	 */
+	public synchronized boolean runIfIdle(final Runnable work) {
+		if (executor == null || executor.isShutdown() || active >= nThreads) {
+			return false;
+		}
+		active++;
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					work.run();
+				} finally {
+					synchronized (StepScheduler.this) {
+						active--;
+					}
+				}
+			}
+		});
+		return true;
+	}
+
+	private void submit(final int id) {
+		active++;
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					tasks.get(id).call();
+				} catch (Exception e) {
+					e.printStackTrace();
+					failed(id);
+					return;
+				}
+				finished(id);
+			}
+		});
+	}
+
+	/** let the tasks depending on task id start, while it is still running. Has no effect once they have been released **/
+	public synchronized void release(int id) {
+		if (released[id]) {
+			return;
+		}
+		released[id] = true;
+		for (int i : dependents.get(id)) {
+			waitingFor[i]--;
+			if (waitingFor[i] == 0) {
+				submit(i);
+			}
+		}
+	}
+
+	private synchronized void finished(int id) {
+		active--;
+		release(id);
+		remaining.countDown();
+	}
+
+	/** skip the tasks depending on task id that were not released yet **/
+	private synchronized void failed(int id) {
+		active--;
+		failed++;
+		if (!released[id]) {
+			released[id] = true;
+			skipDependents(id);
+		}
+		remaining.countDown();
+	}
+
+	private void skipDependents(int id) {
+		for (int i : dependents.get(id)) {
+			if (waitingFor[i] > 0) {
+				// never reaches zero, so the task is never submitted
+				waitingFor[i] = -1;
+				released[i] = true;
+				skipped++;
+				remaining.countDown();
+				skipDependents(i);
+			}
+		}
+	}
+}
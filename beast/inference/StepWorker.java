@@ -0,0 +1,104 @@
+package beast.inference;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+
+import beast.core.Logger;
+
+/**
+ * Long lived JVM that runs path sampling steps one after another, so steps keep process isolation
+ * from the path sampler without paying JVM start up and warm up for every step: classes stay
+ * loaded and code stays compiled between steps.
+ * Reads one step per line from stdin, as "run", step directory, seed and "resume" or "overwrite",
+ * separated by tabs, and answers on stdout with the exit value of the step, followed by "recycle"
+ * when the worker exits after this step, because it ran its maximum number of steps or its heap
+ * usage crossed the threshold. Output of the steps goes to stderr.
+ * Data that does not depend on the state is shared between the steps of a worker, see StepFactory.
+ * Usage: java beast.inference.StepWorker [maxSteps [maxHeapFraction]]
+ */
+public class StepWorker {
+	public final static String RUN = "run";
+	public final static String QUIT = "quit";
+	public final static String RESUME = "resume";
+	public final static String OVERWRITE = "overwrite";
+	public final static String RECYCLE = "recycle";
+
+	/** number of steps after which the worker exits, unlimited if zero or less **/
+	final int maxSteps;
+	/** fraction of the maximum heap that may be in use after a step before the worker exits **/
+	final double maxHeapFraction;
+	final StepFactory factory = new StepFactory(true);
+	int stepCount;
+
+	public StepWorker(int maxSteps, double maxHeapFraction) {
+		this.maxSteps = maxSteps;
+		this.maxHeapFraction = maxHeapFraction;
+	}
+
+	/** serve steps till stdin closes, a quit command arrives or the worker needs recycling **/
+	void serve() throws Exception {
+		PrintStream protocol = System.out;
+		// keep stdout for answers
+		System.setOut(System.err);
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+		String line;
+		while ((line = in.readLine()) != null) {
+			String [] command = line.split("\t");
+			if (command[0].equals(QUIT)) {
+				return;
+			}
+			if (!command[0].equals(RUN) || command.length != 4) {
+				throw new Exception("Unknown command: " + line);
+			}
+			boolean recycle;
+			int exitValue;
+			try {
+				exitValue = runStep(command[1], Long.parseLong(command[2]), command[3].equals(RESUME));
+				recycle = needsRecycling();
+			} catch (Throwable e) {
+				e.printStackTrace();
+				exitValue = 1;
+				// the heap may be left in a bad state
+				recycle = (e instanceof Error) || needsRecycling();
+			}
+			protocol.println(exitValue + (recycle ? "\t" + RECYCLE : ""));
+			protocol.flush();
+			if (recycle) {
+				return;
+			}
+		}
+	}
+
+	/** run the beast.xml in stepDir as BeastMain would when started in stepDir **/
+	int runStep(String stepDir, long seed, boolean resume) throws Exception {
+		stepCount++;
+		System.err.println("Worker starting " + stepDir + " (step " + stepCount + " of this worker)");
+		Logger.FILE_MODE = (resume ? Logger.LogFileMode.resume : Logger.LogFileMode.overwrite);
+		beast.core.Runnable runnable = factory.create(stepDir, seed, resume);
+		try {
+			runnable.run();
+		} finally {
+			factory.release(runnable);
+		}
+		return 0;
+	}
+
+	/** @return true if the worker ran its maximum number of steps, or uses too much heap after garbage collection **/
+	boolean needsRecycling() {
+		if (maxSteps > 0 && stepCount >= maxSteps) {
+			return true;
+		}
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		long used = runtime.totalMemory() - runtime.freeMemory();
+		return used > maxHeapFraction * runtime.maxMemory();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int maxSteps = (args.length > 0 ? Integer.parseInt(args[0]) : 0);
+		double maxHeapFraction = (args.length > 1 ? Double.parseDouble(args[1]) : 1.0);
+		new StepWorker(maxSteps, maxHeapFraction).serve();
+		System.exit(0);
+	}
+}
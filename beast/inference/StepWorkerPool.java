@@ -0,0 +1,150 @@
+package beast.inference;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pool of StepWorker JVMs, started on demand and reused for the steps of a run.
+ * Every thread running a step takes an idle worker, or starts one when none is idle,
+ * so there are never more workers than steps running at the same time.
+ * Workers that recycle themselves, or die, are replaced by a fresh one for the next step.
+ */
+public class StepWorkerPool {
+	final List<String> command = new ArrayList<String>();
+	/** whether to show the output of steps, which is only readable when steps do not run in parallel **/
+	final boolean echo;
+	final List<Worker> idle = new ArrayList<Worker>();
+	boolean closed;
+
+	/**
+	 * @param jvmArgs options for the worker JVMs, e.g. "-Xmx4g", separated by whitespace
+	 * @param maxSteps number of steps after which a worker is replaced, unlimited if zero or less
+	 * @param maxHeapFraction fraction of the maximum heap in use after a step at which a worker is replaced
+	 */
+	public StepWorkerPool(String jvmArgs, int maxSteps, double maxHeapFraction, boolean echo) {
+		this.echo = echo;
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		if (jvmArgs != null && jvmArgs.trim().length() > 0) {
+			for (String arg : jvmArgs.trim().split("\\s+")) {
+				command.add(arg);
+			}
+		}
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add("-Djava.library.path=" + System.getProperty("java.library.path"));
+		command.add(StepWorker.class.getName());
+		command.add(maxSteps + "");
+		command.add(maxHeapFraction + "");
+	}
+
+	/** a single worker JVM, with the pipes to talk to it **/
+	class Worker {
+		final Process process;
+		final PrintStream in;
+		final BufferedReader out;
+
+		Worker() throws IOException {
+			ProcessBuilder pb = new ProcessBuilder(command);
+			process = pb.start();
+			in = new PrintStream(process.getOutputStream(), true);
+			out = new BufferedReader(new InputStreamReader(process.getInputStream()));
+			final BufferedReader err = new BufferedReader(new InputStreamReader(process.getErrorStream()));
+			Thread drain = new Thread("StepWorker output") {
+				@Override
+				public void run() {
+					try {
+						String line;
+						while ((line = err.readLine()) != null) {
+							if (echo) {
+								System.out.println(line);
+							}
+						}
+					} catch (IOException e) {
+						// worker died
+					}
+				}
+			};
+			drain.setDaemon(true);
+			drain.start();
+		}
+
+		/** @return answer of the worker, null if it died **/
+		String run(String stepDir, long seed, boolean resume) throws IOException {
+			in.println(StepWorker.RUN + "\t" + stepDir + "\t" + seed + "\t" + (resume ? StepWorker.RESUME : StepWorker.OVERWRITE));
+			if (in.checkError()) {
+				return null;
+			}
+			return out.readLine();
+		}
+
+		void quit() {
+			in.println(StepWorker.QUIT);
+			in.close();
+		}
+	}
+
+	/**
+	 * run a step on a worker
+	 * @param watchdog stops the worker when the step runs out of time or is stopped on request
+	 * @return exit value of the step, 1 if the worker died or was stopped while running it
+	 */
+	public int run(RunManifest.Step step, boolean resume, ProcessWatchdog watchdog) throws IOException, InterruptedException {
+		Worker worker = take();
+		watchdog.watch(worker.process);
+		String answer;
+		try {
+			answer = worker.run(step.dir, step.seed, resume);
+		} finally {
+			watchdog.cancel();
+		}
+		if (answer == null) {
+			if (watchdog.isStopped()) {
+				System.err.println("Worker running " + step.dir + (watchdog.isTimedOut() ? " ran out of time and" : "") + " was stopped");
+			} else {
+				System.err.println("Worker running " + step.dir + " died with exit value " + worker.process.waitFor());
+			}
+			return 1;
+		}
+		String [] fields = answer.split("\t");
+		if (fields.length > 1 && fields[1].equals(StepWorker.RECYCLE)) {
+			worker.process.waitFor();
+		} else {
+			giveBack(worker);
+		}
+		return Integer.parseInt(fields[0]);
+	}
+
+	private Worker take() throws IOException {
+		synchronized (this) {
+			if (closed) {
+				throw new IOException("worker pool is closed");
+			}
+			if (idle.size() > 0) {
+				return idle.remove(idle.size() - 1);
+			}
+		}
+		return new Worker();
+	}
+
+	private synchronized void giveBack(Worker worker) {
+		if (closed) {
+			worker.quit();
+		} else {
+			idle.add(worker);
+		}
+	}
+
+	/** stop all idle workers, and let busy workers stop after their step **/
+	public synchronized void close() {
+		closed = true;
+		for (Worker worker : idle) {
+			worker.quit();
+		}
+		idle.clear();
+	}
+}
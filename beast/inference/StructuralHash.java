@@ -0,0 +1,253 @@
+package beast.inference;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import beast.core.BEASTObject;
+import beast.core.Input;
+import beast.core.StateNode;
+
+/**
+ * Bottom-up structural hashes of BEAST objects.
+ *
+ * The hash of an object combines its class with the hashes of its inputs.
+ * Inputs referring to other objects contribute the structural hash of that object,
+ * lists are hashed independent of order (like the list comparison of the original
+ * merge), and strings are trimmed. State nodes also hash their ID, since two state
+ * nodes with the same value are still different random variables.
+ * Hashes are memoised, so hashing a whole model takes time linear in its size.
+ *
+ * Equal hashes are only used to find candidates: explainDifference compares the
+ * inputs of objects with equal hashes recursively, so a collision never makes
+ * different objects identical. Objects on a cycle in the input graph, and objects
+ * depending on one, have no canonical hash, so these get a hash that is unique to
+ * the object, and are never identical to another object.
+ */
+public class StructuralHash {
+	final static long NULL_HASH = 0x9E3779B97F4A7C15L;
+
+	final Map<BEASTObject, long[]> inputHashes = new IdentityHashMap<BEASTObject, long[]>();
+	final Map<BEASTObject, Long> hashes = new IdentityHashMap<BEASTObject, Long>();
+	/** objects being hashed, from the first one hashed to the current one **/
+	final List<BEASTObject> inProgress = new ArrayList<BEASTObject>();
+	final Map<BEASTObject, Boolean> onStack = new IdentityHashMap<BEASTObject, Boolean>();
+	/** objects on a cycle, or depending on one **/
+	final Map<BEASTObject, Boolean> cyclic = new IdentityHashMap<BEASTObject, Boolean>();
+	/** pairs of objects found to be identical, by the first object **/
+	final Map<BEASTObject, Map<BEASTObject, Boolean>> identical = new IdentityHashMap<BEASTObject, Map<BEASTObject, Boolean>>();
+	long uniqueHash = 1;
+
+	public long hash(BEASTObject o) throws IllegalArgumentException, IllegalAccessException {
+		Long h = hashes.get(o);
+		if (h != null) {
+			return h;
+		}
+		if (onStack.containsKey(o)) {
+			// cycle in the input graph: everything being hashed depends on it
+			for (BEASTObject o2 : inProgress) {
+				cyclic.put(o2, Boolean.TRUE);
+			}
+			return NULL_HASH;
+		}
+		inProgress.add(o);
+		onStack.put(o, Boolean.TRUE);
+		long hash = hash(o.getClass().getName());
+		if (o instanceof StateNode) {
+			hash = combine(hash, hash(o.getID()));
+		}
+		long [] inputHash = computeInputHashes(o);
+		for (long v : inputHash) {
+			hash = combine(hash, v);
+		}
+		inProgress.remove(inProgress.size() - 1);
+		onStack.remove(o);
+		if (cyclic.containsKey(o)) {
+			hash = mix(uniqueHash++);
+		}
+		hashes.put(o, hash);
+		inputHashes.put(o, inputHash);
+		return hash;
+	}
+
+	/** hash of every input, in the order of listInputs() **/
+	private long [] computeInputHashes(BEASTObject o) throws IllegalArgumentException, IllegalAccessException {
+		List<Input<?>> inputs = o.listInputs();
+		long [] inputHash = new long[inputs.size()];
+		for (int i = 0; i < inputs.size(); i++) {
+			Input<?> input = inputs.get(i);
+			inputHash[i] = combine(hash(input.getName()), hashValue(input.get()));
+			if (dependsOnCycle(input.get())) {
+				cyclic.put(o, Boolean.TRUE);
+			}
+		}
+		return inputHash;
+	}
+
+	private boolean dependsOnCycle(Object value) {
+		if (value instanceof List) {
+			for (Object o : (List<?>) value) {
+				if (dependsOnCycle(o)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		return value instanceof BEASTObject && cyclic.containsKey(value);
+	}
+
+	private long hashValue(Object value) throws IllegalArgumentException, IllegalAccessException {
+		if (value == null) {
+			return NULL_HASH;
+		}
+		if (value instanceof BEASTObject) {
+			return hash((BEASTObject) value);
+		}
+		if (value instanceof List) {
+			List<?> list = (List<?>) value;
+			// order independent combination
+			long sum = 0;
+			for (Object o : list) {
+				sum += mix(hashValue(o));
+			}
+			return combine(list.size(), sum);
+		}
+		if (value instanceof String) {
+			return hash(((String) value).trim());
+		}
+		// primitives, enums, files and the like
+		return combine(hash(value.getClass().getName()), hash(value.toString()));
+	}
+
+	/**
+	 * @return null if o1 and o2 have the same class and structurally identical inputs,
+	 * and otherwise a description of the first difference found.
+	 */
+	public String explainDifference(BEASTObject o1, BEASTObject o2) throws IllegalArgumentException, IllegalAccessException {
+		if (o1 == o2) {
+			return null;
+		}
+		if (!o1.getClass().equals(o2.getClass())) {
+			return "class " + o1.getClass().getName() + " differs from " + o2.getClass().getName();
+		}
+		hash(o1);
+		hash(o2);
+		if (cyclic.containsKey(o1) || cyclic.containsKey(o2)) {
+			return "depends on a cycle in the input graph";
+		}
+		if (o1 instanceof StateNode && !o1.getID().equals(o2.getID())) {
+			return "state nodes have different IDs";
+		}
+		long [] h1 = inputHashes.get(o1);
+		long [] h2 = inputHashes.get(o2);
+		List<Input<?>> inputs1 = o1.listInputs();
+		List<Input<?>> inputs2 = o2.listInputs();
+		for (int i = 0; i < h1.length; i++) {
+			if (h1[i] != h2[i] || !isIdentical(inputs1.get(i).get(), inputs2.get(i).get())) {
+				return "input '" + inputs1.get(i).getName() + "' differs";
+			}
+		}
+		return null;
+	}
+
+	/** @return true if o1 and o2 are the same object or structurally identical, comparing all their inputs **/
+	public boolean isIdentical(BEASTObject o1, BEASTObject o2) throws IllegalArgumentException, IllegalAccessException {
+		if (o1 == o2) {
+			return true;
+		}
+		if (hash(o1) != hash(o2)) {
+			return false;
+		}
+		Map<BEASTObject, Boolean> known = identical.get(o1);
+		if (known != null && known.containsKey(o2)) {
+			return true;
+		}
+		if (explainDifference(o1, o2) != null) {
+			return false;
+		}
+		if (known == null) {
+			known = new IdentityHashMap<BEASTObject, Boolean>();
+			identical.put(o1, known);
+		}
+		known.put(o2, Boolean.TRUE);
+		return true;
+	}
+
+	/** compare input values the way they are hashed: lists independent of order, strings trimmed **/
+	private boolean isIdentical(Object value1, Object value2) throws IllegalArgumentException, IllegalAccessException {
+		if (value1 == value2) {
+			return true;
+		}
+		if (value1 == null || value2 == null) {
+			return false;
+		}
+		if (value1 instanceof BEASTObject && value2 instanceof BEASTObject) {
+			return isIdentical((BEASTObject) value1, (BEASTObject) value2);
+		}
+		if (value1 instanceof List && value2 instanceof List) {
+			List<?> list1 = (List<?>) value1;
+			List<?> list2 = (List<?>) value2;
+			if (list1.size() != list2.size()) {
+				return false;
+			}
+			// match every element of list1 to an unmatched element of list2, looking only at those with the same hash
+			Map<Long, List<Object>> candidates = new HashMap<Long, List<Object>>();
+			for (Object o2 : list2) {
+				long hash = hashValue(o2);
+				List<Object> sameHash = candidates.get(hash);
+				if (sameHash == null) {
+					sameHash = new ArrayList<Object>();
+					candidates.put(hash, sameHash);
+				}
+				sameHash.add(o2);
+			}
+			for (Object o1 : list1) {
+				List<Object> sameHash = candidates.get(hashValue(o1));
+				boolean found = false;
+				for (int j = 0; sameHash != null && j < sameHash.size() && !found; j++) {
+					if (isIdentical(o1, sameHash.get(j))) {
+						sameHash.remove(j);
+						found = true;
+					}
+				}
+				if (!found) {
+					return false;
+				}
+			}
+			return true;
+		}
+		if (value1 instanceof String && value2 instanceof String) {
+			return ((String) value1).trim().equals(((String) value2).trim());
+		}
+		return value1.getClass().equals(value2.getClass()) && value1.toString().equals(value2.toString());
+	}
+
+	static long hash(String s) {
+		if (s == null) {
+			return NULL_HASH;
+		}
+		// 64 bit FNV-1a
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return mix(h);
+	}
+
+	static long combine(long h, long v) {
+		return mix(h * 31 + v);
+	}
+
+	/** finaliser of MurmurHash3 **/
+	static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,379 @@
+package beast.inference;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads tab separated trace logs through a memory mapped file.
+ *
+ * On first use, the offsets of all data lines are stored in a sidecar index file
+ * (log file name + ".idx"), which is reused as long as the log file does not change.
+ * The index allows skipping the burn-in without reading it, and only the requested
+ * column is parsed, straight from the mapped bytes.
+ *
+ * Gzipped logs cannot be mapped, so these are decompressed into memory and indexed
+ * there, without writing a sidecar index. Only the lines that can be decompressed are read,
+ * so a gzipped log that is still being written can be read up to its last flush.
+ */
+public class TraceLogReader {
+	final static String INDEX_EXTENSION = ".idx";
+	final static int INDEX_MAGIC = 0x42545849;
+	final static int INDEX_VERSION = 1;
+	/** largest region mapped at once **/
+	final static long MAX_CHUNK = 1L << 30;
+
+	final File logFile;
+	long fileLength;
+	String [] labels;
+	/** logging interval recorded in the header by TraceLogger, or -1 if not recorded **/
+	int logEvery = -1;
+	/** start offsets of data lines, excluding comments and header **/
+	long [] offsets;
+	/** decompressed content of gzipped logs, null for plain logs **/
+	ByteBuffer content;
+
+	/** @param logFile log file, or its gzipped version if logFile does not exist **/
+	public TraceLogReader(File logFile) throws IOException {
+		logFile = CompressedIO.find(logFile);
+		this.logFile = logFile;
+		if (!logFile.exists()) {
+			throw new IOException("Could not find log file " + logFile.getPath());
+		}
+		if (CompressedIO.isCompressed(logFile)) {
+			content = ByteBuffer.wrap(CompressedIO.readLog(logFile));
+			fileLength = content.capacity();
+			buildIndex();
+			return;
+		}
+		fileLength = logFile.length();
+		File indexFile = new File(logFile.getPath() + INDEX_EXTENSION);
+		if (!readIndex(indexFile)) {
+			long headerOffset = buildIndex();
+			writeIndex(indexFile, headerOffset);
+		}
+	}
+
+	public String [] getLabels() {
+		return labels;
+	}
+
+	/** interval between samples, as recorded in the header, or derived from the first two samples otherwise **/
+	public int getLogEvery() throws IOException {
+		if (logEvery > 0 || offsets.length < 2 || !labels[0].equals("Sample")) {
+			return logEvery;
+		}
+		double [] samples = getTrace("Sample", 0);
+		return (int) (samples[1] - samples[0]);
+	}
+
+	/** number of samples in the log, including burn-in **/
+	public int getSampleCount() {
+		return offsets.length;
+	}
+
+	/** number of samples discarded as burn-in, same as in LogAnalyser **/
+	public int getBurnIn(int burnInPercentage) {
+		return offsets.length * burnInPercentage / 100;
+	}
+
+	/** get trace for the column with given label, with burnInPercentage of samples removed from the start **/
+	public double [] getTrace(String label, int burnInPercentage) throws IOException {
+		int column = -1;
+		for (int i = 0; i < labels.length; i++) {
+			if (labels[i].equals(label)) {
+				column = i;
+				break;
+			}
+		}
+		if (column < 0) {
+			throw new IOException("Could not find column " + label + " in " + logFile.getPath());
+		}
+		int from = getBurnIn(burnInPercentage);
+		double [] trace = new double[offsets.length - from];
+		if (trace.length == 0) {
+			return trace;
+		}
+
+		RandomAccessFile file = (content == null ? new RandomAccessFile(logFile, "r") : null);
+		FileChannel channel = (file != null ? file.getChannel() : null);
+		try {
+			int i = from;
+			while (i < offsets.length) {
+				// map as many complete lines as fit in one chunk
+				long start = offsets[i];
+				int j = i + 1;
+				while (j < offsets.length && offsets[j] - start < MAX_CHUNK) {
+					j++;
+				}
+				long end = (j < offsets.length ? offsets[j] : fileLength);
+				ByteBuffer buf = map(channel, start, end);
+				for (int k = i; k < j; k++) {
+					trace[k - from] = parseColumn(buf, (int) (offsets[k] - start), column, k);
+				}
+				i = j;
+			}
+		} finally {
+			if (file != null) {
+				channel.close();
+				file.close();
+			}
+		}
+		return trace;
+	}
+
+	/** get bytes start (inclusive) to end (exclusive) of the log, indexed from zero **/
+	private ByteBuffer map(FileChannel channel, long start, long end) throws IOException {
+		if (content != null) {
+			ByteBuffer buf = content.duplicate();
+			buf.limit((int) end);
+			buf.position((int) start);
+			return buf.slice();
+		}
+		return channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+	}
+
+	/** parse value in given column of the line starting at pos **/
+	private double parseColumn(ByteBuffer buf, int pos, int column, int line) throws IOException {
+		int limit = buf.limit();
+		for (int tabs = 0; tabs < column; pos++) {
+			if (pos >= limit || buf.get(pos) == '\n') {
+				throw new IOException("Line " + line + " of " + logFile.getPath() + " has too few columns");
+			}
+			if (buf.get(pos) == '\t') {
+				tabs++;
+			}
+		}
+		return parseDouble(buf, pos, limit);
+	}
+
+	/**
+	 * Parse a decimal number without creating a String. Values with more digits than
+	 * fit in a long, values whose decimal exponent is outside the table of exact powers of ten,
+	 * and special values like NaN, go through Double.parseDouble.
+	 * Otherwise the result is within one ulp of Double.parseDouble.
+	 */
+	static double parseDouble(ByteBuffer buf, int pos, int limit) {
+		int start = pos;
+		boolean negative = false;
+		if (pos < limit && (buf.get(pos) == '-' || buf.get(pos) == '+')) {
+			negative = buf.get(pos) == '-';
+			pos++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean dot = false;
+		boolean fallback = false;
+		boolean seenDigit = false;
+		int c = 0;
+		while (pos < limit) {
+			c = buf.get(pos);
+			if (c >= '0' && c <= '9') {
+				seenDigit = true;
+				if (digits < 18) {
+					mantissa = mantissa * 10 + (c - '0');
+					if (mantissa > 0) {
+						digits++;
+					}
+					if (dot) {
+						exponent--;
+					}
+				} else if (!dot) {
+					exponent++;
+				}
+			} else if (c == '.' && !dot) {
+				dot = true;
+			} else {
+				break;
+			}
+			pos++;
+		}
+		if (pos < limit && (c == 'e' || c == 'E')) {
+			pos++;
+			boolean negativeExponent = false;
+			if (pos < limit && (buf.get(pos) == '-' || buf.get(pos) == '+')) {
+				negativeExponent = buf.get(pos) == '-';
+				pos++;
+			}
+			int e = 0;
+			while (pos < limit && (c = buf.get(pos)) >= '0' && c <= '9') {
+				e = e * 10 + (c - '0');
+				pos++;
+			}
+			exponent += (negativeExponent ? -e : e);
+		} else if (pos < limit && c != '\t' && c != '\n' && c != '\r' && c != ' ') {
+			// NaN, Infinity or garbage
+			fallback = true;
+		}
+		if (!seenDigit) {
+			fallback = true;
+		}
+		if (fallback || exponent >= POWERS_OF_TEN.length || exponent <= -POWERS_OF_TEN.length) {
+			int end = start;
+			while (end < limit && buf.get(end) != '\t' && buf.get(end) != '\n' && buf.get(end) != '\r') {
+				end++;
+			}
+			byte [] bytes = new byte[end - start];
+			for (int i = 0; i < bytes.length; i++) {
+				bytes[i] = buf.get(start + i);
+			}
+			return Double.parseDouble(new String(bytes).trim());
+		}
+		double value = mantissa;
+		if (exponent < 0) {
+			value = value / POWERS_OF_TEN[-exponent];
+		} else if (exponent > 0) {
+			value = value * POWERS_OF_TEN[exponent];
+		}
+		return (negative ? -value : value);
+	}
+
+	final static double [] POWERS_OF_TEN = new double[23];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	/**
+	 * scan the file for line starts
+	 * @return offset of the header line
+	 */
+	private long buildIndex() throws IOException {
+		long [] lineStarts = new long[1024];
+		int nLines = 0;
+		long headerOffset = -1;
+		RandomAccessFile file = (content == null ? new RandomAccessFile(logFile, "r") : null);
+		FileChannel channel = (file != null ? file.getChannel() : null);
+		try {
+			boolean atLineStart = true;
+			for (long chunkStart = 0; chunkStart < fileLength; chunkStart += MAX_CHUNK) {
+				long size = Math.min(MAX_CHUNK, fileLength - chunkStart);
+				ByteBuffer buf = map(channel, chunkStart, chunkStart + size);
+				for (int i = 0; i < size; i++) {
+					byte b = buf.get(i);
+					if (atLineStart && b != '\n' && b != '\r') {
+						atLineStart = false;
+						if (b != '#') {
+							if (headerOffset < 0) {
+								headerOffset = chunkStart + i;
+							} else {
+								if (nLines == lineStarts.length) {
+									long [] tmp = new long[nLines * 2];
+									System.arraycopy(lineStarts, 0, tmp, 0, nLines);
+									lineStarts = tmp;
+								}
+								lineStarts[nLines++] = chunkStart + i;
+							}
+						}
+					}
+					if (b == '\n') {
+						atLineStart = true;
+					}
+				}
+			}
+		} finally {
+			if (file != null) {
+				channel.close();
+				file.close();
+			}
+		}
+		if (headerOffset < 0) {
+			throw new IOException("Could not find header in log file " + logFile.getPath());
+		}
+		offsets = new long[nLines];
+		System.arraycopy(lineStarts, 0, offsets, 0, nLines);
+		readLabels(headerOffset);
+		return headerOffset;
+	}
+
+	/** read header comments and column labels **/
+	private void readLabels(long headerOffset) throws IOException {
+		long end = (offsets.length > 0 ? offsets[0] : fileLength);
+		byte [] bytes;
+		if (content != null) {
+			bytes = new byte[(int) end];
+			map(null, 0, end).get(bytes);
+		} else {
+			RandomAccessFile file = new RandomAccessFile(logFile, "r");
+			try {
+				bytes = new byte[(int) end];
+				file.readFully(bytes);
+			} finally {
+				file.close();
+			}
+		}
+		String [] lines = new String(bytes, "UTF-8").split("\n");
+		for (String line : lines) {
+			if (line.startsWith(TraceLogger.LOG_EVERY_COMMENT)) {
+				logEvery = Integer.parseInt(line.substring(TraceLogger.LOG_EVERY_COMMENT.length()).trim());
+			}
+		}
+		String header = new String(bytes, (int) headerOffset, (int) (end - headerOffset), "UTF-8");
+		header = header.split("\n")[0];
+		labels = header.trim().split("\t");
+		for (int i = 0; i < labels.length; i++) {
+			labels[i] = labels[i].trim();
+		}
+	}
+
+	/** @return true if a valid index for the current log file was read **/
+	private boolean readIndex(File indexFile) {
+		if (!indexFile.exists()) {
+			return false;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+			try {
+				if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION ||
+						in.readLong() != fileLength || in.readLong() != logFile.lastModified()) {
+					return false;
+				}
+				long headerOffset = in.readLong();
+				int nLines = in.readInt();
+				offsets = new long[nLines];
+				for (int i = 0; i < nLines; i++) {
+					offsets[i] = in.readLong();
+				}
+				readLabels(headerOffset);
+				return true;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private void writeIndex(File indexFile, long headerOffset) {
+		try {
+			File tmpFile = new File(indexFile.getPath() + ".tmp");
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			out.writeInt(INDEX_MAGIC);
+			out.writeInt(INDEX_VERSION);
+			out.writeLong(fileLength);
+			out.writeLong(logFile.lastModified());
+			out.writeLong(headerOffset);
+			out.writeInt(offsets.length);
+			for (long offset : offsets) {
+				out.writeLong(offset);
+			}
+			out.close();
+			indexFile.delete();
+			tmpFile.renameTo(indexFile);
+		} catch (IOException e) {
+			// not fatal: the index is rebuilt next time
+			System.err.println("Could not write index " + indexFile.getPath() + ": " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,292 @@
+package beast.inference;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.List;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Distribution;
+import beast.core.Input;
+import beast.core.Loggable;
+import beast.core.Logger;
+
+@Description("Logger for the traces of path sampling steps. " +
+		"The logging interval is recorded in the header of the log, and can be set " +
+		"after the step started, as long as nothing has been logged yet: samples up to then are held back, " +
+		"and logged at the interval once it is set. A log that is appended to keeps the interval in its header. " +
+		"If all loggables log a single number, lines are written in the background through a ring buffer.")
+public class TraceLogger extends Logger {
+	public Input<Boolean> compressInput = new Input<Boolean>("compress", "write log gzipped, to fileName + .gz (default false)", false);
+	public Input<Integer> bufferSizeInput = new Input<Integer>("bufferSize", "number of lines buffered for writing in the background. " +
+			"Lines are written on the sampling thread if zero or less, or if any loggable is not a distribution or TraceSource (default " +
+			TraceRingBuffer.DEFAULT_CAPACITY + ")", TraceRingBuffer.DEFAULT_CAPACITY);
+
+	/** prefix of header comment recording the logging interval **/
+	public final static String LOG_EVERY_COMMENT = "# logEvery=";
+	/** prefix of header comment recording the integrated autocorrelation time, if estimated **/
+	public final static String ACT_COMMENT = "# act=";
+	/** milliseconds between flushes of the log, so that a log still being written, also a gzipped one, can be followed **/
+	public final static long FLUSH_INTERVAL = 10000;
+
+	int logEvery;
+	/** sample that is logged whatever the interval, the end of the chain, -1 if none **/
+	int finalSample = -1;
+	double act = Double.NaN;
+	PrintStream out;
+	TraceRingBuffer buffer;
+	/** sample numbers and values of every loggable held back till the interval is set, null when not deferring **/
+	int [] deferredSamples;
+	double [] deferredValues;
+	int nDeferred;
+	long lastFlush;
+	/** whether to append to an existing log, null to follow Logger.FILE_MODE **/
+	Boolean resume;
+
+	@Override
+	public void initAndValidate() throws Exception {
+		super.initAndValidate();
+		logEvery = everyInput.get();
+	}
+
+	/** set logging interval, must be called before init() **/
+	public void setLogEvery(int logEvery, double act) {
+		this.logEvery = Math.max(1, logEvery);
+		this.act = act;
+	}
+
+	public int getLogEvery() {
+		return logEvery;
+	}
+
+	/** log sample finalSample, the last of the chain, also when the interval does not divide it **/
+	public void setFinalSample(int finalSample) {
+		this.finalSample = finalSample;
+	}
+
+	private boolean isLogged(int nSample) {
+		return nSample >= 0 && (nSample % logEvery == 0 || nSample == finalSample);
+	}
+
+	/** append to an existing log or overwrite it, whatever Logger.FILE_MODE says, must be called before init() **/
+	public void setResume(boolean resume) {
+		this.resume = resume;
+	}
+
+	/**
+	 * hold back samples till init() is called, keeping the values of at most maxSamples samples,
+	 * which are then logged at the interval set by setLogEvery.
+	 * @return false if a loggable does not log a single number, in which case the
+	 * log is initialised straight away with its own interval
+	 */
+	public boolean defer(int maxSamples) throws Exception {
+		if (!logsNumbersOnly()) {
+			init();
+			return false;
+		}
+		deferredSamples = new int[maxSamples];
+		deferredValues = new double[maxSamples * loggersInput.get().size()];
+		nDeferred = 0;
+		return true;
+	}
+
+	private File getFile() {
+		return new File(fileNameInput.get() + (compressInput.get() ? CompressedIO.GZIP_EXTENSION : ""));
+	}
+
+	/**
+	 * remove the samples from sample onwards from an existing log, so a chain that continues from
+	 * its state at sample does not log them twice, or remove the log if sample is 0, so it is started again.
+	 * The log is replaced through a temporary file, so a gzipped log ends up as a single complete member.
+	 * Must be called before init().
+	 */
+	public void truncate(int sample) throws IOException {
+		File file = getFile();
+		if (!file.exists()) {
+			return;
+		}
+		if (sample <= 0) {
+			if (!file.delete()) {
+				throw new IOException("Could not remove " + file.getPath());
+			}
+			return;
+		}
+		BufferedReader fin = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(CompressedIO.readLog(file)), "UTF-8"));
+		StringBuilder buf = new StringBuilder();
+		String sStr;
+		while ((sStr = fin.readLine()) != null) {
+			int tab = sStr.indexOf('\t');
+			try {
+				if (Integer.parseInt(tab >= 0 ? sStr.substring(0, tab) : sStr) >= sample) {
+					break;
+				}
+			} catch (NumberFormatException e) {
+				// header line
+			}
+			buf.append(sStr).append('\n');
+		}
+		fin.close();
+		CompressedIO.writeAtomically(file, buf.toString());
+	}
+
+	@Override
+	public void init() throws Exception {
+		File file = getFile();
+		boolean append = ((resume != null ? resume : Logger.FILE_MODE == Logger.LogFileMode.resume) && file.exists() && file.length() > 0);
+		if (append) {
+			// one interval per log, whatever was adapted this time
+			int existingLogEvery = readLogEvery(file);
+			if (existingLogEvery > 0) {
+				logEvery = existingLogEvery;
+			}
+		}
+		out = new PrintStream(CompressedIO.openOutput(file, append));
+		if (!append) {
+			out.println(LOG_EVERY_COMMENT + logEvery);
+			if (!Double.isNaN(act)) {
+				out.println(ACT_COMMENT + act);
+			}
+			out.print("Sample\t");
+			for (BEASTObject loggable : loggersInput.get()) {
+				((Loggable) loggable).init(out);
+			}
+			out.println();
+		}
+		if (bufferSizeInput.get() > 0 && logsNumbersOnly()) {
+			buffer = new TraceRingBuffer(out, loggersInput.get().size(), bufferSizeInput.get());
+			buffer.start();
+		}
+		if (deferredSamples != null) {
+			List<BEASTObject> loggables = loggersInput.get();
+			for (int k = 0; k < nDeferred; k++) {
+				if (isLogged(deferredSamples[k])) {
+					writeNumbers(deferredSamples[k], deferredValues, k * loggables.size());
+				}
+			}
+			deferredSamples = null;
+			deferredValues = null;
+		}
+	}
+
+	/** @return interval in the header of an existing log, 0 if it has none **/
+	static int readLogEvery(File file) throws IOException {
+		BufferedReader fin = null;
+		try {
+			fin = new BufferedReader(new InputStreamReader(CompressedIO.openInput(file), "UTF-8"));
+			String sStr;
+			while ((sStr = fin.readLine()) != null && sStr.startsWith("#")) {
+				if (sStr.startsWith(LOG_EVERY_COMMENT)) {
+					return Integer.parseInt(sStr.substring(LOG_EVERY_COMMENT.length()).trim());
+				}
+			}
+		} catch (EOFException e) {
+			// log ends in the header
+		} finally {
+			if (fin != null) {
+				fin.close();
+			}
+		}
+		return 0;
+	}
+
+	private double getValue(BEASTObject loggable) {
+		return loggable instanceof TraceSource ?
+				((TraceSource) loggable).getTraceValue() :
+				((Distribution) loggable).getCurrentLogP();
+	}
+
+	/** log a line of values of loggables that log a single number, starting at offset in values **/
+	private void writeNumbers(int nSample, double [] values, int offset) {
+		int n = loggersInput.get().size();
+		if (buffer != null) {
+			for (int i = 0; i < n; i++) {
+				buffer.put(i, values[offset + i]);
+			}
+			try {
+				buffer.commit(nSample);
+			} catch (InterruptedException e) {
+				// stopped while waiting for room, the line is written when the buffer is closed
+			}
+			return;
+		}
+		out.print(nSample + "\t");
+		for (int i = 0; i < n; i++) {
+			out.print(values[offset + i] + "\t");
+		}
+		out.println();
+		flushPeriodically();
+	}
+
+	private void flushPeriodically() {
+		long now = System.currentTimeMillis();
+		if (now - lastFlush >= FLUSH_INTERVAL) {
+			out.flush();
+			lastFlush = now;
+		}
+	}
+
+	private boolean logsNumbersOnly() {
+		for (BEASTObject loggable : loggersInput.get()) {
+			if (!(loggable instanceof TraceSource || loggable instanceof Distribution)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void log(int nSample) {
+		if (deferredSamples != null) {
+			if (nSample >= 0 && nDeferred < deferredSamples.length) {
+				List<BEASTObject> loggables = loggersInput.get();
+				for (int i = 0; i < loggables.size(); i++) {
+					deferredValues[nDeferred * loggables.size() + i] = getValue(loggables.get(i));
+				}
+				deferredSamples[nDeferred++] = nSample;
+			}
+			return;
+		}
+		if (out == null || !isLogged(nSample)) {
+			return;
+		}
+		if (buffer != null) {
+			List<BEASTObject> loggables = loggersInput.get();
+			for (int i = 0; i < loggables.size(); i++) {
+				buffer.put(i, getValue(loggables.get(i)));
+			}
+			try {
+				buffer.commit(nSample);
+			} catch (InterruptedException e) {
+				// stopped while waiting for room, the line is written when the buffer is closed
+			}
+			return;
+		}
+		out.print(nSample + "\t");
+		for (BEASTObject loggable : loggersInput.get()) {
+			((Loggable) loggable).log(nSample, out);
+		}
+		out.println();
+		flushPeriodically();
+	}
+
+	@Override
+	public void close() {
+		if (out == null) {
+			return;
+		}
+		if (buffer != null) {
+			buffer.close();
+			buffer = null;
+		}
+		for (BEASTObject loggable : loggersInput.get()) {
+			((Loggable) loggable).close(out);
+		}
+		out.close();
+		out = null;
+	}
+}
@@ -0,0 +1,140 @@
+package beast.inference;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Preallocated ring buffer of log lines for TraceLogger. The sampling thread only stores
+ * doubles in it, while a background thread formats the lines in batches and writes them, so
+ * logging allocates nothing and does not wait for the file system on the sampling thread.
+ * Committed lines are published with lazySet, so the sampling thread takes no lock and wakes
+ * nobody: the writer polls, parking in between. The sampling thread only blocks when the buffer is full.
+ * Lines that are still buffered are written when the buffer is closed, or when the JVM exits,
+ * and written lines are flushed every TraceLogger.FLUSH_INTERVAL milliseconds.
+ */
+public class TraceRingBuffer extends Thread {
+	/** default number of lines the buffer holds **/
+	public final static int DEFAULT_CAPACITY = 4096;
+	/** nanoseconds the writer waits before checking for new lines, and a full buffer before checking for room **/
+	final static long PARK_NANOS = 10000000;
+
+	final PrintStream out;
+	final int nColumns;
+	final int capacity;
+	final int [] samples;
+	final double [] values;
+	final String lineSeparator = System.getProperty("line.separator");
+	final Thread shutdownHook;
+
+	/** number of lines committed, only changed by the sampling thread **/
+	long next;
+	/** number of lines committed, as published to the writer **/
+	final AtomicLong head = new AtomicLong();
+	/** number of lines written, as published to the sampling thread **/
+	final AtomicLong tail = new AtomicLong();
+	/** sampling thread waiting for room, null if none **/
+	volatile Thread waiting;
+	volatile boolean closed;
+	long lastFlush;
+
+	public TraceRingBuffer(PrintStream out, int nColumns, int capacity) {
+		super("TraceRingBuffer");
+		this.out = out;
+		this.nColumns = nColumns;
+		this.capacity = capacity;
+		samples = new int[capacity];
+		values = new double[capacity * nColumns];
+		setDaemon(true);
+		shutdownHook = new Thread() {
+			@Override
+			public void run() {
+				finish();
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	/** set a value of the line being filled **/
+	public void put(int column, double value) {
+		values[(int) (next % capacity) * nColumns + column] = value;
+	}
+
+	/** complete the line being filled, and wait for room for the next one if the buffer is full **/
+	public void commit(int sample) throws InterruptedException {
+		samples[(int) (next % capacity)] = sample;
+		next++;
+		head.lazySet(next);
+		while (next - tail.get() >= capacity) {
+			// full, so the writer should not wait for its next poll
+			LockSupport.unpark(this);
+			waiting = Thread.currentThread();
+			if (next - tail.get() >= capacity) {
+				LockSupport.parkNanos(this, PARK_NANOS);
+			}
+			waiting = null;
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+	}
+
+	/** write all committed lines, and stop the writing thread **/
+	public void close() {
+		finish();
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		} catch (IllegalStateException e) {
+			// already shutting down
+		}
+	}
+
+	private void finish() {
+		closed = true;
+		LockSupport.unpark(this);
+		try {
+			join();
+		} catch (InterruptedException e) {
+			// lines not written yet are lost
+		}
+		out.flush();
+	}
+
+	@Override
+	public void run() {
+		StringBuilder buf = new StringBuilder();
+		while (true) {
+			long from = tail.get();
+			// read closed before head, so lines committed before closing are written
+			boolean done = closed;
+			long to = head.get();
+			if (from == to) {
+				if (done || isInterrupted()) {
+					return;
+				}
+				LockSupport.parkNanos(this, PARK_NANOS);
+				continue;
+			}
+			buf.setLength(0);
+			for (long i = from; i < to; i++) {
+				int row = (int) (i % capacity);
+				buf.append(samples[row]).append('\t');
+				for (int j = 0; j < nColumns; j++) {
+					buf.append(values[row * nColumns + j]).append('\t');
+				}
+				buf.append(lineSeparator);
+			}
+			out.append(buf);
+			long now = System.currentTimeMillis();
+			if (now - lastFlush >= TraceLogger.FLUSH_INTERVAL) {
+				out.flush();
+				lastFlush = now;
+			}
+			tail.lazySet(to);
+			Thread producer = waiting;
+			if (producer != null) {
+				LockSupport.unpark(producer);
+			}
+		}
+	}
+}
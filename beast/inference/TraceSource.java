@@ -0,0 +1,11 @@
+package beast.inference;
+
+/**
+ * Loggable that logs a single number. TraceLogger gets the value through this interface
+ * instead of letting the loggable print it, so it can be handed to a TraceRingBuffer
+ * without formatting or allocating anything on the sampling thread.
+ */
+public interface TraceSource {
+	/** @return the value to log for the current state **/
+	double getTraceValue();
+}
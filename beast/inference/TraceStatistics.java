@@ -0,0 +1,171 @@
+package beast.inference;
+
+/** summary statistics of a single trace, as used for analysing path sampling steps **/
+public class TraceStatistics {
+	/** maximum lag considered for autocorrelation, same as in Tracer and LogAnalyser **/
+	final static int MAX_LAG = 2000;
+
+	public static double mean(double [] trace) {
+		return mean(trace, 0, trace.length);
+	}
+
+	public static double mean(double [] trace, int from, int to) {
+		double sum = 0;
+		for (int i = from; i < to; i++) {
+			sum += trace[i];
+		}
+		return sum / (to - from);
+	}
+
+	public static double variance(double [] trace, int from, int to) {
+		double mean = mean(trace, from, to);
+		double sum = 0;
+		for (int i = from; i < to; i++) {
+			sum += (trace[i] - mean) * (trace[i] - mean);
+		}
+		return sum / (to - from - 1);
+	}
+
+	public static double max(double [] trace) {
+		double max = Double.NEGATIVE_INFINITY;
+		for (double v : trace) {
+			max = Math.max(v, max);
+		}
+		return max;
+	}
+
+	/**
+	 * integrated autocorrelation time, in number of samples of the trace,
+	 * summing autocovariances in pairs until the sum of a pair becomes negative
+	 */
+	public static double calcACT(double [] trace, int from, int to) {
+		int n = to - from;
+		if (n < 2) {
+			return 1;
+		}
+		double mean = mean(trace, from, to);
+		int maxLag = Math.min(n - 1, MAX_LAG);
+		double [] gamma = new double[maxLag];
+		double varStat = 0;
+		for (int lag = 0; lag < maxLag; lag++) {
+			double sum = 0;
+			for (int j = from; j < to - lag; j++) {
+				sum += (trace[j] - mean) * (trace[j + lag] - mean);
+			}
+			gamma[lag] = sum / (n - lag);
+			if (lag == 0) {
+				varStat = gamma[0];
+			} else if (lag % 2 == 0) {
+				if (gamma[lag - 1] + gamma[lag] > 0) {
+					varStat += 2.0 * (gamma[lag - 1] + gamma[lag]);
+				} else {
+					break;
+				}
+			}
+		}
+		if (gamma[0] == 0) {
+			return 1;
+		}
+		return varStat / gamma[0];
+	}
+
+	public static double calcACT(double [] trace) {
+		return calcACT(trace, 0, trace.length);
+	}
+
+	/**
+	 * integrated autocorrelation time, in number of samples, estimated by batch means.
+	 * Unlike calcACT, this does not underestimate autocorrelation times beyond MAX_LAG,
+	 * which matters for traces recorded at every iteration.
+	 */
+	public static double calcBatchMeansACT(double [] trace, int from, int to) {
+		int n = to - from;
+		int batchSize = (int) Math.sqrt(n);
+		int nBatches = (batchSize > 0 ? n / batchSize : 0);
+		if (nBatches < 2) {
+			return 1;
+		}
+		double var = variance(trace, from, to);
+		if (var == 0) {
+			return 1;
+		}
+		double [] means = new double[nBatches];
+		for (int b = 0; b < nBatches; b++) {
+			means[b] = mean(trace, from + b * batchSize, from + (b + 1) * batchSize);
+		}
+		return Math.max(1, batchSize * variance(means, 0, nBatches) / var);
+	}
+
+	/** log of the mean of exp(weight * trace[i]) over from <= i < to, without overflow **/
+	public static double logMeanExp(double [] trace, int from, int to, double weight) {
+		double max = Double.NEGATIVE_INFINITY;
+		for (int i = from; i < to; i++) {
+			max = Math.max(max, weight * trace[i]);
+		}
+		double sum = 0;
+		for (int i = from; i < to; i++) {
+			sum += Math.exp(weight * trace[i] - max);
+		}
+		return max + Math.log(sum / (to - from));
+	}
+
+	/** suffix[i] = sum of trace[i..n-1], so the mean after discarding i samples is suffix[i] / (n - i) **/
+	public static double [] suffixSums(double [] trace) {
+		double [] suffix = new double[trace.length + 1];
+		for (int i = trace.length - 1; i >= 0; i--) {
+			suffix[i] = suffix[i + 1] + trace[i];
+		}
+		return suffix;
+	}
+
+	/** suffix[i] = log of the sum of exp(weight * trace[j]) over j >= i, accumulated from the end without overflow **/
+	public static double [] suffixLogSumExp(double [] trace, double weight) {
+		double [] suffix = new double[trace.length + 1];
+		suffix[trace.length] = Double.NEGATIVE_INFINITY;
+		for (int i = trace.length - 1; i >= 0; i--) {
+			double a = suffix[i + 1];
+			double b = weight * trace[i];
+			double max = Math.max(a, b);
+			suffix[i] = (max == Double.NEGATIVE_INFINITY ? max : max + Math.log1p(Math.exp(Math.min(a, b) - max)));
+		}
+		return suffix;
+	}
+
+	/**
+	 * potential scale reduction factor (Gelman and Rubin) of several chains sampling the same
+	 * distribution, using the average chain length. Close to 1 when the chains agree, NaN for a single chain.
+	 */
+	public static double calcRHat(double [][] traces) {
+		int m = traces.length;
+		if (m < 2) {
+			return Double.NaN;
+		}
+		double n = 0, W = 0, grandMean = 0;
+		double [] means = new double[m];
+		for (int j = 0; j < m; j++) {
+			means[j] = mean(traces[j]);
+			W += variance(traces[j], 0, traces[j].length);
+			n += traces[j].length;
+			grandMean += means[j];
+		}
+		n /= m;
+		W /= m;
+		grandMean /= m;
+		double B = 0;
+		for (int j = 0; j < m; j++) {
+			B += (means[j] - grandMean) * (means[j] - grandMean);
+		}
+		B *= n / (m - 1);
+		double varPlus = (n - 1) / n * W + B / n;
+		return Math.sqrt(varPlus / W);
+	}
+
+	/** effective sample size **/
+	public static double calcESS(double [] trace, int from, int to) {
+		return (to - from) / calcACT(trace, from, to);
+	}
+
+	public static double calcESS(double [] trace) {
+		return calcESS(trace, 0, trace.length);
+	}
+}
@@ -0,0 +1,182 @@
+package beast.inference;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Sets the chain length of steps just before they start, so that a run ends within a wall clock budget.
+ * Steps that start from scratch, the first batch, run with the chain length they were set up with,
+ * and their progress files give the throughput of a step in samples per second. The time that is left
+ * for a lane of steps, less the overhead per step (start up, reading the state, pre-burn-in) observed
+ * for steps that finished, is divided over the steps that remain in that lane in proportion to the
+ * chain lengths they were set up with: evenly, or as allocated after a pilot run.
+ * Once the budget is used up, steps get MIN_CHAIN_LENGTH, with a warning.
+ * The autocorrelation time of the step a step starts from predicts the effective sample size the
+ * step will reach, which is reported, with a warning when it stays below the minimum ESS.
+ * Since neighbouring steps have similar autocorrelation times, an even division of the time
+ * lets all steps reach the minimum ESS whenever the budget allows it.
+ */
+public class WallTimeBudget {
+	/** chain length of steps that no longer fit in the budget **/
+	final static int MIN_CHAIN_LENGTH = 1000;
+
+	final PathSampler sampler;
+	/** start and end of the budget, in milliseconds since the epoch **/
+	final long start;
+	final long end;
+	final double minESS;
+
+	/** @param start start of the budget, in milliseconds since the epoch **/
+	public WallTimeBudget(PathSampler sampler, long start, double hours, double minESS) {
+		this.sampler = sampler;
+		this.start = start;
+		this.end = start + (long) (hours * 3600 * 1000);
+		this.minESS = minESS;
+	}
+
+	/**
+	 * @param i chain that is about to start
+	 * @return chain length for chain i, or -1 to keep the chain length it was set up with
+	 */
+	public synchronized int plan(int i) {
+		RunManifest manifest = sampler.manifest;
+		RunManifest.Step step = manifest.getStep(i);
+		if (step.startsFrom < 0) {
+			// first batch, which measures throughput
+			return -1;
+		}
+		double rate = getSamplesPerSecond();
+		if (rate <= 0) {
+			return -1;
+		}
+		List<Integer> lane = getRemaining(i);
+		int remaining = lane.size();
+		// pipelined steps only hold up the next step of their lane for their burn-in
+		double overlap = (sampler.pipelineInput.get() ? sampler.burnInPercentage / 100.0 : 1.0);
+		double seconds = (end - System.currentTimeMillis()) / 1000.0 - remaining * getOverheadSeconds();
+		// samples of the lane, relative to the set up chain length of this step, as it runs in wall time
+		double plannedLength = step.chainLength;
+		double laneLength = 0;
+		for (int j : lane) {
+			laneLength += manifest.getStep(j).chainLength;
+		}
+		double weight = (overlap * laneLength + (1 - overlap) * plannedLength) / plannedLength;
+		int chainLength = (int) (rate * seconds / weight);
+		String warning = "";
+		if (chainLength < MIN_CHAIN_LENGTH) {
+			warning = " (WARNING: the wall time budget is " + (seconds <= 0 ? "used up" : "too small for the steps left") +
+					", so the step gets the minimum chain length)";
+			chainLength = MIN_CHAIN_LENGTH;
+		}
+
+		long finish = System.currentTimeMillis() + (long) (1000 * (remaining * getOverheadSeconds() +
+				weight * chainLength / rate));
+		double act = getACT(step.startsFrom);
+		String ess = "";
+		if (act > 0) {
+			double projectedESS = chainLength * (100 - sampler.burnInPercentage) / 100.0 / act;
+			ess = ", projected ESS " + Math.round(projectedESS);
+			if (projectedESS < minESS) {
+				ess += " (WARNING: below the minimum ESS of " + minESS + ", which does not fit in the budget)";
+			}
+		}
+		System.err.println("Step " + i + " gets chain length " + chainLength + warning + ess + ", its lane is projected to finish at " + new Date(finish));
+		return chainLength;
+	}
+
+	/**
+	 * @return chains in the lane of chain i, from i to the end of the lane, that are not done,
+	 * where the lane of a chain is made up of the chains starting from it, directly or indirectly
+	 */
+	private List<Integer> getRemaining(int i) {
+		RunManifest manifest = sampler.manifest;
+		boolean [] inLane = new boolean[manifest.size()];
+		inLane[i] = true;
+		List<Integer> remaining = new ArrayList<Integer>();
+		for (int j = i; j < manifest.size(); j++) {
+			RunManifest.Step step = manifest.getStep(j);
+			if (step.startsFrom >= 0 && inLane[step.startsFrom]) {
+				inLane[j] = true;
+			}
+			if (inLane[j] && step.status != RunManifest.Status.done) {
+				remaining.add(j);
+			}
+		}
+		return remaining;
+	}
+
+	/** average throughput of the steps that reported progress, in samples per second **/
+	private double getSamplesPerSecond() {
+		double sum = 0;
+		int n = 0;
+		for (int i = 0; i < sampler.manifest.size(); i++) {
+			double rate = parse(RunMetricsServer.readProgress(sampler.manifest.getStep(i).dir).getProperty("samplesPerSecond"));
+			if (rate > 0) {
+				sum += rate;
+				n++;
+			}
+		}
+		return n > 0 ? sum / n : 0;
+	}
+
+	/** average time finished steps spent on other things than sampling their chain, in seconds **/
+	private double getOverheadSeconds() {
+		double sum = 0;
+		int n = 0;
+		for (int i = 0; i < sampler.manifest.size(); i++) {
+			RunManifest.Step step = sampler.manifest.getStep(i);
+			if (step.status == RunManifest.Status.done) {
+				double rate = parse(RunMetricsServer.readProgress(step.dir).getProperty("samplesPerSecond"));
+				if (rate > 0) {
+					sum += Math.max(0, step.wallTime / 1000.0 - (step.chainLength + step.burnIn) / rate);
+					n++;
+				}
+			}
+		}
+		return n > 0 ? sum / n : 0;
+	}
+
+	/** integrated autocorrelation time of the trace of chain i after burn-in, in samples, -1 if not known **/
+	private double getACT(int i) {
+		RunManifest.Step step = sampler.manifest.getStep(i);
+		if (sampler.manifest.getColumn() == null) {
+			return -1;
+		}
+		// the step may still be running when pipelining
+		LogTailer tailer = new LogTailer(new File(step.logFile), sampler.manifest.getColumn());
+		try {
+			tailer.update();
+		} catch (IOException e) {
+			return -1;
+		}
+		double [] trace = tailer.getTrace();
+		if (trace.length < 4) {
+			return -1;
+		}
+		trace = Arrays.copyOfRange(trace, trace.length * sampler.burnInPercentage / 100, trace.length);
+		return TraceStatistics.calcACT(trace) * tailer.getLogEvery();
+	}
+
+	/** report when the run finished, relative to the end of the budget **/
+	public void report() {
+		long now = System.currentTimeMillis();
+		long minutes = Math.abs(end - now) / 60000;
+		System.out.println("Run finished at " + new Date(now) + ", " + minutes + " minutes " +
+				(now <= end ? "before" : "after") + " the end of the wall time budget at " + new Date(end));
+	}
+
+	private static double parse(String s) {
+		if (s == null) {
+			return 0;
+		}
+		try {
+			return Double.parseDouble(s);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+}
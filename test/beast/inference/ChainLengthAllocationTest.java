@@ -0,0 +1,111 @@
+package beast.inference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ChainLengthAllocationTest {
+
+	/** allocation for steps with independent samples of the given standard deviations **/
+	private static ChainLengthAllocation allocation(double [] sds, String estimator) throws Exception {
+		Random random = new Random(42);
+		int nSteps = sds.length;
+		double [][][] traces = new double[nSteps][1][2000];
+		int [] logEverys = new int[nSteps];
+		double [] betas = new double[nSteps];
+		for (int i = 0; i < nSteps; i++) {
+			for (int j = 0; j < traces[i][0].length; j++) {
+				traces[i][0][j] = -100 + sds[i] * random.nextGaussian();
+			}
+			logEverys[i] = 1;
+			betas[i] = (nSteps - 1.0 - i) / (nSteps - 1);
+		}
+		return new ChainLengthAllocation(traces, logEverys, betas, estimator);
+	}
+
+	private static long sum(int [] values) {
+		long sum = 0;
+		for (int v : values) {
+			sum += v;
+		}
+		return sum;
+	}
+
+	@Test
+	public void testProportionalToSquareRootOfCost() throws Exception {
+		ChainLengthAllocation allocation = allocation(new double[]{1, 1, 1, 1}, PathAnalysis.TRAPEZOID);
+		double [] costs = {1, 4, 9, 16};
+		System.arraycopy(costs, 0, allocation.costs, 0, costs.length);
+		int [] chainLengths = allocation.allocate(1000000, 1);
+		// shares 1:2:3:4 of the budget
+		for (int i = 0; i < costs.length; i++) {
+			assertEquals(100000 * (i + 1), chainLengths[i], 1);
+			assertEquals(chainLengths[i], allocation.getChainLength(i));
+		}
+	}
+
+	@Test
+	public void testFloor() throws Exception {
+		ChainLengthAllocation allocation = allocation(new double[]{1, 1, 1, 1}, PathAnalysis.TRAPEZOID);
+		double [] costs = {0, 1e-6, 1, 1};
+		System.arraycopy(costs, 0, allocation.costs, 0, costs.length);
+		long budget = 1000000;
+		int [] chainLengths = allocation.allocate(budget, 1);
+		// steps with little cost get MIN_SHARE of an even share, the rest is divided by cost
+		double floor = ChainLengthAllocation.MIN_SHARE * budget / costs.length;
+		assertEquals(floor, chainLengths[0], 1);
+		assertEquals(floor, chainLengths[1], 1);
+		assertEquals((budget - 2 * floor) / 2, chainLengths[2], 1);
+		assertEquals((budget - 2 * floor) / 2, chainLengths[3], 1);
+		assertTrue(sum(chainLengths) <= budget);
+	}
+
+	@Test
+	public void testMinChainLength() throws Exception {
+		ChainLengthAllocation allocation = allocation(new double[]{1, 1, 1}, PathAnalysis.TRAPEZOID);
+		double [] costs = {0, 1, 100};
+		System.arraycopy(costs, 0, allocation.costs, 0, costs.length);
+		int [] chainLengths = allocation.allocate(100, 50);
+		for (int chainLength : chainLengths) {
+			assertTrue(chainLength >= 50);
+		}
+	}
+
+	@Test
+	public void testNoCost() throws Exception {
+		ChainLengthAllocation allocation = allocation(new double[]{1, 1, 1, 1}, PathAnalysis.TRAPEZOID);
+		Arrays.fill(allocation.costs, 0);
+		int [] chainLengths = allocation.allocate(4000, 1);
+		for (int chainLength : chainLengths) {
+			assertEquals(1000, chainLength);
+		}
+	}
+
+	@Test
+	public void testNoisierStepsGetMore() throws Exception {
+		for (String estimator : new String[]{PathAnalysis.TRAPEZOID, PathAnalysis.STEPPING_STONE}) {
+			ChainLengthAllocation allocation = allocation(new double[]{1, 2, 4, 8, 16}, estimator);
+			long budget = 1000000;
+			int [] chainLengths = allocation.allocate(budget, 1);
+			assertTrue(sum(chainLengths) <= budget);
+			assertTrue(sum(chainLengths) > budget - chainLengths.length);
+			// the interior steps have the same weight in both estimators
+			assertTrue(chainLengths[1] < chainLengths[2]);
+			assertTrue(chainLengths[2] < chainLengths[3]);
+			if (estimator.equals(PathAnalysis.TRAPEZOID)) {
+				// variance of the trace itself, for stepping stone it is that of exp(weight * trace)
+				assertEquals(4, allocation.getVariance(1), 0.5);
+			}
+		}
+	}
+
+	@Test(expected = Exception.class)
+	public void testTooFewSamples() throws Exception {
+		double [][][] traces = {{{1.0}}, {{1.0, 2.0}}};
+		new ChainLengthAllocation(traces, new int[]{1, 1}, new double[]{1, 0}, PathAnalysis.TRAPEZOID);
+	}
+}
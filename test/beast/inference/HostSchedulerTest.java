@@ -0,0 +1,106 @@
+package beast.inference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Test;
+
+public class HostSchedulerTest {
+
+	@Test
+	public void testPlanByThroughput() {
+		HostScheduler scheduler = new HostScheduler(new String[]{"fast", "slow"});
+		assertFalse(scheduler.hasMeasuredRates());
+		scheduler.setRate("fast", 2);
+		scheduler.setRate("slow", 1);
+		assertTrue(scheduler.hasMeasuredRates());
+		// fast ends at 50 and 100, before slow would at 100
+		assertEquals("fast", scheduler.plan(-1, 100));
+		assertEquals("fast", scheduler.plan(-1, 100));
+		// fast would end at 150
+		assertEquals("slow", scheduler.plan(-1, 100));
+	}
+
+	@Test
+	public void testPlanWaitsForStep() {
+		HostScheduler scheduler = new HostScheduler(new String[]{"a", "b"});
+		scheduler.setRate("a", 1);
+		scheduler.setRate("b", 1);
+		// step 0 on a, ends at 100
+		assertEquals("a", scheduler.plan(-1, 100));
+		// step 1 starts from step 0: it cannot start before 100 on either host, so a is as good as b
+		assertEquals("a", scheduler.plan(0, 100));
+		// step 2 is independent, and b is free
+		assertEquals("b", scheduler.plan(-1, 100));
+
+		scheduler.resetPlan();
+		assertEquals("a", scheduler.plan(-1, 100));
+	}
+
+	@Test
+	public void testSlots() {
+		HostScheduler scheduler = new HostScheduler(new String[]{"a", "a", "b"});
+		assertEquals(2, scheduler.getHosts().size());
+		assertEquals("a", scheduler.plan(-1, 100));
+		assertEquals("a", scheduler.plan(-1, 100));
+		assertEquals("b", scheduler.plan(-1, 100));
+	}
+
+	@Test
+	public void testAcquireAndRelease() throws Exception {
+		final HostScheduler scheduler = new HostScheduler(new String[]{"a", "b"});
+		HostScheduler.Assignment first = scheduler.acquire(100);
+		HostScheduler.Assignment second = scheduler.acquire(100);
+		// one step per host at a time
+		assertFalse(first.host == second.host);
+
+		final HostScheduler.Assignment [] third = new HostScheduler.Assignment[1];
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					third[0] = scheduler.acquire(100);
+				} catch (InterruptedException e) {
+					// fails the test below
+				}
+			}
+		};
+		thread.start();
+		thread.join(500);
+		// waits till a host has a free slot
+		assertTrue(thread.isAlive());
+
+		scheduler.release(first, 1000, 10);
+		thread.join(10000);
+		assertFalse(thread.isAlive());
+		assertEquals(first.host, third[0].host);
+		// throughput observed on the host replaces the default
+		assertEquals(100, scheduler.getRate(first.host), 1e-9);
+		assertTrue(scheduler.hasMeasuredRates());
+
+		// a failed step does not count
+		scheduler.release(second, 0, 10);
+		assertEquals(1, scheduler.getRate(second.host), 1e-9);
+	}
+
+	@Test
+	public void testSaveAndLoad() throws Exception {
+		HostScheduler scheduler = new HostScheduler(new String[]{"a", "b"});
+		scheduler.setRate("a", 123.5);
+		File file = File.createTempFile("hosts", ".properties");
+		try {
+			scheduler.save(file);
+			HostScheduler loaded = new HostScheduler(new String[]{"b", "a", "c"});
+			loaded.load(file);
+			assertTrue(loaded.hasMeasuredRates());
+			assertEquals(123.5, loaded.getRate(loaded.getHosts().indexOf("a")), 1e-9);
+			assertEquals(1, loaded.getRate(loaded.getHosts().indexOf("b")), 1e-9);
+			assertEquals(1, loaded.getRate(loaded.getHosts().indexOf("c")), 1e-9);
+		} finally {
+			file.delete();
+		}
+	}
+}
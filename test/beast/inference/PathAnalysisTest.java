@@ -0,0 +1,146 @@
+package beast.inference;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PathAnalysisTest {
+	final static int SAMPLES = 200;
+	final static int BURN_IN_PERCENTAGE = 50;
+
+	/** traces of all steps, with burn-in, drawn around a mean that grows with beta **/
+	private static double [][] traces(double [] betas) {
+		Random random = new Random(1234);
+		double [][] traces = new double[betas.length][SAMPLES];
+		for (int i = 0; i < betas.length; i++) {
+			for (int j = 0; j < SAMPLES; j++) {
+				traces[i][j] = -1000 + 200 * betas[i] + 5 * random.nextGaussian();
+			}
+		}
+		return traces;
+	}
+
+	/** write a log per step, and return the analysis of them **/
+	private static PathAnalysis analyse(double [][] traces, double [] betas) throws Exception {
+		File dir = File.createTempFile("pathanalysis", "");
+		dir.delete();
+		dir.mkdir();
+		String [][] logFiles = new String[traces.length][1];
+		try {
+			for (int i = 0; i < traces.length; i++) {
+				File log = new File(dir, "step" + i + ".log");
+				PrintStream out = new PrintStream(new FileOutputStream(log));
+				out.println("Sample\tlikelihood\t");
+				for (int j = 0; j < traces[i].length; j++) {
+					out.println(j * 1000 + "\t" + traces[i][j] + "\t");
+				}
+				out.close();
+				logFiles[i][0] = log.getPath();
+			}
+			PathAnalysis analysis = new PathAnalysis();
+			analysis.compute(logFiles, "likelihood", betas, BURN_IN_PERCENTAGE);
+			return analysis;
+		} finally {
+			for (File file : dir.listFiles()) {
+				file.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	private static double [] removeBurnIn(double [] trace) {
+		int from = trace.length * BURN_IN_PERCENTAGE / 100;
+		double [] result = new double[trace.length - from];
+		System.arraycopy(trace, from, result, 0, result.length);
+		return result;
+	}
+
+	private static double [] uniformBetas(int nSteps) {
+		double [] betas = new double[nSteps];
+		for (int i = 0; i < nSteps; i++) {
+			// descending, as used by PathSampler
+			betas[i] = (nSteps - 1.0 - i) / (nSteps - 1);
+		}
+		return betas;
+	}
+
+	/** stepping stone estimate as computed by the analyser before the estimator engine **/
+	private static double baselineSteppingStone(double [][] traces, double [] betas) {
+		double logMarginalL = 0;
+		for (int i = 0; i < betas.length - 1; i++) {
+			double weight = betas[i + 1] - betas[i];
+			double [] marginal2 = removeBurnIn(traces[i]);
+			double logLmax = TraceStatistics.max(marginal2);
+			logMarginalL += weight * logLmax;
+			int n = marginal2.length;
+			double x = 0;
+			for (int j = 0; j < n; j++) {
+				x += Math.exp(weight * (marginal2[j] - logLmax));
+			}
+			logMarginalL += Math.log(x / n);
+		}
+		return -logMarginalL;
+	}
+
+	/** thermodynamic integration estimate with uniform intervals as computed by the analyser before the estimator engine **/
+	private static double baselineTrapezoid(double [][] traces) {
+		int nSteps = traces.length;
+		double logMarginalL = 0;
+		for (int i = 0; i < nSteps - 1; i++) {
+			logMarginalL += TraceStatistics.mean(removeBurnIn(traces[i])) + TraceStatistics.mean(removeBurnIn(traces[i + 1]));
+		}
+		logMarginalL = logMarginalL / (2.0 * (nSteps - 1));
+		return -logMarginalL;
+	}
+
+	@Test
+	public void testSteppingStoneMatchesBaseline() throws Exception {
+		double [] betas = {1.0, 0.6, 0.3, 0.1, 0.02, 0.0};
+		double [][] traces = traces(betas);
+		PathAnalysis analysis = analyse(traces, betas);
+		assertEquals(baselineSteppingStone(traces, betas), analysis.getEstimate(PathAnalysis.STEPPING_STONE), 1e-9);
+	}
+
+	@Test
+	public void testTrapezoidMatchesBaseline() throws Exception {
+		double [] betas = uniformBetas(5);
+		double [][] traces = traces(betas);
+		PathAnalysis analysis = analyse(traces, betas);
+		// the analyser integrated over descending betas without flipping the sign, the estimate is its negation
+		assertEquals(-baselineTrapezoid(traces), analysis.getEstimate(PathAnalysis.TRAPEZOID), 1e-9);
+		assertEquals(analysis.getEstimate(PathAnalysis.TRAPEZOID), PathAnalysis.sum(analysis.getContributions(PathAnalysis.TRAPEZOID)), 0);
+	}
+
+	@Test
+	public void testMeans() throws Exception {
+		double [] betas = uniformBetas(4);
+		double [][] traces = traces(betas);
+		PathAnalysis analysis = analyse(traces, betas);
+		for (int i = 0; i < betas.length; i++) {
+			assertEquals(TraceStatistics.mean(removeBurnIn(traces[i])), analysis.getMeans()[i], 1e-9);
+		}
+	}
+
+	/** Simpson's rule is exact for a mean that is quadratic in beta, also for unequal intervals **/
+	@Test
+	public void testSimpsonExactForQuadratic() throws Exception {
+		double [][] betaSets = {{1.0, 0.75, 0.5, 0.25, 0.0}, {1.0, 0.7, 0.3, 0.1, 0.0}};
+		for (double [] betas : betaSets) {
+			double [][] traces = new double[betas.length][SAMPLES];
+			for (int i = 0; i < betas.length; i++) {
+				double mean = -10 + 4 * betas[i] - 3 * betas[i] * betas[i];
+				for (int j = 0; j < SAMPLES; j++) {
+					traces[i][j] = mean + (j % 2 == 0 ? 1 : -1);
+				}
+			}
+			PathAnalysis analysis = analyse(traces, betas);
+			// integral of the mean from beta = 0 to 1
+			assertEquals(-10 + 4 / 2.0 - 3 / 3.0, analysis.getEstimate(PathAnalysis.SIMPSON), 1e-9);
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package beast.inference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class StepSchedulerTest {
+
+	/** task that records its name when it runs, and fails if asked to **/
+	private static Callable<Void> task(final String name, final List<String> log, final boolean fail) {
+		return new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				log.add(name);
+				if (fail) {
+					throw new Exception("task " + name + " failed on purpose");
+				}
+				return null;
+			}
+		};
+	}
+
+	@Test
+	public void testDependencies() throws Exception {
+		List<String> log = Collections.synchronizedList(new ArrayList<String>());
+		StepScheduler scheduler = new StepScheduler();
+		int a = scheduler.add(task("a", log, false));
+		int b = scheduler.add(task("b", log, false), a);
+		int c = scheduler.add(task("c", log, false), a);
+		scheduler.add(task("d", log, false), b, c);
+		scheduler.run(4);
+
+		assertEquals(4, log.size());
+		assertEquals("a", log.get(0));
+		assertEquals("d", log.get(3));
+		assertEquals(0, scheduler.getFailedCount());
+		assertEquals(0, scheduler.getSkippedCount());
+	}
+
+	@Test
+	public void testFailureSkipsDependents() throws Exception {
+		List<String> log = Collections.synchronizedList(new ArrayList<String>());
+		StepScheduler scheduler = new StepScheduler();
+		int a = scheduler.add(task("a", log, true));
+		int b = scheduler.add(task("b", log, false), a);
+		scheduler.add(task("c", log, false), b);
+		int d = scheduler.add(task("d", log, false));
+		scheduler.add(task("e", log, false), d);
+		// depends on a skipped and a finished task
+		scheduler.add(task("f", log, false), b, d);
+		scheduler.run(2);
+
+		assertEquals(1, scheduler.getFailedCount());
+		assertEquals(3, scheduler.getSkippedCount());
+		assertTrue(log.contains("a"));
+		assertTrue(log.contains("d"));
+		assertTrue(log.contains("e"));
+		assertFalse(log.contains("b"));
+		assertFalse(log.contains("c"));
+		assertFalse(log.contains("f"));
+	}
+
+	@Test
+	public void testRelease() throws Exception {
+		final StepScheduler scheduler = new StepScheduler();
+		final CountDownLatch dependentStarted = new CountDownLatch(1);
+		final int [] id = new int[1];
+		final boolean [] overlapped = new boolean[1];
+		id[0] = scheduler.add(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				scheduler.release(id[0]);
+				// the dependent runs while this task is still running
+				overlapped[0] = dependentStarted.await(10, TimeUnit.SECONDS);
+				throw new Exception("failing after release on purpose");
+			}
+		});
+		scheduler.add(new Callable<Void>() {
+			@Override
+			public Void call() {
+				dependentStarted.countDown();
+				return null;
+			}
+		}, id[0]);
+		scheduler.run(2);
+
+		assertTrue(overlapped[0]);
+		// a task that fails after releasing its dependents does not skip them
+		assertEquals(1, scheduler.getFailedCount());
+		assertEquals(0, scheduler.getSkippedCount());
+	}
+
+	@Test
+	public void testRunIfIdle() throws Exception {
+		final StepScheduler scheduler = new StepScheduler();
+		final boolean [] started = new boolean[2];
+		final CountDownLatch extraDone = new CountDownLatch(1);
+		scheduler.add(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				// one of two threads is busy with this task
+				started[0] = scheduler.runIfIdle(new Runnable() {
+					@Override
+					public void run() {
+						extraDone.countDown();
+					}
+				});
+				extraDone.await(10, TimeUnit.SECONDS);
+				return null;
+			}
+		});
+		scheduler.run(2);
+		assertTrue(started[0]);
+		// no threads once the run is over
+		started[1] = scheduler.runIfIdle(new Runnable() {
+			@Override
+			public void run() {
+			}
+		});
+		assertFalse(started[1]);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownDependency() {
+		StepScheduler scheduler = new StepScheduler();
+		scheduler.add(task("a", new ArrayList<String>(), false), 0);
+	}
+}
@@ -0,0 +1,152 @@
+package beast.inference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import beast.core.BEASTObject;
+import beast.core.Input;
+import beast.core.parameter.RealParameter;
+
+public class StructuralHashTest {
+
+	public static class Node extends BEASTObject {
+		public Input<String> nameInput = new Input<String>("name", "name");
+		public Input<Double> valueInput = new Input<Double>("value", "value");
+		public Input<BEASTObject> refInput = new Input<BEASTObject>("ref", "referenced object");
+		public Input<List<BEASTObject>> childrenInput = new Input<List<BEASTObject>>("child", "children", new ArrayList<BEASTObject>());
+
+		@Override
+		public void initAndValidate() {
+		}
+	}
+
+	public static class OtherNode extends Node {
+	}
+
+	private static Node node(String id, String name, double value) throws Exception {
+		Node node = new Node();
+		node.setID(id);
+		node.nameInput.setValue(name, node);
+		node.valueInput.setValue(value, node);
+		return node;
+	}
+
+	private static RealParameter parameter(String id, String value) throws Exception {
+		RealParameter parameter = new RealParameter(value);
+		parameter.setID(id);
+		return parameter;
+	}
+
+	@Test
+	public void testIdenticalStructures() throws Exception {
+		Node a = node("a", "x", 1.0);
+		a.refInput.setValue(parameter("p", "0.5"), a);
+		Node b = node("b", "x", 1.0);
+		b.refInput.setValue(parameter("p", "0.5"), b);
+
+		StructuralHash hasher = new StructuralHash();
+		// IDs of objects other than state nodes do not matter
+		assertEquals(hasher.hash(a), hasher.hash(b));
+		assertNull(hasher.explainDifference(a, b));
+		assertTrue(hasher.isIdentical(a, b));
+	}
+
+	@Test
+	public void testDifferentValue() throws Exception {
+		Node a = node("a", "x", 1.0);
+		Node b = node("a", "x", 2.0);
+
+		StructuralHash hasher = new StructuralHash();
+		assertFalse(hasher.hash(a) == hasher.hash(b));
+		assertEquals("input 'value' differs", hasher.explainDifference(a, b));
+		assertFalse(hasher.isIdentical(a, b));
+	}
+
+	@Test
+	public void testDifferenceInReferencedObject() throws Exception {
+		Node a = node("a", "x", 1.0);
+		a.refInput.setValue(node("c", "y", 1.0), a);
+		Node b = node("a", "x", 1.0);
+		b.refInput.setValue(node("c", "y", 3.0), b);
+
+		StructuralHash hasher = new StructuralHash();
+		assertFalse(hasher.hash(a) == hasher.hash(b));
+		assertEquals("input 'ref' differs", hasher.explainDifference(a, b));
+	}
+
+	@Test
+	public void testListOrderAndStringsIgnored() throws Exception {
+		Node a = node("a", "x", 1.0);
+		a.childrenInput.setValue(node("c1", "first", 1.0), a);
+		a.childrenInput.setValue(node("c2", "second", 2.0), a);
+		Node b = node("a", " x ", 1.0);
+		b.childrenInput.setValue(node("c2", "second", 2.0), b);
+		b.childrenInput.setValue(node("c1", "first", 1.0), b);
+
+		StructuralHash hasher = new StructuralHash();
+		assertEquals(hasher.hash(a), hasher.hash(b));
+		assertNull(hasher.explainDifference(a, b));
+	}
+
+	@Test
+	public void testListsWithDifferentElements() throws Exception {
+		Node a = node("a", "x", 1.0);
+		a.childrenInput.setValue(node("c1", "first", 1.0), a);
+		a.childrenInput.setValue(node("c2", "second", 2.0), a);
+		Node b = node("a", "x", 1.0);
+		b.childrenInput.setValue(node("c1", "first", 1.0), b);
+		b.childrenInput.setValue(node("c2", "first", 1.0), b);
+
+		StructuralHash hasher = new StructuralHash();
+		assertEquals("input 'child' differs", hasher.explainDifference(a, b));
+	}
+
+	@Test
+	public void testStateNodeIDsMatter() throws Exception {
+		RealParameter p = parameter("p", "1.0");
+		RealParameter q = parameter("q", "1.0");
+
+		StructuralHash hasher = new StructuralHash();
+		assertFalse(hasher.hash(p) == hasher.hash(q));
+		assertEquals("state nodes have different IDs", hasher.explainDifference(p, q));
+		assertNull(hasher.explainDifference(p, parameter("p", "1.0")));
+	}
+
+	@Test
+	public void testDifferentClass() throws Exception {
+		Node a = node("a", "x", 1.0);
+		OtherNode b = new OtherNode();
+		b.nameInput.setValue("x", b);
+		b.valueInput.setValue(1.0, b);
+
+		StructuralHash hasher = new StructuralHash();
+		assertFalse(hasher.hash(a) == hasher.hash(b));
+		assertEquals("class " + Node.class.getName() + " differs from " + OtherNode.class.getName(),
+				hasher.explainDifference(a, b));
+	}
+
+	@Test
+	public void testCycle() throws Exception {
+		Node a = node("a", "x", 1.0);
+		Node b = node("b", "x", 1.0);
+		a.refInput.setValue(b, a);
+		b.refInput.setValue(a, b);
+		Node c = node("c", "x", 1.0);
+		Node d = node("d", "x", 1.0);
+		c.refInput.setValue(d, c);
+		d.refInput.setValue(c, d);
+
+		StructuralHash hasher = new StructuralHash();
+		// objects on a cycle have no canonical hash, and are never identical to another object
+		assertFalse(hasher.hash(a) == hasher.hash(c));
+		assertEquals("depends on a cycle in the input graph", hasher.explainDifference(a, c));
+		assertNull(hasher.explainDifference(a, a));
+	}
+}
@@ -0,0 +1,124 @@
+package beast.inference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TraceLogReaderTest {
+
+	private static double parse(String s) {
+		byte [] bytes = (s + "\t").getBytes();
+		return TraceLogReader.parseDouble(ByteBuffer.wrap(bytes), 0, bytes.length);
+	}
+
+	/** parseDouble is within one ulp of Double.parseDouble **/
+	private static void assertParsed(String s) {
+		double expected = Double.parseDouble(s);
+		double actual = parse(s);
+		assertEquals(s, expected, actual, Math.ulp(expected));
+	}
+
+	@Test
+	public void testParseDouble() {
+		String [] values = {"0", "-0", "1", "-1", "+2.5", "0.1", "-1234.5678", "3.", ".5",
+				"123456789012345678", "1234567890123456789012345", "0.000000000000000000000000001234",
+				"1e10", "1E-5", "-2.5e+3", "6.02214076e23", "1.7976931348623157e308", "4.9e-324",
+				"NaN", "Infinity", "-Infinity"};
+		for (String s : values) {
+			if (Double.isNaN(Double.parseDouble(s))) {
+				assertTrue(Double.isNaN(parse(s)));
+			} else {
+				assertParsed(s);
+			}
+		}
+	}
+
+	@Test
+	public void testParseDoubleSmallExponents() {
+		// exponents below -22 are outside the table of exact powers of ten
+		for (int e = -23; e >= -320; e--) {
+			assertParsed("1.2345e" + e);
+			assertParsed("-9.87654321e" + e);
+		}
+		for (int e = 23; e <= 308; e++) {
+			assertParsed("1.2345e" + e);
+		}
+	}
+
+	@Test
+	public void testParseDoubleRandom() {
+		Random random = new Random(127);
+		for (int i = 0; i < 100000; i++) {
+			double d = random.nextGaussian() * Math.pow(10, random.nextInt(80) - 40);
+			assertParsed(Double.toString(d));
+			assertParsed(String.format("%.6f", d));
+		}
+	}
+
+	@Test
+	public void testGetTrace() throws Exception {
+		File log = File.createTempFile("trace", ".log");
+		try {
+			writeLog(log, 10, 0);
+			TraceLogReader reader = new TraceLogReader(log);
+			assertEquals(10, reader.getSampleCount());
+			assertEquals(1000, reader.getLogEvery());
+			double [] trace = reader.getTrace("likelihood", 50);
+			assertEquals(5, trace.length);
+			for (int i = 0; i < trace.length; i++) {
+				assertEquals(-(5 + i) * 0.5, trace[i], 0);
+			}
+		} finally {
+			log.delete();
+			new File(log.getPath() + TraceLogReader.INDEX_EXTENSION).delete();
+		}
+	}
+
+	@Test
+	public void testIndexInvalidation() throws Exception {
+		File log = File.createTempFile("trace", ".log");
+		File index = new File(log.getPath() + TraceLogReader.INDEX_EXTENSION);
+		try {
+			writeLog(log, 10, 0);
+			assertEquals(10, new TraceLogReader(log).getSampleCount());
+			assertTrue(index.exists());
+			// the index is reused as long as the log does not change
+			assertEquals(10, new TraceLogReader(log).getSampleCount());
+
+			// a log that grew
+			writeLog(log, 20, 0);
+			TraceLogReader reader = new TraceLogReader(log);
+			assertEquals(20, reader.getSampleCount());
+			assertEquals(-19 * 0.5, reader.getTrace("likelihood", 0)[19], 0);
+
+			// a log rewritten with the same length, but different values and time stamp
+			long modified = log.lastModified();
+			writeLog(log, 20, 1);
+			log.setLastModified(modified + 2000);
+			reader = new TraceLogReader(log);
+			assertEquals(20, reader.getSampleCount());
+			assertEquals(-19 * 0.5 - 1, reader.getTrace("likelihood", 0)[19], 0);
+		} finally {
+			log.delete();
+			index.delete();
+		}
+	}
+
+	/** log with samples 0, 1000, ... and likelihood -i/2 - offset **/
+	private static void writeLog(File file, int nSamples, int offset) throws Exception {
+		PrintStream out = new PrintStream(new FileOutputStream(file));
+		out.println(TraceLogger.LOG_EVERY_COMMENT + "1000");
+		out.println("Sample\tlikelihood\t");
+		for (int i = 0; i < nSamples; i++) {
+			out.println(i * 1000 + "\t" + (-i * 0.5 - offset) + "\t");
+		}
+		out.close();
+	}
+}